@@ -0,0 +1,27 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * Drops fixes whose reported accuracy is worse than a limit, typically the first fixes
+ * after a cold start or the ones taken indoors. Fixes without an accuracy pass
+ */
+public class AccuracyFilter implements LocationFilter {
+	private float mMaxAccuracyMeters;
+	
+	public AccuracyFilter(float maxAccuracyMeters) {
+		mMaxAccuracyMeters = maxAccuracyMeters;
+	}
+	
+	@Override
+	public String getName() {
+		return "accuracy";
+	}
+	
+	@Override
+	public boolean filter(Sample sample) {
+		return !sample.hasAccuracy() || sample.getAccuracy() <= mMaxAccuracyMeters;
+	}
+	
+	@Override
+	public void reset() {
+	}
+}
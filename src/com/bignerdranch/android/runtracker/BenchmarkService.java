@@ -0,0 +1,57 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.IOException;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/*
+ * Runs Benchmarks in the background, one after the other, and logs their numbers under the
+ * "Benchmarks" tag. Only scratch data is written, recorded runs are left alone. Start it with
+ * start() from a debug build, then read the results with adb logcat -s Benchmarks
+ */
+public class BenchmarkService extends IntentService {
+	private static final String TAG = "BenchmarkService";
+	public static final String ACTION_RUN_BENCHMARKS = "com.bignerdranch.android.runtracker.ACTION_RUN_BENCHMARKS";
+	public static final String EXTRA_NAMES = "names";
+	public static final String EXTRA_SCALE = "scale";
+	public static final String EXTRA_SEED = "seed";
+
+	public BenchmarkService() {
+		super(TAG);
+	}
+
+	/*
+	 * Run the named benchmarks (see Benchmarks), or all of them when names is null, with scale
+	 * times the default amount of data
+	 */
+	public static void start(Context context, String[] names, int scale) {
+		Intent intent = new Intent(context, BenchmarkService.class);
+		intent.setAction(ACTION_RUN_BENCHMARKS);
+		intent.putExtra(EXTRA_NAMES, names);
+		intent.putExtra(EXTRA_SCALE, scale);
+		context.startService(intent);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (!ACTION_RUN_BENCHMARKS.equals(intent.getAction()))
+			return;
+		String[] names = intent.getStringArrayExtra(EXTRA_NAMES);
+		if (names == null)
+			names = Benchmarks.ALL;
+		Benchmarks benchmarks = new Benchmarks(this, intent.getIntExtra(EXTRA_SCALE, 1), intent.getLongExtra(EXTRA_SEED, 0));
+		for (String name : names) {
+			try {
+				if (!benchmarks.run(name))
+					Log.e(TAG, "No benchmark called " + name);
+			} catch (IOException e) {
+				Log.e(TAG, "Benchmark " + name + " failed", e);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Benchmark " + name + " failed", e);
+			}
+		}
+	}
+}
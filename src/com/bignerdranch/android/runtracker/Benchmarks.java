@@ -0,0 +1,638 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.Cursor;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.bignerdranch.android.runtracker.RunDatebaseHelper.LocationCursor;
+import com.bignerdranch.android.runtracker.RunDatebaseHelper.RunCursor;
+
+/*
+ * Microbenchmarks for the storage, read and ingest paths, run on a device or emulator by
+ * BenchmarkService. They work on a scratch database of synthetic runs that is created for
+ * each benchmark and deleted afterwards, so recorded runs are never touched. Every benchmark
+ * logs its numbers under TAG; latencies are the median of many repeats, in microseconds
+ */
+class Benchmarks {
+	private static final String TAG = "Benchmarks";
+	public static final String LAST_LOCATION = "last_location";
+	public static final String TRACK_LOAD = "track_load";
+	public static final String EXPORT = "export";
+	public static final String SINGLE_READS = "single_reads";
+	public static final String TRAINING_TOTALS = "training_totals";
+	public static final String DISPATCH = "dispatch";
+	public static final String FILTERS = "filters";
+	public static final String SESSIONS = "sessions";
+	public static final String[] ALL = { LAST_LOCATION, TRACK_LOAD, EXPORT, SINGLE_READS, TRAINING_TOTALS, DISPATCH,
+			FILTERS, SESSIONS };
+	private static final String ACTION_BENCHMARK_LOCATION = "com.bignerdranch.android.runtracker.ACTION_BENCHMARK_LOCATION";
+
+	private static final String SCRATCH_DB_NAME = "benchmarks.sqlite";
+	private static final String SCRATCH_JOURNAL_DIR = "benchmark_journals";
+	private static final int BATCH_SIZE = 1024;
+	private static final int REPEATS = 200;
+	private static final int TRACK_REPEATS = 10;		//For reads of a whole track
+	private static final int RUN_POINTS = 10000;		//Points of a run filling the location table
+	private static final int HISTORY_RUNS_PER_WEEK = 4;
+	private static final int HISTORY_RUN_POINTS = 600;	//Ten minutes
+	private static final long WEEK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	private static final long DELIVERY_TIMEOUT_NANOS = 1000L * 1000 * 1000;
+	private static final double NOISE_METERS = 5;		//Standard deviation of the GPS error
+	private static final int JUMP_INTERVAL = 200;		//Every so many fixes one lands JUMP_METERS off
+	private static final double JUMP_METERS = 300;
+	private static final long FIX_INTERVAL_MILLIS = 1000;
+	private static final double STEP_METERS = 3;		//A jogging pace at one fix a second
+	private static final double START_LATITUDE = 33.7817;
+	private static final double START_LONGITUDE = -84.3883;
+
+	private Context mContext;
+	private Random mRandom;
+	private RunDatebaseHelper mHelper;
+	private int mScale;
+	private double mSink;		//Read values end up here, so no read can be skipped
+	private volatile long mSentNanos;
+
+	/*
+	 * scale multiplies the size of every benchmark's data (1 for the sizes below)
+	 */
+	public Benchmarks(Context context, int scale, long seed) {
+		mContext = context.getApplicationContext();
+		mScale = Math.max(1, scale);
+		mRandom = new Random(seed);
+	}
+
+	/*
+	 * Run the named benchmark on a fresh scratch database, returns false for an unknown name
+	 */
+	public boolean run(String name) throws IOException {
+		mContext.deleteDatabase(SCRATCH_DB_NAME);
+		mHelper = new RunDatebaseHelper(mContext, SCRATCH_DB_NAME);
+		try {
+			if (LAST_LOCATION.equals(name))
+				benchmarkLastLocation(1000000 * mScale);
+			else if (TRACK_LOAD.equals(name))
+				benchmarkTrackLoad(20000 * mScale);
+			else if (EXPORT.equals(name))
+				benchmarkExport(100000 * mScale);
+			else if (SINGLE_READS.equals(name))
+				benchmarkSingleReads(100 * mScale);
+			else if (TRAINING_TOTALS.equals(name))
+				benchmarkTrainingTotals(5 * mScale);
+			else if (DISPATCH.equals(name))
+				benchmarkDispatch(10000 * mScale);
+			else if (FILTERS.equals(name))
+				benchmarkFilters(100000 * mScale);
+			else if (SESSIONS.equals(name))
+				stressSessions(16, 4, 2000 * mScale);
+			else
+				return false;
+			return true;
+		} finally {
+			mHelper.close();
+			mHelper = null;
+			mContext.deleteDatabase(SCRATCH_DB_NAME);
+		}
+	}
+
+	/*
+	 * Last location of a run while the table grows from 10k fixes to maxFixes, other runs
+	 * being added RUN_POINTS at a time. Both lookups should stay flat: the one served from
+	 * the run's unsealed rows and the one falling back to its newest chunk
+	 */
+	private void benchmarkLastLocation(int maxFixes) {
+		long rowsRunId = insertRun(RUN_POINTS + RunDatebaseHelper.CHUNK_SIZE / 2, 0);
+		long chunkRunId = insertRun(RunDatebaseHelper.CHUNK_SIZE * 4, 0);
+		int fixes = RUN_POINTS + RunDatebaseHelper.CHUNK_SIZE * 4;
+		long[] samples = new long[REPEATS];
+		for (int size = 10000; size <= maxFixes; size *= 10) {
+			while (fixes < size) {
+				insertRun(RUN_POINTS, 0);
+				fixes += RUN_POINTS;
+			}
+			for (int i = 0; i < REPEATS; i++)
+				samples[i] = timeLastLocation(rowsRunId);
+			long rowsMicros = median(samples);
+			for (int i = 0; i < REPEATS; i++)
+				samples[i] = timeLastLocation(chunkRunId);
+			Log.i(TAG, LAST_LOCATION + ": " + fixes + " fixes, " + rowsMicros + "us from rows, " +
+					median(samples) + "us from a chunk");
+		}
+	}
+
+	private long timeLastLocation(long runId) {
+		long start = System.nanoTime();
+		Cursor cursor = mHelper.queryLastLocationForRun(runId);
+		try {
+			cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/*
+	 * Reading a whole run: a Location per row through LocationCursor, against the primitive
+	 * columns queryTrack fills. Time and objects allocated per read of the track
+	 */
+	private void benchmarkTrackLoad(int points) {
+		long runId = insertRun(points, 0);
+		long[] samples = new long[TRACK_REPEATS];
+		int allocations = 0;
+		for (int i = 0; i < samples.length; i++) {
+			startCounting();
+			long start = System.nanoTime();
+			LocationCursor cursor = mHelper.queryLocationsForRun(runId);
+			try {
+				while (cursor.moveToNext())
+					mSink += cursor.getLocation().getLatitude();
+			} finally {
+				cursor.close();
+			}
+			samples[i] = System.nanoTime() - start;
+			allocations = stopCounting();
+		}
+		long cursorMicros = median(samples);
+		int cursorAllocations = allocations;
+		for (int i = 0; i < samples.length; i++) {
+			startCounting();
+			long start = System.nanoTime();
+			TrackBuffer track = mHelper.queryTrack(runId);
+			for (int j = 0; j < track.size(); j++)
+				mSink += track.getLatitude(j);
+			samples[i] = System.nanoTime() - start;
+			allocations = stopCounting();
+		}
+		Log.i(TAG, TRACK_LOAD + ": " + points + " points, cursor " + cursorMicros / 1000 + "ms " +
+				cursorAllocations + " objects, track buffer " + median(samples) / 1000 + "ms " + allocations + " objects");
+	}
+
+	/*
+	 * Writing a run as GPX: TrackExporter's pages of primitive columns and fixed-point digits,
+	 * against a Location per row formatted with string concatenation and a date format. The
+	 * output is counted and discarded, so only the formatting is measured. Time, throughput
+	 * and bytes allocated by this thread per export
+	 */
+	private void benchmarkExport(int points) throws IOException {
+		Run run = mHelper.queryRun(insertRun(points, 0));
+		TrackExporter exporter = new TrackExporter(mContext);
+		long[] samples = new long[TRACK_REPEATS];
+		int allocated = 0;
+		CountingOutputStream out = new CountingOutputStream();
+		for (int i = 0; i < samples.length; i++) {
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+			exporter.writeGpx(run, new TrackPager(mHelper, run.getId(), Long.MIN_VALUE, Long.MAX_VALUE,
+					TrackExporter.PAGE_SIZE), out);
+			samples[i] = System.nanoTime() - start;
+			Debug.stopAllocCounting();
+			allocated = Debug.getThreadAllocSize();
+		}
+		long streamingMicros = median(samples);
+		int streamingAllocated = allocated;
+		long bytes = out.getCount() / samples.length;
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for (int i = 0; i < samples.length; i++) {
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gpx version=\"1.1\"><trk><trkseg>\n");
+			LocationCursor cursor = mHelper.queryLocationsForRun(run.getId());
+			try {
+				while (cursor.moveToNext()) {
+					Location location = cursor.getLocation();
+					writer.write("<trkpt lat=\"" + location.getLatitude() + "\" lon=\"" + location.getLongitude() +
+							"\"><ele>" + location.getAltitude() + "</ele><time>" +
+							format.format(new Date(location.getTime())) + "</time></trkpt>\n");
+				}
+			} finally {
+				cursor.close();
+			}
+			writer.write("</trkseg></trk></gpx>\n");
+			writer.flush();
+			samples[i] = System.nanoTime() - start;
+			Debug.stopAllocCounting();
+			allocated = Debug.getThreadAllocSize();
+		}
+		long naiveMicros = median(samples);
+		Log.i(TAG, EXPORT + ": " + points + " points, " + bytes / 1024 + "KB of GPX, streaming " +
+				streamingMicros / 1000 + "ms " + points * 1000000 / Math.max(1, streamingMicros) + " points/s " +
+				streamingAllocated / 1024 + "KB allocated, cursor " + naiveMicros / 1000 + "ms " +
+				points * 1000000 / Math.max(1, naiveMicros) + " points/s " + allocated / 1024 + "KB allocated");
+	}
+
+	/*
+	 * The reads behind RunManager.getRun and getLastKnownLocationForRun, among the given number
+	 * of runs: the compiled single-value read and the run summary, against a cursor over the
+	 * run's row and its last location row
+	 */
+	private void benchmarkSingleReads(int runs) {
+		long runId = 0;
+		for (int i = 0; i < runs; i++)
+			runId = insertRun(RunDatebaseHelper.CHUNK_SIZE * 2 + 1, 0);
+		long[] samples = new long[REPEATS];
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			mSink += mHelper.queryRun(runId).getId();
+			samples[i] = System.nanoTime() - start;
+		}
+		long runMicros = median(samples);
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			RunCursor cursor = mHelper.queryRuns(runId);
+			try {
+				cursor.moveToFirst();
+				mSink += cursor.getRun().getId();
+			} finally {
+				cursor.close();
+			}
+			samples[i] = System.nanoTime() - start;
+		}
+		long runCursorMicros = median(samples);
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			mSink += mHelper.queryRunSummary(runId).getLastLocation().getLatitude();
+			samples[i] = System.nanoTime() - start;
+		}
+		long lastMicros = median(samples);
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			LocationCursor cursor = mHelper.queryLastLocationForRun(runId);
+			try {
+				cursor.moveToFirst();
+				mSink += cursor.getLocation().getLatitude();
+			} finally {
+				cursor.close();
+			}
+			samples[i] = System.nanoTime() - start;
+		}
+		Log.i(TAG, SINGLE_READS + ": run " + runMicros + "us (cursor " + runCursorMicros + "us), last location " +
+				lastMicros + "us (cursor " + median(samples) + "us)");
+	}
+
+	/*
+	 * The "last 52 weeks" dashboard query on years of history, a few runs a week, and one
+	 * rebuild of all totals from the run summaries on every core
+	 */
+	private void benchmarkTrainingTotals(int years) {
+		int runs = years * 52 * HISTORY_RUNS_PER_WEEK;
+		long now = System.currentTimeMillis();
+		long first = now - years * 52 * WEEK_MILLIS;
+		for (int i = 0; i < runs; i++)
+			insertRun(HISTORY_RUN_POINTS, first + i * (WEEK_MILLIS / HISTORY_RUNS_PER_WEEK));
+		long from = TrainingTotals.getBucketStart(TrainingTotals.PERIOD_WEEK, now, 51, Calendar.getInstance());
+		long[] samples = new long[REPEATS];
+		for (int i = 0; i < REPEATS; i++) {
+			long start = System.nanoTime();
+			mSink += mHelper.queryTrainingTotals(TrainingTotals.PERIOD_WEEK, from).size();
+			samples[i] = System.nanoTime() - start;
+		}
+		long start = System.nanoTime();
+		mHelper.rebuildTrainingTotals(Runtime.getRuntime().availableProcessors());
+		long rebuildMicros = (System.nanoTime() - start) / 1000;
+		Log.i(TAG, TRAINING_TOTALS + ": " + runs + " runs over " + years + " years, last 52 weeks " + median(samples) +
+				"us, rebuild " + rebuildMicros / 1000 + "ms");
+	}
+
+	/*
+	 * A fix from the publishing thread to a consumer on another one: FixDispatcher, against a
+	 * global broadcast of the Location as RunManager used to send. Each fix is sent once the one
+	 * before has arrived. Median latency, and objects allocated in the whole process per fix
+	 */
+	private void benchmarkDispatch(int fixes) {
+		HandlerThread thread = new HandlerThread(TAG);
+		thread.start();
+		final long[] samples = new long[fixes];
+		final AtomicInteger received = new AtomicInteger();
+		Location location = new Location(LocationManager.GPS_PROVIDER);
+		location.setLatitude(START_LATITUDE);
+		location.setLongitude(START_LONGITUDE);
+		try {
+			FixDispatcher dispatcher = new FixDispatcher(FixDispatcher.DEFAULT_CAPACITY);
+			FixDispatcher.Subscription subscription = dispatcher.subscribe(new FixDispatcher.Subscriber() {
+				@Override
+				public void onFix(FixDispatcher.Fix fix) {
+					int i = received.get();
+					samples[i] = System.nanoTime() - mSentNanos;
+					received.set(i + 1);
+				}
+
+				@Override
+				public void onProviderEnabledChanged(boolean enabled) {
+				}
+			}, thread.getLooper(), false);
+			Debug.resetGlobalAllocCount();
+			Debug.startAllocCounting();
+			for (int i = 0; i < fixes; i++) {
+				location.setTime(i);
+				mSentNanos = System.nanoTime();
+				dispatcher.publish(1, location);
+				if (!awaitCount(received, i + 1))
+					break;
+			}
+			Debug.stopAllocCounting();
+			subscription.cancel();
+			int dispatched = received.get();
+			long dispatchMicros = median(Arrays.copyOf(samples, Math.max(1, dispatched)));
+			int dispatchAllocations = Debug.getGlobalAllocCount() / Math.max(1, dispatched);
+
+			received.set(0);
+			int broadcasts = Math.max(1, fixes / 10);		//Much slower, and they go through the system
+			BroadcastReceiver receiver = new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					Location fix = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+					int i = received.get();
+					samples[i] = System.nanoTime() - mSentNanos;
+					mSink += fix.getLatitude();
+					received.set(i + 1);
+				}
+			};
+			mContext.registerReceiver(receiver, new IntentFilter(ACTION_BENCHMARK_LOCATION), null,
+					new Handler(thread.getLooper()));
+			try {
+				Debug.resetGlobalAllocCount();
+				Debug.startAllocCounting();
+				for (int i = 0; i < broadcasts; i++) {
+					location.setTime(i);
+					mSentNanos = System.nanoTime();
+					Intent broadcast = new Intent(ACTION_BENCHMARK_LOCATION);
+					broadcast.setPackage(mContext.getPackageName());
+					broadcast.putExtra(LocationManager.KEY_LOCATION_CHANGED, location);
+					mContext.sendBroadcast(broadcast);
+					if (!awaitCount(received, i + 1))
+						break;
+				}
+				Debug.stopAllocCounting();
+			} finally {
+				mContext.unregisterReceiver(receiver);
+			}
+			int broadcast = received.get();
+			Log.i(TAG, DISPATCH + ": dispatcher " + dispatched + " fixes " + dispatchMicros + "us " +
+					dispatchAllocations + " objects per fix, broadcast " + broadcast + " fixes " +
+					median(Arrays.copyOf(samples, Math.max(1, broadcast))) + "us " +
+					Debug.getGlobalAllocCount() / Math.max(1, broadcast) + " objects per fix");
+		} finally {
+			thread.quit();
+		}
+	}
+
+	/*
+	 * The default filter chain over a noisy track with a jump every JUMP_INTERVAL fixes:
+	 * fixes rejected by each stage, CPU per fix, distance before and after filtering, and
+	 * objects allocated by the whole replay
+	 */
+	private void benchmarkFilters(int points) {
+		TrackBuffer track = new TrackBuffer(points);
+		long time = System.currentTimeMillis();
+		double latitude = START_LATITUDE;
+		double longitude = START_LONGITUDE;
+		double heading = 0;
+		for (int i = 0; i < points; i++) {
+			double north = mRandom.nextGaussian() * NOISE_METERS;
+			double east = mRandom.nextGaussian() * NOISE_METERS;
+			if (i % JUMP_INTERVAL == JUMP_INTERVAL - 1)
+				north += JUMP_METERS;
+			track.add(time, latitude + north / TrackSimplifier.METERS_PER_DEGREE,
+					longitude + east / TrackSimplifier.METERS_PER_DEGREE / Math.cos(Math.toRadians(latitude)), 300);
+			time += FIX_INTERVAL_MILLIS;
+			heading += mRandom.nextGaussian() * 0.2;
+			latitude += Math.cos(heading) * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE;
+			longitude += Math.sin(heading) * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE
+					/ Math.cos(Math.toRadians(latitude));
+		}
+		LocationFilterChain chain = LocationFilterChain.createDefault();
+		startCounting();
+		LocationFilterChain.Report report = chain.replay(track);
+		int allocations = stopCounting();
+		Log.i(TAG, FILTERS + ": " + points + " points, " + points / JUMP_INTERVAL + " jumps, " + report +
+				", " + allocations + " objects");
+	}
+
+	/*
+	 * Many sessions written at once: producer threads append fixes for their share of the
+	 * sessions, interleaved and as fast as they can, to one LocationWriter keeping every fix.
+	 * Half way through, every session is stopped and a new one started straight away, as a
+	 * stop/start on the screen does. Afterwards each run must hold exactly the fixes appended
+	 * to it; the throughput is logged, and every run that lost or gained fixes as an error
+	 */
+	private void stressSessions(int sessions, int threads, final int fixesPerSession) {
+		HandlerThread writerThread = new HandlerThread(TAG);
+		writerThread.start();
+		final File journalDir = new File(mContext.getCacheDir(), SCRATCH_JOURNAL_DIR);
+		final Set<Long> trackedRunIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		final LocationWriter writer = new LocationWriter(mHelper, journalDir, writerThread.getLooper(), trackedRunIds);
+		writer.setTolerance(0);
+		final ConcurrentHashMap<Long, Integer> appended = new ConcurrentHashMap<Long, Integer>();
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		Thread[] producers = new Thread[threads];
+		long start = System.nanoTime();
+		try {
+			for (int t = 0; t < threads; t++) {
+				final int count = sessions / threads + (t < sessions % threads ? 1 : 0);
+				producers[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							long[] runIds = new long[count];
+							for (int i = 0; i < count; i++)
+								runIds[i] = startSession(trackedRunIds);
+							Location location = new Location(LocationManager.GPS_PROVIDER);
+							long time = System.currentTimeMillis();
+							for (int fix = 0; fix < fixesPerSession; fix++) {
+								if (fix == fixesPerSession / 2) {
+									for (int i = 0; i < count; i++) {
+										stopSession(writer, trackedRunIds, runIds[i]);
+										runIds[i] = startSession(trackedRunIds);
+									}
+								}
+								location.setTime(time);
+								time += FIX_INTERVAL_MILLIS;
+								for (int i = 0; i < count; i++) {
+									location.setLatitude(START_LATITUDE + fix * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE);
+									location.setLongitude(START_LONGITUDE + i * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE);
+									writer.append(runIds[i], location);
+									Integer fixes = appended.get(runIds[i]);
+									appended.put(runIds[i], fixes != null ? fixes + 1 : 1);
+								}
+							}
+							for (int i = 0; i < count; i++)
+								stopSession(writer, trackedRunIds, runIds[i]);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				}, TAG + " " + t);
+				producers[t].start();
+			}
+			for (Thread producer : producers) {
+				try {
+					producer.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		} finally {
+			writerThread.quit();
+			File[] journals = journalDir.listFiles();
+			if (journals != null) {
+				for (File journal : journals)
+					journal.delete();
+			}
+			journalDir.delete();
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		if (failure.get() != null)
+			throw failure.get();
+
+		long total = 0;
+		int broken = 0;
+		for (Map.Entry<Long, Integer> entry : appended.entrySet()) {
+			RunSummary summary = mHelper.queryRunSummary(entry.getKey());
+			int stored = summary != null ? summary.getPointCount() : 0;
+			total += entry.getValue();
+			if (stored != entry.getValue()) {
+				broken++;
+				Log.e(TAG, SESSIONS + ": run " + entry.getKey() + " appended " + entry.getValue() + " fixes, stored " + stored);
+			}
+		}
+		Log.i(TAG, SESSIONS + ": " + sessions + " sessions on " + threads + " threads, " + appended.size() + " runs, " +
+				total + " fixes in " + millis + "ms, " + total * 1000 / millis + " fixes/s, " +
+				(broken == 0 ? "every fix stored" : broken + " runs lost fixes"));
+	}
+
+	private long startSession(Set<Long> trackedRunIds) {
+		long runId = mHelper.insertTrackedRun(new Run());
+		trackedRunIds.add(runId);
+		return runId;
+	}
+
+	/*
+	 * The order RunManager stops a run in
+	 */
+	private void stopSession(LocationWriter writer, Set<Long> trackedRunIds, long runId) {
+		trackedRunIds.remove(runId);
+		writer.closeRun(runId);
+		mHelper.stopSession(runId);
+		writer.releaseRun(runId);
+	}
+
+	/*
+	 * Wait for count to reach expected, false if it doesn't within DELIVERY_TIMEOUT_NANOS
+	 */
+	private static boolean awaitCount(AtomicInteger count, int expected) {
+		long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+		while (count.get() < expected) {
+			if (System.nanoTime() - deadline > 0) {
+				Log.w(TAG, "Delivery timed out after " + (expected - 1));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Insert a run of the given number of fixes, one a second from startTime on (now for 0),
+	 * wandering about at STEP_METERS a fix. Returns its id
+	 */
+	private long insertRun(int points, long startTime) {
+		Run run = new Run();
+		if (startTime != 0)
+			run.setStartDate(new Date(startTime));
+		long runId = mHelper.insertRun(run);
+		LocationBatch batch = new LocationBatch(BATCH_SIZE);
+		long time = run.getStartDate().getTime();
+		double latitude = START_LATITUDE;
+		double longitude = START_LONGITUDE;
+		double heading = mRandom.nextDouble() * 2 * Math.PI;
+		for (int i = 0; i < points; i++) {
+			batch.add(runId, time, latitude, longitude, 300, "gps");
+			if (batch.isFull()) {
+				mHelper.insertLocations(batch);
+				batch.clear();
+			}
+			time += FIX_INTERVAL_MILLIS;
+			heading += mRandom.nextGaussian() * 0.2;
+			latitude += Math.cos(heading) * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE;
+			longitude += Math.sin(heading) * STEP_METERS / TrackSimplifier.METERS_PER_DEGREE
+					/ Math.cos(Math.toRadians(latitude));
+		}
+		if (!batch.isEmpty())
+			mHelper.insertLocations(batch);
+		return runId;
+	}
+
+	/*
+	 * Count the objects this thread allocates until stopCounting()
+	 */
+	private static void startCounting() {
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+	}
+
+	private static int stopCounting() {
+		Debug.stopAllocCounting();
+		return Debug.getThreadAllocCount();
+	}
+
+	/*
+	 * Discards what is written, counting the bytes
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long mCount;
+
+		@Override
+		public void write(int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) {
+			mCount += count;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+	}
+
+	/*
+	 * Median of the samples in nanoseconds, as microseconds. Sorts the samples
+	 */
+	private static long median(long[] samples) {
+		Arrays.sort(samples);
+		return samples[samples.length / 2] / 1000;
+	}
+}
@@ -0,0 +1,171 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Housekeeping for runs.sqlite, in budgeted jobs:
+ *  - fragmentation: measure the file and its free pages
+ *  - incremental_vacuum: hand free pages (left by sealing, retention, ...) back to the file system
+ *    (an older database is first converted with one full VACUUM, if it can be done within budget)
+ *  - analyze: refresh the planner statistics one index at a time, once a day
+ *  - index_check: make sure every index matches its table and rebuild those that don't, weekly
+ *
+ * Each job stops when its time budget is used up or the Conditions say so (a run starts, the
+ * device is in use), and records what it did in the maintenance_log table. An unfinished job
+ * is picked up where it stopped the next time; the vacuum simply continues with the free pages
+ * that are left. Records older than LOG_RETENTION_MILLIS are pruned, the latest of each job kept.
+ */
+public class DatabaseMaintenance {
+	private static final String TAG = "DatabaseMaintenance";
+	public static final String JOB_FRAGMENTATION = "fragmentation";
+	public static final String JOB_INCREMENTAL_VACUUM = "incremental_vacuum";
+	public static final String JOB_ANALYZE = "analyze";
+	public static final String JOB_INDEX_CHECK = "index_check";
+	
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	private static final long ANALYZE_INTERVAL_MILLIS = DAY_MILLIS;
+	private static final long INDEX_CHECK_INTERVAL_MILLIS = 7 * DAY_MILLIS;
+	private static final long LOG_RETENTION_MILLIS = 90 * DAY_MILLIS;
+	private static final int VACUUM_STEP_PAGES = 256;
+	private static final long VACUUM_BYTES_PER_MILLI = 1024;		//Conservative rate of a full VACUUM on flash
+	public static final long DEFAULT_BUDGET_MILLIS = 10 * 1000;
+	
+	/*
+	 * Checked between the steps of every job
+	 */
+	public interface Conditions {
+		boolean canContinue();
+	}
+	
+	private RunDatebaseHelper mHelper;
+	private long mBudgetMillis;
+	
+	public DatabaseMaintenance(RunDatebaseHelper helper, long budgetMillisPerJob) {
+		mHelper = helper;
+		mBudgetMillis = budgetMillisPerJob;
+	}
+	
+	/*
+	 * Run the jobs that are due, returns what each of them did
+	 */
+	public List<MaintenanceRecord> run(Conditions conditions) {
+		List<MaintenanceRecord> records = new ArrayList<MaintenanceRecord>();
+		long now = System.currentTimeMillis();
+		
+		if (!conditions.canContinue())
+			return records;
+		long[] stats = mHelper.queryPageStats();
+		records.add(log(measureFragmentation(now, stats)));
+		
+		if (stats[1] > 0 && conditions.canContinue())
+			records.add(log(vacuum(now, stats, conditions)));
+		
+		MaintenanceRecord lastAnalyze = mHelper.queryLastMaintenanceRecord(JOB_ANALYZE);
+		boolean resumeAnalyze = lastAnalyze != null && !lastAnalyze.isDone();
+		if ((lastAnalyze == null || resumeAnalyze || now - lastAnalyze.getStartTime() >= ANALYZE_INTERVAL_MILLIS) &&
+				conditions.canContinue())
+			records.add(log(analyze(now, resumeAnalyze ? lastAnalyze.getPosition() : 0, conditions)));
+		
+		MaintenanceRecord lastCheck = mHelper.queryLastMaintenanceRecord(JOB_INDEX_CHECK);
+		boolean resume = lastCheck != null && !lastCheck.isDone();
+		if ((lastCheck == null || resume || now - lastCheck.getStartTime() >= INDEX_CHECK_INTERVAL_MILLIS) &&
+				conditions.canContinue())
+			records.add(log(checkIndexes(now, resume ? lastCheck.getPosition() : 0, conditions)));
+		
+		mHelper.pruneMaintenanceLog(now - LOG_RETENTION_MILLIS);
+		return records;
+	}
+	
+	private MaintenanceRecord log(MaintenanceRecord record) {
+		mHelper.insertMaintenanceRecord(record);
+		Log.i(TAG, record.toString());
+		return record;
+	}
+	
+	private MaintenanceRecord measureFragmentation(long now, long[] stats) {
+		MaintenanceRecord record = new MaintenanceRecord(JOB_FRAGMENTATION, now);
+		long pageCount = stats[0], freePages = stats[1], pageSize = stats[2];
+		int freePercent = pageCount > 0 ? (int) (freePages * 100 / pageCount) : 0;
+		record.finish(0, true, 0, 0, pageCount + " pages of " + pageSize + " bytes, " + freePages +
+				" free (" + freePercent + "%)");
+		return record;
+	}
+	
+	/*
+	 * Free pages in steps until there are none left or the budget is spent
+	 */
+	private MaintenanceRecord vacuum(long now, long[] stats, Conditions conditions) {
+		MaintenanceRecord record = new MaintenanceRecord(JOB_INCREMENTAL_VACUUM, now);
+		long start = SystemClock.elapsedRealtime();
+		long pageSize = stats[2];
+		long freed = 0;
+		String detail = null;
+		if (!mHelper.isIncrementalVacuum()) {
+			// The one full VACUUM rewrites the whole file and can't be stopped half way
+			long bytes = stats[0] * pageSize;
+			if (bytes <= mBudgetMillis * VACUUM_BYTES_PER_MILLI && conditions.canContinue()) {
+				mHelper.convertToIncrementalVacuum();		//Rebuilding the file reclaimed everything
+				detail = "switched to incremental auto_vacuum with a full VACUUM";
+			} else {
+				detail = "not incremental, a full VACUUM of " + (bytes / 1024) + " KB is over budget";
+			}
+		} else {
+			long step;
+			do {
+				step = mHelper.incrementalVacuum(VACUUM_STEP_PAGES);
+				freed += step;
+			} while (step > 0 && SystemClock.elapsedRealtime() - start < mBudgetMillis && conditions.canContinue());
+		}
+		boolean done = mHelper.queryPageStats()[1] == 0;
+		if (detail == null)
+			detail = (freed * pageSize / 1024) + " KB reclaimed";
+		record.finish(SystemClock.elapsedRealtime() - start, done, 0, freed, detail);
+		return record;
+	}
+	
+	/*
+	 * Analyze indexes one at a time from position on
+	 */
+	private MaintenanceRecord analyze(long now, int position, Conditions conditions) {
+		MaintenanceRecord record = new MaintenanceRecord(JOB_ANALYZE, now);
+		long start = SystemClock.elapsedRealtime();
+		int index = position;
+		while (index < mHelper.getIndexCount()) {
+			mHelper.analyze(index);
+			index++;
+			if (SystemClock.elapsedRealtime() - start >= mBudgetMillis || !conditions.canContinue())
+				break;
+		}
+		boolean done = index >= mHelper.getIndexCount();
+		record.finish(SystemClock.elapsedRealtime() - start, done, done ? 0 : index, 0,
+				(index - position) + " indexes analyzed");
+		return record;
+	}
+	
+	/*
+	 * Check indexes one at a time from position on, rebuilding any that don't match their table
+	 */
+	private MaintenanceRecord checkIndexes(long now, int position, Conditions conditions) {
+		MaintenanceRecord record = new MaintenanceRecord(JOB_INDEX_CHECK, now);
+		long start = SystemClock.elapsedRealtime();
+		StringBuilder rebuilt = new StringBuilder();
+		int index = position;
+		while (index < mHelper.getIndexCount()) {
+			if (!mHelper.checkIndex(index)) {
+				mHelper.reindex(index);
+				rebuilt.append(rebuilt.length() == 0 ? "rebuilt " : ", ").append(mHelper.getIndexName(index));
+			}
+			index++;
+			if (SystemClock.elapsedRealtime() - start >= mBudgetMillis || !conditions.canContinue())
+				break;
+		}
+		boolean done = index >= mHelper.getIndexCount();
+		record.finish(SystemClock.elapsedRealtime() - start, done, done ? 0 : index, 0,
+				rebuilt.length() > 0 ? rebuilt.toString() : (index - position) + " indexes ok");
+		return record;
+	}
+}
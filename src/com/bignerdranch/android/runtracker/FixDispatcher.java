@@ -0,0 +1,385 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+/*
+ * Hands fixes to consumers in this process without a broadcast: no Intent, no parceling,
+ * no trip through the system server.
+ *
+ * Fixes are copied into a fixed ring of preallocated slots; publishing claims the next
+ * sequence number, fills its slot and wakes the subscribers, taking no lock and allocating
+ * nothing. Every subscription reads the ring at its own pace on the thread of its choice.
+ * A subscriber falling more than a ring behind loses the oldest fixes (counted as dropped);
+ * a coalescing one only ever gets the newest fix, which is all a screen needs. A subscription
+ * can be limited to one run's fixes, coalescing then keeps that run's newest fix.
+ *
+ * The Fix handed to a subscriber is reused for the next delivery, copy what you keep.
+ *
+ * This is the only way fixes are handed on. No broadcast is left, not even one to wake the
+ * process: TrackingService keeps it alive and receives the fixes itself.
+ */
+public class FixDispatcher {
+	public static final int DEFAULT_CAPACITY = 64;
+	public static final long ALL_RUNS = -1;
+
+	private final Slot[] mSlots;
+	private final int mMask;
+	private final AtomicLong mPublished = new AtomicLong(-1);		//Last sequence claimed
+	private volatile Subscription[] mSubscriptions = new Subscription[0];
+
+	public FixDispatcher(int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		mSlots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+			mSlots[i] = new Slot();
+		mMask = capacity - 1;
+	}
+
+	public interface Subscriber {
+		void onFix(Fix fix);
+		void onProviderEnabledChanged(boolean enabled);
+	}
+
+	/*
+	 * Deliver fixes on looper's thread, or on the publishing thread when looper is null.
+	 * The newest fix already published, if any, is delivered right away
+	 */
+	public Subscription subscribe(Subscriber subscriber, Looper looper, boolean coalesce) {
+		return subscribe(subscriber, ALL_RUNS, looper, coalesce);
+	}
+
+	/*
+	 * Only the fixes of the given run, or of every run for ALL_RUNS
+	 */
+	public synchronized Subscription subscribe(Subscriber subscriber, long runId, Looper looper, boolean coalesce) {
+		Subscription subscription = new Subscription(subscriber, runId, looper, coalesce);
+		Subscription[] subscriptions = new Subscription[mSubscriptions.length + 1];
+		System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+		subscriptions[mSubscriptions.length] = subscription;
+		mSubscriptions = subscriptions;
+		subscription.schedule();
+		return subscription;
+	}
+
+	private synchronized void unsubscribe(Subscription subscription) {
+		Subscription[] subscriptions = mSubscriptions;
+		for (int i = 0; i < subscriptions.length; i++) {
+			if (subscriptions[i] == subscription) {
+				Subscription[] remaining = new Subscription[subscriptions.length - 1];
+				System.arraycopy(subscriptions, 0, remaining, 0, i);
+				System.arraycopy(subscriptions, i + 1, remaining, i, remaining.length - i);
+				mSubscriptions = remaining;
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Safe from any thread
+	 */
+	public void publish(long runId, Location location) {
+		long sequence = mPublished.incrementAndGet();
+		mSlots[(int) (sequence & mMask)].write(sequence, runId, location);
+		Subscription[] subscriptions = mSubscriptions;
+		for (int i = 0; i < subscriptions.length; i++)
+			subscriptions[i].schedule();
+	}
+
+	public void publishProviderEnabled(final boolean enabled) {
+		Subscription[] subscriptions = mSubscriptions;
+		for (int i = 0; i < subscriptions.length; i++) {
+			final Subscription subscription = subscriptions[i];
+			if (subscription.mHandler == null) {
+				subscription.mSubscriber.onProviderEnabledChanged(enabled);
+			} else {
+				subscription.mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (!subscription.mCancelled)
+							subscription.mSubscriber.onProviderEnabledChanged(enabled);
+					}
+				});
+			}
+		}
+	}
+
+	/*
+	 * A fix as read from the ring
+	 */
+	public static class Fix {
+		private long mRunId;
+		private long mTime;
+		private double mLatitude;
+		private double mLongitude;
+		private double mAltitude;
+		private float mAccuracy;
+		private float mSpeed;
+		private float mBearing;
+		private String mProvider;
+		private long mPublishedNanos;
+
+		private void set(Fix other) {
+			mRunId = other.mRunId;
+			mTime = other.mTime;
+			mLatitude = other.mLatitude;
+			mLongitude = other.mLongitude;
+			mAltitude = other.mAltitude;
+			mAccuracy = other.mAccuracy;
+			mSpeed = other.mSpeed;
+			mBearing = other.mBearing;
+			mProvider = other.mProvider;
+			mPublishedNanos = other.mPublishedNanos;
+		}
+
+		/*
+		 * Copy into an existing Location, so a consumer can keep one around without allocating
+		 */
+		public void copyTo(Location location) {
+			location.setProvider(mProvider);
+			location.setTime(mTime);
+			location.setLatitude(mLatitude);
+			location.setLongitude(mLongitude);
+			location.setAltitude(mAltitude);
+			location.setAccuracy(mAccuracy);
+			location.setSpeed(mSpeed);
+			location.setBearing(mBearing);
+		}
+
+		public long getRunId() {
+			return mRunId;
+		}
+
+		public long getTime() {
+			return mTime;
+		}
+
+		public double getLatitude() {
+			return mLatitude;
+		}
+
+		public double getLongitude() {
+			return mLongitude;
+		}
+
+		public double getAltitude() {
+			return mAltitude;
+		}
+
+		public float getAccuracy() {
+			return mAccuracy;
+		}
+
+		public float getSpeed() {
+			return mSpeed;
+		}
+
+		public float getBearing() {
+			return mBearing;
+		}
+
+		public String getProvider() {
+			return mProvider;
+		}
+
+		/*
+		 * System.nanoTime() when the fix was published
+		 */
+		public long getPublishedNanos() {
+			return mPublishedNanos;
+		}
+	}
+
+	/*
+	 * A seqlock around one fix: mWriting is set before the fields change and mSequence after,
+	 * a reader that sees both still at its sequence around the copy got a consistent fix.
+	 * The fields are volatile too: plain reads could be reordered past the check of mWriting
+	 * and return a fix torn by the next write
+	 */
+	private static class Slot {
+		private volatile long mWriting = -1;
+		private volatile long mSequence = -1;
+		private volatile long mRunId;
+		private volatile long mTime;
+		private volatile double mLatitude;
+		private volatile double mLongitude;
+		private volatile double mAltitude;
+		private volatile float mAccuracy;
+		private volatile float mSpeed;
+		private volatile float mBearing;
+		private volatile String mProvider;
+		private volatile long mPublishedNanos;
+
+		private void write(long sequence, long runId, Location location) {
+			mWriting = sequence;
+			mRunId = runId;
+			mTime = location.getTime();
+			mLatitude = location.getLatitude();
+			mLongitude = location.getLongitude();
+			mAltitude = location.getAltitude();
+			mAccuracy = location.getAccuracy();
+			mSpeed = location.getSpeed();
+			mBearing = location.getBearing();
+			mProvider = location.getProvider();
+			mPublishedNanos = System.nanoTime();
+			mSequence = sequence;
+		}
+
+		private void read(Fix fix) {
+			fix.mRunId = mRunId;
+			fix.mTime = mTime;
+			fix.mLatitude = mLatitude;
+			fix.mLongitude = mLongitude;
+			fix.mAltitude = mAltitude;
+			fix.mAccuracy = mAccuracy;
+			fix.mSpeed = mSpeed;
+			fix.mBearing = mBearing;
+			fix.mProvider = mProvider;
+			fix.mPublishedNanos = mPublishedNanos;
+		}
+	}
+
+	/*
+	 * One subscriber's cursor into the ring, with its delivery counters
+	 */
+	public final class Subscription implements Runnable {
+		private final Subscriber mSubscriber;
+		private final long mRunId;
+		private final Handler mHandler;
+		private final boolean mCoalesce;
+		private final AtomicBoolean mScheduled = new AtomicBoolean();
+		private final Fix mRead = new Fix();
+		private final Fix mFix = new Fix();
+		private long mNext;		//Only touched while delivering
+		private volatile boolean mCancelled;
+
+		private volatile long mDelivered;
+		private volatile long mCoalesced;
+		private volatile long mDropped;
+		private volatile long mTotalLatencyNanos;
+		private volatile long mMaxLatencyNanos;
+
+		private Subscription(Subscriber subscriber, long runId, Looper looper, boolean coalesce) {
+			mSubscriber = subscriber;
+			mRunId = runId;
+			mHandler = looper != null ? new Handler(looper) : null;
+			mCoalesce = coalesce;
+			mNext = Math.max(0, mPublished.get());
+		}
+
+		private void schedule() {
+			if (mHandler == null) {
+				synchronized (this) {
+					deliver();
+				}
+			} else if (mScheduled.compareAndSet(false, true)) {
+				mHandler.post(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			// Cleared first: a fix published while delivering posts this again
+			mScheduled.set(false);
+			deliver();
+		}
+
+		private void deliver() {
+			long last = mPublished.get();
+			if (mCoalesce && mRunId == ALL_RUNS && last > mNext) {
+				mCoalesced += last - mNext;
+				mNext = last;
+			} else if (last - mNext >= mSlots.length) {
+				// Lapped, skip to the oldest fix still in the ring
+				mDropped += last - mSlots.length + 1 - mNext;
+				mNext = last - mSlots.length + 1;
+			}
+			boolean held = false;		//Coalescing: the newest fix so far, delivered once the ring is read
+			while (mNext <= last && !mCancelled) {
+				Slot slot = mSlots[(int) (mNext & mMask)];
+				long sequence = slot.mSequence;
+				if (sequence < mNext)
+					break;		//Claimed but not written yet, its publisher schedules us again
+				if (sequence == mNext) {
+					slot.read(mRead);
+					if (slot.mWriting == mNext) {
+						mNext++;
+						if (mRunId != ALL_RUNS && mRead.mRunId != mRunId)
+							continue;
+						if (mCoalesce) {
+							if (held)
+								mCoalesced++;
+							mFix.set(mRead);
+							held = true;
+						} else {
+							onFix(mRead);
+						}
+						continue;
+					}
+				}
+				// Overwritten by a newer fix while we got to it
+				mDropped++;
+				mNext++;
+			}
+			if (held && !mCancelled)
+				onFix(mFix);
+		}
+
+		private void onFix(Fix fix) {
+			long latency = System.nanoTime() - fix.mPublishedNanos;
+			mDelivered++;
+			mTotalLatencyNanos += latency;
+			if (latency > mMaxLatencyNanos)
+				mMaxLatencyNanos = latency;
+			mSubscriber.onFix(fix);
+		}
+
+		public void cancel() {
+			mCancelled = true;
+			unsubscribe(this);
+			if (mHandler != null)
+				mHandler.removeCallbacks(this);
+		}
+
+		public long getDelivered() {
+			return mDelivered;
+		}
+
+		/*
+		 * Fixes skipped because a newer one was already waiting
+		 */
+		public long getCoalesced() {
+			return mCoalesced;
+		}
+
+		/*
+		 * Fixes lost because the subscriber fell a whole ring behind
+		 */
+		public long getDropped() {
+			return mDropped;
+		}
+
+		/*
+		 * Publish to onFix(), averaged over the fixes delivered
+		 */
+		public long getAverageLatencyNanos() {
+			long delivered = mDelivered;
+			return delivered > 0 ? mTotalLatencyNanos / delivered : 0;
+		}
+
+		public long getMaxLatencyNanos() {
+			return mMaxLatencyNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Delivered " + mDelivered + " fixes (" + mCoalesced + " coalesced, " + mDropped + " dropped), latency " +
+					getAverageLatencyNanos() / 1000 + "us average, " + mMaxLatencyNanos / 1000 + "us max";
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.Arrays;
+
+/*
+ * Geohash cells as integers. The cell of a point interleaves the bits of its longitude
+ * and latitude (longitude first, most significant first), exactly like the characters
+ * of a text geohash, so the cells inside a coarser cell form one contiguous range of values.
+ *
+ * Locations are indexed at BITS bits, a 6 character geohash: cells of about 1.2km by 0.6km.
+ */
+public class GeoHash {
+	public static final int BITS = 30;
+	private static final int AXIS_BITS = BITS / 2;
+	
+	private GeoHash() {
+	}
+	
+	/*
+	 * The cell at full precision holding the point
+	 */
+	public static long encode(double latitude, double longitude) {
+		return interleave(axisIndex(longitude, -180, 360, AXIS_BITS), axisIndex(latitude, -90, 180, AXIS_BITS), AXIS_BITS);
+	}
+	
+	/*
+	 * Ranges of full precision cells covering the box, as pairs of [start, end) values.
+	 * The box is covered with cells of the finest precision that needs at most maxCells of
+	 * them, adjacent ones merged into a single range. The box must not cross the antimeridian
+	 */
+	public static long[] cover(double south, double west, double north, double east, int maxCells) {
+		int axisBits = AXIS_BITS;
+		int x0, x1, y0, y1;
+		while (true) {
+			x0 = axisIndex(west, -180, 360, axisBits);
+			x1 = axisIndex(east, -180, 360, axisBits);
+			y0 = axisIndex(south, -90, 180, axisBits);
+			y1 = axisIndex(north, -90, 180, axisBits);
+			if (axisBits == 0 || (long) (x1 - x0 + 1) * (y1 - y0 + 1) <= maxCells)
+				break;
+			axisBits--;
+		}
+		int shift = 2 * (AXIS_BITS - axisBits);
+		long[] starts = new long[(x1 - x0 + 1) * (y1 - y0 + 1)];
+		int n = 0;
+		for (int x = x0; x <= x1; x++) {
+			for (int y = y0; y <= y1; y++)
+				starts[n++] = interleave(x, y, axisBits) << shift;
+		}
+		Arrays.sort(starts);
+		
+		long[] ranges = new long[2 * n];
+		int count = 0;
+		long cellSize = 1L << shift;
+		for (int i = 0; i < n; i++) {
+			if (count > 0 && ranges[count - 1] == starts[i]) {
+				ranges[count - 1] += cellSize;		//Continues the previous range
+			} else {
+				ranges[count++] = starts[i];
+				ranges[count++] = starts[i] + cellSize;
+			}
+		}
+		return Arrays.copyOf(ranges, count);
+	}
+	
+	/*
+	 * Index of the slice of [min, min + span) holding value when it is cut into 2^bits slices
+	 */
+	private static int axisIndex(double value, double min, double span, int bits) {
+		int slices = 1 << bits;
+		int index = (int) Math.floor((value - min) / span * slices);
+		return Math.max(0, Math.min(slices - 1, index));
+	}
+	
+	private static long interleave(int lonIndex, int latIndex, int bits) {
+		long cell = 0;
+		for (int bit = bits - 1; bit >= 0; bit--)
+			cell = (cell << 2) | (((lonIndex >> bit) & 1) << 1) | ((latIndex >> bit) & 1);
+		return cell;
+	}
+}
@@ -0,0 +1,104 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * ISO 8601 timestamps as found in GPX and TCX files, e.g. 2014-05-01T10:00:00Z,
+ * 2014-05-01T10:00:00.250Z or 2014-05-01T12:00:00+02:00. Parsed by hand: SimpleDateFormat
+ * is slow, not thread safe, and only learned about "Z" offsets in API 24
+ */
+public class Iso8601 {
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	private Iso8601() {
+	}
+
+	/*
+	 * Milliseconds since the epoch; a timestamp without an offset is taken as UTC
+	 */
+	public static long parse(String text) {
+		try {
+			int year = Integer.parseInt(text.substring(0, 4));
+			int month = Integer.parseInt(text.substring(5, 7));
+			int day = Integer.parseInt(text.substring(8, 10));
+			int hour = Integer.parseInt(text.substring(11, 13));
+			int minute = Integer.parseInt(text.substring(14, 16));
+			int second = Integer.parseInt(text.substring(17, 19));
+			int pos = 19;
+			int millis = 0;
+			if (pos < text.length() && text.charAt(pos) == '.') {
+				// Fraction of a second, any number of digits
+				int scale = 100;
+				for (pos++; pos < text.length() && Character.isDigit(text.charAt(pos)); pos++) {
+					millis += (text.charAt(pos) - '0') * scale;
+					scale /= 10;
+				}
+			}
+			long offsetMillis = 0;
+			if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+				int sign = text.charAt(pos) == '-' ? -1 : 1;
+				int offsetHours = Integer.parseInt(text.substring(pos + 1, pos + 3));
+				int offsetMinutes = text.length() >= pos + 6 ? Integer.parseInt(text.substring(pos + 4, pos + 6)) : 0;
+				offsetMillis = sign * (offsetHours * 60 + offsetMinutes) * 60 * 1000L;
+			}
+			return daysFromCivil(year, month, day) * MILLIS_PER_DAY +
+					((hour * 60 + minute) * 60 + second) * 1000L + millis - offsetMillis;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad timestamp " + text, e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Bad timestamp " + text, e);
+		}
+	}
+
+	/*
+	 * Append the time as UTC with milliseconds, e.g. 2014-05-01T10:00:00.250Z
+	 */
+	public static void append(StringBuilder sb, long millis) {
+		long days = millis / MILLIS_PER_DAY;
+		if (millis % MILLIS_PER_DAY < 0)
+			days--;
+		int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+		// Civil date from days since the epoch, the inverse of daysFromCivil()
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		
+		pad(sb, year, 4).append('-');
+		pad(sb, month, 2).append('-');
+		pad(sb, day, 2).append('T');
+		pad(sb, millisOfDay / 3600000, 2).append(':');
+		pad(sb, millisOfDay / 60000 % 60, 2).append(':');
+		pad(sb, millisOfDay / 1000 % 60, 2).append('.');
+		pad(sb, millisOfDay % 1000, 3).append('Z');
+	}
+	
+	public static String format(long millis) {
+		StringBuilder sb = new StringBuilder(24);
+		append(sb, millis);
+		return sb.toString();
+	}
+	
+	private static StringBuilder pad(StringBuilder sb, long value, int digits) {
+		for (long limit = 10; digits > 1; digits--, limit *= 10) {
+			if (value < limit)
+				sb.append('0');
+		}
+		return sb.append(value);
+	}
+	
+	/*
+	 * Days since 1970-01-01 of a proleptic Gregorian date (Howard Hinnant's algorithm)
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yoe = year - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+}
@@ -0,0 +1,98 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * Constant-velocity Kalman filter smoothing the position. Each axis (east and north, in
+ * metres from the first fix of the run) keeps a position and a velocity; the runner's
+ * changes of velocity are the process noise, the fix's reported accuracy the measurement
+ * noise. Never drops a fix.
+ */
+public class KalmanFilter implements LocationFilter {
+	private static final float DEFAULT_ACCURACY_METERS = 10;
+	
+	private double mAccelerationNoise;		//m/s/s
+	
+	private boolean mStarted;
+	private long mLastTime;
+	private double mOriginLatitude, mOriginLongitude, mMetersPerLonDegree;
+	private final Axis mEast = new Axis();
+	private final Axis mNorth = new Axis();
+	
+	public KalmanFilter(double accelerationNoise) {
+		mAccelerationNoise = accelerationNoise;
+	}
+	
+	@Override
+	public String getName() {
+		return "kalman";
+	}
+	
+	@Override
+	public boolean filter(Sample sample) {
+		double accuracy = sample.hasAccuracy() ? Math.max(1, sample.getAccuracy()) : DEFAULT_ACCURACY_METERS;
+		double variance = accuracy * accuracy;
+		if (!mStarted) {
+			mStarted = true;
+			mOriginLatitude = sample.getLatitude();
+			mOriginLongitude = sample.getLongitude();
+			mMetersPerLonDegree = TrackSimplifier.metersPerLonDegree(mOriginLatitude);
+			mEast.start(variance);
+			mNorth.start(variance);
+			mLastTime = sample.getTime();
+			return true;
+		}
+		double seconds = Math.max(0, sample.getTime() - mLastTime) / 1000.0;
+		mLastTime = Math.max(mLastTime, sample.getTime());
+		double east = mEast.update((sample.getLongitude() - mOriginLongitude) * mMetersPerLonDegree,
+				variance, seconds, mAccelerationNoise);
+		double north = mNorth.update((sample.getLatitude() - mOriginLatitude) * TrackSimplifier.METERS_PER_DEGREE,
+				variance, seconds, mAccelerationNoise);
+		sample.setPosition(mOriginLatitude + north / TrackSimplifier.METERS_PER_DEGREE,
+				mOriginLongitude + east / mMetersPerLonDegree);
+		return true;
+	}
+	
+	@Override
+	public void reset() {
+		mStarted = false;
+	}
+	
+	/*
+	 * Position and velocity along one axis, with their covariance
+	 */
+	private static class Axis {
+		private double mPosition, mVelocity;
+		private double mP00, mP01, mP11;
+		
+		private void start(double variance) {
+			mPosition = 0;
+			mVelocity = 0;
+			mP00 = variance;
+			mP01 = 0;
+			mP11 = 100;		//Nothing known about the velocity yet, (10 m/s)^2
+		}
+		
+		/*
+		 * Predict seconds ahead, then correct with the measured position; returns the estimate
+		 */
+		private double update(double measured, double variance, double seconds, double accelerationNoise) {
+			// Predict: x += v dt, P = F P F' + Q with Q for white noise acceleration
+			double dt = seconds, dt2 = dt * dt;
+			double q = accelerationNoise * accelerationNoise;
+			mPosition += mVelocity * dt;
+			mP00 += 2 * dt * mP01 + dt2 * mP11 + q * dt2 * dt2 / 4;
+			mP01 += dt * mP11 + q * dt2 * dt / 2;
+			mP11 += q * dt2;
+			// Correct
+			double innovation = measured - mPosition;
+			double s = mP00 + variance;
+			double k0 = mP00 / s;
+			double k1 = mP01 / s;
+			mPosition += k0 * innovation;
+			mVelocity += k1 * innovation;
+			mP11 -= k1 * mP01;
+			mP00 -= k0 * mP00;
+			mP01 -= k0 * mP01;
+			return mPosition;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.bignerdranch.android.runtracker;
+
+import android.location.Location;
+
+/*
+ * A fixed-capacity batch of location fixes kept in parallel primitive arrays,
+ * so buffering a fix does not allocate anything per point
+ */
+public class LocationBatch {
+	private final long[] mRunIds;
+	private final long[] mTimestamps;
+	private final double[] mLatitudes;
+	private final double[] mLongitudes;
+	private final double[] mAltitudes;
+	private final String[] mProviders;
+	private final double[] mDistances;		//From the run's previous fix, NaN to measure it straight
+	private int mSize;
+
+	public LocationBatch(int capacity) {
+		mRunIds = new long[capacity];
+		mTimestamps = new long[capacity];
+		mLatitudes = new double[capacity];
+		mLongitudes = new double[capacity];
+		mAltitudes = new double[capacity];
+		mProviders = new String[capacity];
+		mDistances = new double[capacity];
+	}
+
+	/*
+	 * Copy the fix into the next free slot, returns false if the batch is full
+	 */
+	public boolean add(long runId, Location location) {
+		//Provider strings are interned constants, no copy needed
+		return add(runId, location.getTime(), location.getLatitude(), location.getLongitude(),
+				location.getAltitude(), location.getProvider());
+	}
+
+	public boolean add(long runId, long timestamp, double latitude, double longitude, double altitude,
+			String provider) {
+		return add(runId, timestamp, latitude, longitude, altitude, provider, Double.NaN);
+	}
+
+	/*
+	 * With the distance travelled since the run's previous fix, for fixes left out in between
+	 */
+	public boolean add(long runId, long timestamp, double latitude, double longitude, double altitude,
+			String provider, double distance) {
+		if (isFull())
+			return false;
+		mRunIds[mSize] = runId;
+		mTimestamps[mSize] = timestamp;
+		mLatitudes[mSize] = latitude;
+		mLongitudes[mSize] = longitude;
+		mAltitudes[mSize] = altitude;
+		mProviders[mSize] = provider;
+		mDistances[mSize] = distance;
+		mSize++;
+		return true;
+	}
+
+	/*
+	 * Give every fix in the batch to the run, for producers that only learn the run id later
+	 */
+	public void setRunId(long runId) {
+		for (int i = 0; i < mSize; i++)
+			mRunIds[i] = runId;
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int capacity() {
+		return mRunIds.length;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public boolean isFull() {
+		return mSize == mRunIds.length;
+	}
+
+	public long getRunId(int i) {
+		return mRunIds[i];
+	}
+
+	public long getTimestamp(int i) {
+		return mTimestamps[i];
+	}
+
+	public double getLatitude(int i) {
+		return mLatitudes[i];
+	}
+
+	public double getLongitude(int i) {
+		return mLongitudes[i];
+	}
+
+	public double getAltitude(int i) {
+		return mAltitudes[i];
+	}
+
+	public String getProvider(int i) {
+		return mProviders[i];
+	}
+
+	public double getDistance(int i) {
+		return mDistances[i];
+	}
+}
@@ -0,0 +1,65 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * One stage between receiving a fix and recording it, see LocationFilterChain.
+ * A stage may drop the fix or adjust its position; it keeps whatever state it
+ * needs about the fixes before, until reset() at the start of a run.
+ */
+public interface LocationFilter {
+	String getName();
+	
+	/*
+	 * Returns false to drop the fix
+	 */
+	boolean filter(Sample sample);
+	
+	void reset();
+	
+	/*
+	 * The fix as it passes through the chain, reused for every fix
+	 */
+	public static class Sample {
+		private long mTime;
+		private double mLatitude;
+		private double mLongitude;
+		private double mAltitude;
+		private float mAccuracy;		//Metres, negative if unknown
+		
+		public void set(long time, double latitude, double longitude, double altitude, float accuracy) {
+			mTime = time;
+			mLatitude = latitude;
+			mLongitude = longitude;
+			mAltitude = altitude;
+			mAccuracy = accuracy;
+		}
+		
+		public long getTime() {
+			return mTime;
+		}
+		
+		public double getLatitude() {
+			return mLatitude;
+		}
+		
+		public double getLongitude() {
+			return mLongitude;
+		}
+		
+		public void setPosition(double latitude, double longitude) {
+			mLatitude = latitude;
+			mLongitude = longitude;
+		}
+		
+		public double getAltitude() {
+			return mAltitude;
+		}
+		
+		public boolean hasAccuracy() {
+			return mAccuracy >= 0;
+		}
+		
+		public float getAccuracy() {
+			return mAccuracy;
+		}
+	}
+}
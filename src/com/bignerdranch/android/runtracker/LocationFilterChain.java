@@ -0,0 +1,178 @@
+package com.bignerdranch.android.runtracker;
+
+import android.location.Location;
+
+/*
+ * The filter stages every fix goes through before it is recorded, in order; the first
+ * stage to drop a fix ends its trip. Nothing is allocated per fix, and the chain counts
+ * what each stage dropped and the CPU time spent.
+ *
+ * Not thread safe; all fixes of a run go through one thread.
+ */
+public class LocationFilterChain {
+	private final LocationFilter[] mFilters;
+	private final LocationFilter.Sample mSample = new LocationFilter.Sample();
+	private final long[] mRejected;
+	private long mFixes;
+	private long mNanos;
+	
+	public LocationFilterChain(LocationFilter... filters) {
+		mFilters = filters;
+		mRejected = new long[filters.length];
+	}
+	
+	/*
+	 * Accuracy limit, then the outlier gate (running and cycling speeds), then smoothing
+	 */
+	public static LocationFilterChain createDefault() {
+		return new LocationFilterChain(new AccuracyFilter(50), new OutlierGate(15, 8), new KalmanFilter(1.5));
+	}
+	
+	/*
+	 * Start over for a new run, counters included
+	 */
+	public void reset() {
+		for (int i = 0; i < mFilters.length; i++) {
+			mFilters[i].reset();
+			mRejected[i] = 0;
+		}
+		mFixes = 0;
+		mNanos = 0;
+	}
+	
+	/*
+	 * Returns false if the fix should be dropped; otherwise the location's position is
+	 * replaced by the filtered one
+	 */
+	public boolean filter(Location location) {
+		mSample.set(location.getTime(), location.getLatitude(), location.getLongitude(), location.getAltitude(),
+				location.hasAccuracy() ? location.getAccuracy() : -1);
+		if (!filter(mSample))
+			return false;
+		location.setLatitude(mSample.getLatitude());
+		location.setLongitude(mSample.getLongitude());
+		return true;
+	}
+	
+	private boolean filter(LocationFilter.Sample sample) {
+		long start = System.nanoTime();
+		mFixes++;
+		try {
+			for (int i = 0; i < mFilters.length; i++) {
+				if (!mFilters[i].filter(sample)) {
+					mRejected[i]++;
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			mNanos += System.nanoTime() - start;
+		}
+	}
+	
+	/*
+	 * Run a recorded track through a reset chain, e.g. an imported one that was never
+	 * filtered, and report what the chain did to it
+	 */
+	public Report replay(TrackBuffer track) {
+		reset();
+		Report report = new Report();
+		float[] result = new float[1];
+		double lastRawLatitude = 0, lastRawLongitude = 0, lastLatitude = 0, lastLongitude = 0;
+		boolean hasLast = false;
+		for (int i = 0; i < track.size(); i++) {
+			double latitude = track.getLatitude(i), longitude = track.getLongitude(i);
+			if (i > 0) {
+				Location.distanceBetween(lastRawLatitude, lastRawLongitude, latitude, longitude, result);
+				report.mRawDistanceMeters += result[0];
+			}
+			lastRawLatitude = latitude;
+			lastRawLongitude = longitude;
+			mSample.set(track.getTimestamp(i), latitude, longitude, track.getAltitude(i), -1);
+			if (!filter(mSample))
+				continue;
+			if (hasLast) {
+				Location.distanceBetween(lastLatitude, lastLongitude, mSample.getLatitude(), mSample.getLongitude(), result);
+				report.mFilteredDistanceMeters += result[0];
+			}
+			hasLast = true;
+			lastLatitude = mSample.getLatitude();
+			lastLongitude = mSample.getLongitude();
+		}
+		report.mFixes = mFixes;
+		report.mNanos = mNanos;
+		report.mNames = new String[mFilters.length];
+		for (int i = 0; i < mFilters.length; i++)
+			report.mNames[i] = mFilters[i].getName();
+		report.mRejected = mRejected.clone();
+		return report;
+	}
+	
+	public long getFixes() {
+		return mFixes;
+	}
+	
+	public long getRejected() {
+		long rejected = 0;
+		for (long count : mRejected)
+			rejected += count;
+		return rejected;
+	}
+	
+	public long getNanosPerFix() {
+		return mFixes > 0 ? mNanos / mFixes : 0;
+	}
+	
+	/*
+	 * What a replay did
+	 */
+	public static class Report {
+		private long mFixes;
+		private long mNanos;
+		private String[] mNames;
+		private long[] mRejected;
+		private double mRawDistanceMeters;
+		private double mFilteredDistanceMeters;
+		
+		public long getFixes() {
+			return mFixes;
+		}
+		
+		/*
+		 * Dropped by the stage at index
+		 */
+		public long getRejected(int stage) {
+			return mRejected[stage];
+		}
+		
+		public String getStageName(int stage) {
+			return mNames[stage];
+		}
+		
+		public int getStageCount() {
+			return mNames.length;
+		}
+		
+		public long getNanosPerFix() {
+			return mFixes > 0 ? mNanos / mFixes : 0;
+		}
+		
+		public double getRawDistanceMeters() {
+			return mRawDistanceMeters;
+		}
+		
+		public double getFilteredDistanceMeters() {
+			return mFilteredDistanceMeters;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("Filtered ").append(mFixes).append(" fixes, dropped");
+			for (int i = 0; i < mNames.length; i++)
+				sb.append(' ').append(mNames[i]).append(' ').append(mRejected[i]);
+			sb.append(", ").append(getNanosPerFix()).append("ns per fix, distance ")
+					.append(Math.round(mFilteredDistanceMeters)).append("m of ").append(Math.round(mRawDistanceMeters)).append("m raw");
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.location.Location;
+
+/*
+ * Append-only journal of the fixes of one run, kept in a memory-mapped file so an append
+ * is a handful of memory writes. Writes to the mapping land in the kernel page cache, so
+ * they survive the process being killed or crashing before LocationWriter got to flush them.
+ *
+ * The file is a ring of fixed-width records behind a header. Every record carries a sequence
+ * number and a commit marker derived from it, written last, so a torn record is never replayed.
+ * The header remembers the sequence up to which records are safely in SQLite; only records
+ * after it are replayed, and only those slots are protected from being overwritten.
+ *
+ * Header: int magic, int capacity, long runId, long flushedSeq
+ * Record: long seq, long time, double lat, double lon, double alt, byte providerLength,
+ *         provider bytes (ASCII), int marker
+ */
+public class LocationJournal {
+	private static final int MAGIC = 0x52554E4A;		//"RUNJ"
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 64;
+	private static final int MAX_PROVIDER_LENGTH = 19;
+	private static final int OFFSET_CAPACITY = 4;
+	private static final int OFFSET_RUN_ID = 8;
+	private static final int OFFSET_FLUSHED_SEQ = 16;
+	private static final int OFFSET_TIME = 8;
+	private static final int OFFSET_LATITUDE = 16;
+	private static final int OFFSET_LONGITUDE = 24;
+	private static final int OFFSET_ALTITUDE = 32;
+	private static final int OFFSET_PROVIDER = 40;
+	private static final int OFFSET_MARKER = 60;
+	public static final int DEFAULT_CAPACITY = 4096;
+	private static final String FILE_PREFIX = "run-";
+	private static final String FILE_SUFFIX = ".journal";
+
+	private File mFile;
+	private MappedByteBuffer mBuffer;
+	private int mCapacity;
+	private long mRunId;
+	private long mAppendedSeq;		//Sequence of the newest record
+	private long mFlushedSeq;		//Everything up to here is in the database
+	private long mFlushingSeq;		//Everything up to here is being written right now
+
+	/*
+	 * Open (or create) the journal of a run in the given directory
+	 */
+	public static LocationJournal open(File dir, long runId) throws IOException {
+		return new LocationJournal(new File(dir, FILE_PREFIX + runId + FILE_SUFFIX), runId, DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * Journals left in the directory, e.g. by a process that died while tracking
+	 */
+	public static File[] listJournals(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX))
+				files[count++] = file;
+		}
+		File[] journals = new File[count];
+		System.arraycopy(files, 0, journals, 0, count);
+		return journals;
+	}
+
+	public static LocationJournal open(File file) throws IOException {
+		return new LocationJournal(file, -1, DEFAULT_CAPACITY);
+	}
+
+	private LocationJournal(File file, long runId, int capacity) throws IOException {
+		mFile = file;
+		boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (exists) {
+				// Keep the geometry the journal was created with
+				raf.seek(0);
+				if (raf.readInt() == MAGIC) {
+					capacity = raf.readInt();
+					runId = raf.readLong();
+				} else {
+					exists = false;
+				}
+			}
+			mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) capacity * RECORD_SIZE);
+		} finally {
+			raf.close();		//The mapping stays valid after the channel is closed
+		}
+		mCapacity = capacity;
+		mRunId = runId;
+		if (exists) {
+			mFlushedSeq = mBuffer.getLong(OFFSET_FLUSHED_SEQ);
+			mAppendedSeq = mFlushedSeq;
+			for (int slot = 0; slot < mCapacity; slot++) {
+				long seq = readCommittedSeq(HEADER_SIZE + slot * RECORD_SIZE);
+				if (seq > mAppendedSeq)
+					mAppendedSeq = seq;
+			}
+		} else {
+			mBuffer.putInt(0, MAGIC);
+			mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+			mBuffer.putLong(OFFSET_RUN_ID, mRunId);
+			mBuffer.putLong(OFFSET_FLUSHED_SEQ, 0);
+		}
+		mFlushingSeq = mFlushedSeq;
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	/*
+	 * True if every slot holds a record that is not in the database yet
+	 */
+	public synchronized boolean isFull() {
+		return mAppendedSeq - mFlushedSeq >= mCapacity;
+	}
+
+	/*
+	 * Append a fix, returns its sequence number. The caller has to make room
+	 * (flush, see isFull()) before appending to a full journal
+	 */
+	public synchronized long append(Location location) {
+		if (isFull())
+			throw new IllegalStateException("Journal of run " + mRunId + " is full");
+		long seq = mAppendedSeq + 1;
+		int base = recordOffset(seq);
+		mBuffer.putLong(base, seq);
+		mBuffer.putLong(base + OFFSET_TIME, location.getTime());
+		mBuffer.putDouble(base + OFFSET_LATITUDE, location.getLatitude());
+		mBuffer.putDouble(base + OFFSET_LONGITUDE, location.getLongitude());
+		mBuffer.putDouble(base + OFFSET_ALTITUDE, location.getAltitude());
+		String provider = location.getProvider();
+		int length = provider == null ? 0 : Math.min(provider.length(), MAX_PROVIDER_LENGTH);
+		mBuffer.put(base + OFFSET_PROVIDER, (byte) length);
+		for (int i = 0; i < length; i++)
+			mBuffer.put(base + OFFSET_PROVIDER + 1 + i, (byte) provider.charAt(i));
+		mBuffer.putInt(base + OFFSET_MARKER, marker(seq));		//Commit the record
+		mAppendedSeq = seq;
+		return seq;
+	}
+
+	/*
+	 * Called when a flush takes everything appended so far
+	 */
+	public synchronized void beginFlush() {
+		mFlushingSeq = mAppendedSeq;
+	}
+
+	/*
+	 * Called when a flush takes everything up to seq; later records stay unflushed
+	 */
+	public synchronized void beginFlush(long seq) {
+		mFlushingSeq = Math.max(mFlushedSeq, Math.min(seq, mAppendedSeq));
+	}
+
+	/*
+	 * Called once the flush started by beginFlush() is committed to the database
+	 */
+	public synchronized void endFlush() {
+		mFlushedSeq = mFlushingSeq;
+		mBuffer.putLong(OFFSET_FLUSHED_SEQ, mFlushedSeq);
+	}
+
+	/*
+	 * Copy the records that never made it into the database into the batch, oldest first,
+	 * skipping fixes not newer than afterTimestamp. Returns the number of records copied
+	 */
+	public synchronized int readUnflushed(LocationBatch batch, long afterTimestamp) {
+		int copied = 0;
+		Location location = new Location((String) null);
+		for (long seq = mFlushedSeq + 1; seq <= mAppendedSeq && !batch.isFull(); seq++) {
+			int base = recordOffset(seq);
+			if (readCommittedSeq(base) != seq)
+				continue;		//Torn or missing record
+			long time = mBuffer.getLong(base + OFFSET_TIME);
+			if (time <= afterTimestamp)
+				continue;
+			location.setProvider(readProvider(base));
+			location.setTime(time);
+			location.setLatitude(mBuffer.getDouble(base + OFFSET_LATITUDE));
+			location.setLongitude(mBuffer.getDouble(base + OFFSET_LONGITUDE));
+			location.setAltitude(mBuffer.getDouble(base + OFFSET_ALTITUDE));
+			batch.add(mRunId, location);
+			copied++;
+		}
+		return copied;
+	}
+
+	public synchronized long getFlushedSeq() {
+		return mFlushedSeq;
+	}
+
+	public synchronized long getAppendedSeq() {
+		return mAppendedSeq;
+	}
+
+	/*
+	 * Remove the journal once its run is stopped and flushed
+	 */
+	public synchronized void delete() {
+		mFile.delete();
+	}
+
+	/*
+	 * Sequence of the record at base, or -1 if it was never completely written
+	 */
+	private long readCommittedSeq(int base) {
+		long seq = mBuffer.getLong(base);
+		if (seq <= 0 || mBuffer.getInt(base + OFFSET_MARKER) != marker(seq))
+			return -1;
+		return seq;
+	}
+
+	private String readProvider(int base) {
+		int length = mBuffer.get(base + OFFSET_PROVIDER);
+		if (length <= 0)
+			return null;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) mBuffer.get(base + OFFSET_PROVIDER + 1 + i);
+		return new String(chars).intern();
+	}
+
+	private int recordOffset(long seq) {
+		return HEADER_SIZE + (int) ((seq - 1) % mCapacity) * RECORD_SIZE;
+	}
+
+	private static int marker(long seq) {
+		return MAGIC ^ (int) seq ^ (int) (seq >>> 32);
+	}
+}
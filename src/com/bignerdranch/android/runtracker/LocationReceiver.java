@@ -1,39 +0,0 @@
-package com.bignerdranch.android.runtracker;
-/*
- * To receive the broadcasted pendingIntents
- */
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.location.Location;
-import android.location.LocationManager;
-import android.util.Log;
-
-public class LocationReceiver extends BroadcastReceiver {
-	private static final String TAG = "LocationReceiver";
-
-	@Override
-	public void onReceive(Context context, Intent intent) {		//Called whenever it receives an broadcasted intent
-		// If you got a Location extra, use it
-		Location loc = (Location) intent						//LocationManager.KEY_LOCATION_CHANGED specify a Location instance of the latest update
-					.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
-		if (loc != null) {
-			onLocationReceived(context, loc);
-			return;
-		}
-		// If you get here, something else has happened
-		if (intent.hasExtra(LocationManager.KEY_PROVIDER_ENABLED)) {
-			boolean enabled = intent.getBooleanExtra(LocationManager.KEY_PROVIDER_ENABLED, false);
-			onProviderEnabledChanged(enabled);
-		}
-	}
-	
-	protected void onLocationReceived(Context context, Location loc) {
-		Log.d(TAG, this + " Got location from " + loc.getProvider() + ": "
-				+ loc.getLatitude() + ", " + loc.getLongitude());
-	}
-	
-	protected void onProviderEnabledChanged(boolean enabled) {
-		Log.d(TAG, "Provider " + (enabled ? "enabled" : "disabled"));
-	}
-}
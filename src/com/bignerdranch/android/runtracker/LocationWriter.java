@@ -0,0 +1,348 @@
+package com.bignerdranch.android.runtracker;
+/*
+ * Write-behind buffer for incoming fixes. Every fix is first appended to its run's
+ * memory-mapped LocationJournal, which survives a process crash, then goes through the
+ * run's StreamingSimplifier, and what comes out of that is collected in a LocationBatch.
+ * A journal record only counts as flushed once a point at or after it is in the database,
+ * so fixes the simplifier still holds back are replayed (unsimplified) after a crash.
+ * A background thread writes the batch to SQLite in a single transaction when it is full
+ * or when its oldest fix gets too old, or on request (stop run, low memory).
+ * Appending never touches SQLite, so it is not slowed down by loaders holding the database.
+ * Without the journal at most maxFixes fixes / maxDelayMillis of data could be lost.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+public class LocationWriter {
+	private static final String TAG = "LocationWriter";
+	public static final int DEFAULT_MAX_FIXES = 30;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+
+	private RunDatebaseHelper mHelper;
+	private File mJournalDir;
+	private Handler mHandler;
+	private LocationBatch mBatch;			//Fixes are appended here
+	private LocationBatch mFlushingBatch;	//While this one is being written
+	private LongSparseArray<LocationJournal> mJournals = new LongSparseArray<LocationJournal>();
+	private LongSparseArray<StreamingSimplifier> mSimplifiers = new LongSparseArray<StreamingSimplifier>();
+	private double mToleranceMeters = StreamingSimplifier.DEFAULT_TOLERANCE_METERS;
+	private final Object mFlushLock = new Object();		//One flush at a time
+	private long mMaxDelayMillis;
+	private boolean mFlushScheduled;
+	private Set<Long> mTrackedRunIds;		//Runs whose journals recover() keeps, RunManager's live view
+	private boolean mRecovered;
+	private boolean mJournalsPinned;		//A flush failed, keep every journaled fix for replay
+	// Full batches waiting to be written, oldest first: ones that failed to write and ones that filled
+	// up while a flush was running. Nothing is ever dropped, the journals only advance past what is written
+	private List<LocationBatch> mPendingBatches = new ArrayList<LocationBatch>();
+	private LongSparseArray<Boolean> mClosedRuns = new LongSparseArray<Boolean>();	//Journals to delete once flushed
+
+	private Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/*
+	 * Flushes run on the given looper, which should belong to a background thread.
+	 * trackedRunIds are the runs still being tracked, see recover()
+	 */
+	public LocationWriter(RunDatebaseHelper helper, File journalDir, Looper looper, Set<Long> trackedRunIds) {
+		mHelper = helper;
+		mJournalDir = journalDir;
+		mTrackedRunIds = trackedRunIds;
+		mHandler = new Handler(looper);
+		setDurabilityBound(DEFAULT_MAX_FIXES, DEFAULT_MAX_DELAY_MILLIS);
+	}
+
+	/*
+	 * Configure how much data may sit in memory before it has to be written out
+	 */
+	public void setDurabilityBound(int maxFixes, long maxDelayMillis) {
+		synchronized (mFlushLock) {
+			if (mBatch != null)
+				flush();
+			synchronized (this) {
+				mBatch = new LocationBatch(Math.max(1, maxFixes));
+				mFlushingBatch = new LocationBatch(Math.max(1, maxFixes));
+				mMaxDelayMillis = maxDelayMillis;
+			}
+		}
+	}
+
+	/*
+	 * How far (in metres) recorded tracks may stray from the fixes received, 0 keeps every
+	 * fix. Applies to runs appended to from now on
+	 */
+	public synchronized void setTolerance(double toleranceMeters) {
+		mToleranceMeters = toleranceMeters;
+	}
+
+	public synchronized double getTolerance() {
+		return mToleranceMeters;
+	}
+
+	/*
+	 * Journal and buffer a fix for the given run. The write to SQLite happens on the
+	 * background thread, unless the buffer is still full from a flush that hasn't finished
+	 */
+	public void append(long runId, Location location) {
+		boolean full;
+		synchronized (this) {
+			if (!mRecovered)
+				recover();		//Old journal entries have to go in before the new ones
+			LocationJournal journal = getJournal(runId);
+			full = mBatch.isFull() || (journal != null && journal.isFull());
+		}
+		if (full)
+			flush();		//The background flush fell behind, make room on this thread
+
+		synchronized (this) {
+			LocationJournal journal = getJournal(runId);
+			long seq = journal != null && !journal.isFull() ? journal.append(location) : -1;
+			StreamingSimplifier simplifier = getSimplifier(runId);
+			if (!simplifier.add(seq, location.getTime(), location.getLatitude(), location.getLongitude(),
+					location.getAltitude(), location.getProvider()))
+				return;		//Held back for now
+			addOut(runId, simplifier);
+			if (mBatch.isFull()) {
+				mHandler.removeCallbacks(mFlushRunnable);
+				mFlushScheduled = true;
+				mHandler.post(mFlushRunnable);
+			} else if (!mFlushScheduled) {
+				// First fix of a new batch, make sure it doesn't wait longer than the bound
+				mFlushScheduled = true;
+				mHandler.postDelayed(mFlushRunnable, mMaxDelayMillis);
+			}
+		}
+	}
+
+	/*
+	 * Write every buffered fix in one transaction, then mark them as flushed in the journals.
+	 * A batch that fails to write is kept and written again, before anything newer, by the
+	 * next flush; until then the journals are not advanced
+	 */
+	public void flush() {
+		synchronized (mFlushLock) {
+			LocationBatch batch;
+			int pending;
+			synchronized (this) {
+				mHandler.removeCallbacks(mFlushRunnable);
+				mFlushScheduled = false;
+				if (mBatch.isEmpty() && mPendingBatches.isEmpty())
+					return;
+				pending = mPendingBatches.size();		//Any added from here on are newer than batch
+				// Swap buffers so fixes can keep arriving while this batch is written
+				batch = mBatch;
+				mBatch = mFlushingBatch;
+				mFlushingBatch = batch;
+				for (int i = 0; i < mJournals.size(); i++) {
+					StreamingSimplifier simplifier = mSimplifiers.get(mJournals.keyAt(i));
+					if (simplifier != null)
+						mJournals.valueAt(i).beginFlush(simplifier.getEmittedSeq());
+					else
+						mJournals.valueAt(i).beginFlush();
+				}
+			}
+			try {
+				// Each run's rows go in in time order, so the older batches first
+				for (; pending > 0; pending--) {
+					LocationBatch older;
+					synchronized (this) {
+						older = mPendingBatches.get(0);
+					}
+					mHelper.insertLocations(older);
+					synchronized (this) {
+						mPendingBatches.remove(0);
+					}
+				}
+				if (!batch.isEmpty())
+					mHelper.insertLocations(batch);
+				batch.clear();
+				synchronized (this) {
+					// Everything begun so far is in the database now, failed batches included
+					mJournalsPinned = false;
+					for (int i = 0; i < mJournals.size(); i++)
+						mJournals.valueAt(i).endFlush();
+					deleteClosedJournals();
+				}
+			} catch (RuntimeException e) {
+				// The journals still hold these fixes; stop advancing them so a restart replays them
+				Log.e(TAG, "Failed to write " + batch.size() + " locations", e);
+				synchronized (this) {
+					mJournalsPinned = true;
+					if (!batch.isEmpty()) {
+						mPendingBatches.add(pending, batch);		//After the older ones still waiting
+						mFlushingBatch = new LocationBatch(batch.capacity());
+					}
+				}
+			}
+		}
+	}
+
+	private void deleteClosedJournals() {
+		for (int i = mClosedRuns.size() - 1; i >= 0; i--) {
+			long runId = mClosedRuns.keyAt(i);
+			LocationJournal journal = mJournals.get(runId);
+			if (journal == null || journal.getFlushedSeq() >= journal.getAppendedSeq()) {
+				mClosedRuns.removeAt(i);
+				if (journal != null) {
+					mJournals.remove(runId);
+					journal.delete();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Flush the run, last fix included, once the run is no longer tracked. Its journal stays
+	 * until releaseRun(), so the fixes survive until the run has been marked stopped
+	 */
+	public void closeRun(long runId) {
+		boolean full;
+		synchronized (this) {
+			full = mBatch.isFull();
+		}
+		if (full)
+			flush();
+		synchronized (this) {
+			StreamingSimplifier simplifier = mSimplifiers.get(runId);
+			if (simplifier != null && simplifier.takeHeld())
+				addOut(runId, simplifier);
+			mSimplifiers.remove(runId);
+		}
+		flush();
+	}
+
+	/*
+	 * Drop the journal of a closed run. A journal still holding fixes that could not be written
+	 * stays until a flush gets them in
+	 */
+	public synchronized void releaseRun(long runId) {
+		mClosedRuns.put(runId, Boolean.TRUE);
+		if (!mJournalsPinned)
+			deleteClosedJournals();
+	}
+
+	/*
+	 * Replay journals left behind by a process that died before flushing. Runs still tracked
+	 * keep their journals; runs that are no longer tracked are sealed and their journal removed.
+	 * Only the first call does anything
+	 */
+	public synchronized void recover() {
+		if (mRecovered)
+			return;
+		mRecovered = true;
+		for (File file : LocationJournal.listJournals(mJournalDir)) {
+			try {
+				LocationJournal journal = LocationJournal.open(file);
+				long runId = journal.getRunId();
+				int unflushed = (int) (journal.getAppendedSeq() - journal.getFlushedSeq());
+				if (runId != -1 && unflushed > 0) {
+					// A crash between commit and endFlush() leaves fixes that are already in the db
+					RunSummary summary = mHelper.queryRunSummary(runId);
+					long afterTimestamp = summary != null ? summary.getLastTimestamp() : Long.MIN_VALUE;
+					LocationBatch batch = new LocationBatch(unflushed);
+					journal.readUnflushed(batch, afterTimestamp);
+					mHelper.insertLocations(batch);
+					journal.beginFlush();
+					journal.endFlush();
+					Log.i(TAG, "Recovered " + batch.size() + " locations for run " + runId);
+				}
+				if (runId != -1 && mTrackedRunIds.contains(runId)) {
+					mJournals.put(runId, journal);
+				} else {
+					if (runId != -1)
+						mHelper.sealRun(runId);
+					journal.delete();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to recover " + file, e);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Failed to recover " + file, e);
+			}
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return mBatch.size();
+	}
+
+	/*
+	 * The newest fix of the run not yet committed to the database (buffered, or in the
+	 * batch being written right now), or null if there is none
+	 */
+	public synchronized Location getLastPendingLocation(long runId) {
+		StreamingSimplifier simplifier = mSimplifiers.get(runId);
+		Location location = simplifier != null ? simplifier.getHeldLocation() : null;
+		if (location != null)
+			return location;
+		location = getLastLocation(mBatch, runId);
+		if (location != null)
+			return location;
+		for (int i = mPendingBatches.size() - 1; i >= 0 && location == null; i--)
+			location = getLastLocation(mPendingBatches.get(i), runId);
+		return location != null ? location : getLastLocation(mFlushingBatch, runId);
+	}
+
+	private static Location getLastLocation(LocationBatch batch, long runId) {
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			if (batch.getRunId(i) == runId) {
+				Location location = new Location(batch.getProvider(i));
+				location.setTime(batch.getTimestamp(i));
+				location.setLatitude(batch.getLatitude(i));
+				location.setLongitude(batch.getLongitude(i));
+				location.setAltitude(batch.getAltitude(i));
+				return location;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Buffer the simplifier's output. Its journal sequence already counts as emitted, so the fix
+	 * must reach a batch: a full buffer (a flush is running or failed) is queued and replaced
+	 */
+	private void addOut(long runId, StreamingSimplifier simplifier) {
+		if (mBatch.isFull()) {
+			Log.w(TAG, "Buffer full while flushing, queueing " + mBatch.size() + " locations");
+			mPendingBatches.add(mBatch);
+			mBatch = new LocationBatch(mBatch.capacity());
+		}
+		mBatch.add(runId, simplifier.getOutTimestamp(), simplifier.getOutLatitude(), simplifier.getOutLongitude(),
+				simplifier.getOutAltitude(), simplifier.getOutProvider(), simplifier.getOutDistance());
+	}
+
+	private StreamingSimplifier getSimplifier(long runId) {
+		StreamingSimplifier simplifier = mSimplifiers.get(runId);
+		if (simplifier == null) {
+			simplifier = new StreamingSimplifier(mToleranceMeters, StreamingSimplifier.DEFAULT_WINDOW);
+			mSimplifiers.put(runId, simplifier);
+		}
+		return simplifier;
+	}
+
+	private LocationJournal getJournal(long runId) {
+		LocationJournal journal = mJournals.get(runId);
+		if (journal == null) {
+			try {
+				mJournalDir.mkdirs();
+				journal = LocationJournal.open(mJournalDir, runId);
+				mJournals.put(runId, journal);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to open journal for run " + runId + ", buffering only", e);
+			}
+		}
+		return journal;
+	}
+}
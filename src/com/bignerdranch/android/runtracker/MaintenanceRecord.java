@@ -0,0 +1,65 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * One run of a DatabaseMaintenance job: when it ran, for how long, whether it finished
+ * (and if not, where to pick up), and what it freed or found
+ */
+public class MaintenanceRecord {
+	private String mJob;
+	private long mStartTime;
+	private long mElapsedMillis;
+	private boolean mDone;
+	private int mPosition;
+	private long mPagesFreed;
+	private String mDetail;
+	
+	public MaintenanceRecord(String job, long startTime) {
+		mJob = job;
+		mStartTime = startTime;
+	}
+	
+	public void finish(long elapsedMillis, boolean done, int position, long pagesFreed, String detail) {
+		mElapsedMillis = elapsedMillis;
+		mDone = done;
+		mPosition = position;
+		mPagesFreed = pagesFreed;
+		mDetail = detail;
+	}
+	
+	public String getJob() {
+		return mJob;
+	}
+	
+	public long getStartTime() {
+		return mStartTime;
+	}
+	
+	public long getElapsedMillis() {
+		return mElapsedMillis;
+	}
+	
+	public boolean isDone() {
+		return mDone;
+	}
+	
+	/*
+	 * Where an unfinished job continues next time
+	 */
+	public int getPosition() {
+		return mPosition;
+	}
+	
+	public long getPagesFreed() {
+		return mPagesFreed;
+	}
+	
+	public String getDetail() {
+		return mDetail;
+	}
+	
+	@Override
+	public String toString() {
+		return mJob + (mDone ? " done" : " paused at " + mPosition) + " in " + mElapsedMillis + "ms" +
+				(mPagesFreed > 0 ? ", " + mPagesFreed + " pages freed" : "") + (mDetail != null ? ": " + mDetail : "");
+	}
+}
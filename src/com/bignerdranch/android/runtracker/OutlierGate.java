@@ -0,0 +1,86 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * Drops fixes that would mean moving impossibly fast, or changing speed impossibly
+ * quickly, since the last fix let through: the jumps GPS makes near tall buildings.
+ * The reported accuracy is given the benefit of the doubt before judging the speed.
+ *
+ * If several fixes in a row are dropped it is more likely the last good fix was the
+ * odd one out (or the runner got on a train), so the gate starts over from the next one.
+ */
+public class OutlierGate implements LocationFilter {
+	private static final int MAX_REJECTED_IN_A_ROW = 5;
+	private static final float DEFAULT_ACCURACY_METERS = 10;
+	
+	private double mMaxSpeed;
+	private double mMaxAcceleration;
+	
+	private boolean mHasLast;
+	private long mLastTime;
+	private double mLastLatitude, mLastLongitude;
+	private float mLastAccuracy;
+	private double mLastSpeed = -1;
+	private int mRejectedInARow;
+	
+	/*
+	 * maxSpeed in m/s, maxAcceleration in m/s/s
+	 */
+	public OutlierGate(double maxSpeed, double maxAcceleration) {
+		mMaxSpeed = maxSpeed;
+		mMaxAcceleration = maxAcceleration;
+	}
+	
+	@Override
+	public String getName() {
+		return "outlier";
+	}
+	
+	@Override
+	public boolean filter(Sample sample) {
+		if (mHasLast && mRejectedInARow < MAX_REJECTED_IN_A_ROW) {
+			long millis = sample.getTime() - mLastTime;
+			if (millis <= 0)
+				return reject();
+			double seconds = millis / 1000.0;
+			double meters = distance(mLastLatitude, mLastLongitude, sample.getLatitude(), sample.getLongitude());
+			double slack = mLastAccuracy + accuracy(sample);
+			double speed = Math.max(0, meters - slack) / seconds;
+			if (speed > mMaxSpeed)
+				return reject();
+			if (mLastSpeed >= 0 && Math.abs(speed - mLastSpeed) / seconds > mMaxAcceleration)
+				return reject();
+			mLastSpeed = speed;
+		} else {
+			mLastSpeed = -1;
+		}
+		mHasLast = true;
+		mRejectedInARow = 0;
+		mLastTime = sample.getTime();
+		mLastLatitude = sample.getLatitude();
+		mLastLongitude = sample.getLongitude();
+		mLastAccuracy = accuracy(sample);
+		return true;
+	}
+	
+	private static float accuracy(Sample sample) {
+		return sample.hasAccuracy() ? sample.getAccuracy() : DEFAULT_ACCURACY_METERS;
+	}
+	
+	private boolean reject() {
+		mRejectedInARow++;
+		return false;
+	}
+	
+	@Override
+	public void reset() {
+		mHasLast = false;
+		mLastSpeed = -1;
+		mRejectedInARow = 0;
+	}
+	
+	private static double distance(double latA, double lonA, double latB, double lonB) {
+		double dx = (lonB - lonA) * TrackSimplifier.metersPerLonDegree(latA);
+		double dy = (latB - latA) * TrackSimplifier.METERS_PER_DEGREE;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+}
@@ -0,0 +1,108 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+
+/*
+ * Applies a RetentionPolicy to the stored runs in bounded batches. Each run is rewritten
+ * in its own transaction, so the job can stop between runs and pick up where it left off
+ * (runs that reached their tier are not selected again).
+ */
+public class RetentionJob {
+	private static final String TAG = "RetentionJob";
+	
+	private RunDatebaseHelper mHelper;
+	private RetentionPolicy mPolicy;
+	private double mRecordingToleranceMeters;
+	
+	/*
+	 * recordingToleranceMeters is how far recorded tracks may already be from the fixes received
+	 */
+	public RetentionJob(RunDatebaseHelper helper, RetentionPolicy policy, double recordingToleranceMeters) {
+		mHelper = helper;
+		mPolicy = policy;
+		mRecordingToleranceMeters = recordingToleranceMeters;
+	}
+	
+	/*
+	 * Move at most maxRuns runs into the tier they are due for, skipping the runs being tracked.
+	 * Returns what was done to each of them; an empty list means there is nothing left to do
+	 */
+	public List<Report> run(int maxRuns, Set<Long> trackingRunIds) {
+		long now = System.currentTimeMillis();
+		List<Report> reports = new ArrayList<Report>();
+		// Tracked runs stay candidates; ask for enough that skipping them still leaves maxRuns
+		List<RunSummary> candidates = mHelper.queryRetentionCandidates(
+				mPolicy.getSimplifyBefore(now), mPolicy.getArchiveBefore(now), maxRuns + trackingRunIds.size());
+		for (RunSummary summary : candidates) {
+			long runId = summary.getRunId();
+			if (reports.size() >= maxRuns)
+				break;
+			if (trackingRunIds.contains(runId))
+				continue;
+			int tier = mPolicy.getTargetTier(summary.getLastTimestamp(), now);
+			
+			mHelper.sealRun(runId);		//Any rows left from before chunks existed
+			Report report = new Report(runId, tier);
+			report.mBytesBefore = mHelper.queryChunkBytes(runId);
+			TrackBuffer track = mHelper.queryTrack(runId);
+			report.mPointsBefore = track.size();
+			double tolerance = mPolicy.getPassToleranceMeters(summary.getTier(), tier, mRecordingToleranceMeters);
+			TrackBuffer simplified = TrackSimplifier.simplify(track, tolerance);
+			report.mPointsAfter = simplified.size();
+			mHelper.rewriteTrack(runId, simplified, tier);
+			report.mBytesAfter = mHelper.queryChunkBytes(runId);
+			
+			Log.i(TAG, report.toString());
+			reports.add(report);
+		}
+		return reports;
+	}
+	
+	/*
+	 * What happened to one run
+	 */
+	public static class Report {
+		private long mRunId;
+		private int mTier;
+		private int mPointsBefore, mPointsAfter;
+		private long mBytesBefore, mBytesAfter;
+		
+		private Report(long runId, int tier) {
+			mRunId = runId;
+			mTier = tier;
+		}
+		
+		public long getRunId() {
+			return mRunId;
+		}
+		
+		public int getTier() {
+			return mTier;
+		}
+		
+		public int getPointsBefore() {
+			return mPointsBefore;
+		}
+		
+		public int getPointsAfter() {
+			return mPointsAfter;
+		}
+		
+		/*
+		 * Encoded location bytes freed; the file itself shrinks once the database is vacuumed
+		 */
+		public long getBytesReclaimed() {
+			return mBytesBefore - mBytesAfter;
+		}
+		
+		@Override
+		public String toString() {
+			return "Run " + mRunId + " -> tier " + mTier + ": " + mPointsBefore + " -> " + mPointsAfter +
+					" points, " + mBytesBefore + " -> " + mBytesAfter + " bytes (" + getBytesReclaimed() + " reclaimed)";
+		}
+	}
+}
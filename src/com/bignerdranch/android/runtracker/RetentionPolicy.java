@@ -0,0 +1,74 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * How long runs keep their full resolution. A run moves through the tiers by the age
+ * of its last location:
+ *  - TIER_FULL: every recorded fix
+ *  - TIER_SIMPLIFIED: geometry simplified to within simplifyToleranceMeters
+ *  - TIER_ARCHIVED: simplified to within archiveToleranceMeters and stored as one deflated chunk
+ * Distance and duration always come from the run's summary, so they stay exact.
+ * Tolerances are measured from the fixes received, so each pass only gets what the recording
+ * (see StreamingSimplifier) and the earlier passes left of them, see getPassToleranceMeters().
+ */
+public class RetentionPolicy {
+	public static final int TIER_FULL = 0;
+	public static final int TIER_SIMPLIFIED = 1;
+	public static final int TIER_ARCHIVED = 2;
+	
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	
+	private int mFullResolutionDays;
+	private double mSimplifyToleranceMeters;
+	private int mArchiveAfterDays;
+	private double mArchiveToleranceMeters;
+	
+	public RetentionPolicy(int fullResolutionDays, double simplifyToleranceMeters,
+			int archiveAfterDays, double archiveToleranceMeters) {
+		mFullResolutionDays = fullResolutionDays;
+		mSimplifyToleranceMeters = simplifyToleranceMeters;
+		mArchiveAfterDays = archiveAfterDays;
+		mArchiveToleranceMeters = archiveToleranceMeters;
+	}
+	
+	/*
+	 * Full resolution for 30 days, then within 3m, archived within 10m after a year
+	 */
+	public static RetentionPolicy getDefault() {
+		return new RetentionPolicy(30, 3, 365, 10);
+	}
+	
+	/*
+	 * The tier a run whose last location is at lastTimestamp should be in at time now
+	 */
+	public int getTargetTier(long lastTimestamp, long now) {
+		if (lastTimestamp < getArchiveBefore(now))
+			return TIER_ARCHIVED;
+		if (lastTimestamp < getSimplifyBefore(now))
+			return TIER_SIMPLIFIED;
+		return TIER_FULL;
+	}
+	
+	public long getSimplifyBefore(long now) {
+		return now - mFullResolutionDays * DAY_MILLIS;
+	}
+	
+	public long getArchiveBefore(long now) {
+		return now - mArchiveAfterDays * DAY_MILLIS;
+	}
+	
+	public double getToleranceMeters(int tier) {
+		return tier >= TIER_ARCHIVED ? mArchiveToleranceMeters : mSimplifyToleranceMeters;
+	}
+	
+	/*
+	 * The tolerance for simplifying a run stored at fromTier into toTier. The original fixes are
+	 * gone by then and simplifying a simplified track adds to its error, so what the recording
+	 * and the pass into fromTier may already have used is taken off. 0 if nothing is left
+	 */
+	public double getPassToleranceMeters(int fromTier, int toTier, double recordingToleranceMeters) {
+		double spent = recordingToleranceMeters;
+		if (fromTier > TIER_FULL)
+			spent = Math.max(spent, getToleranceMeters(fromTier));
+		return Math.max(0, getToleranceMeters(toTier) - spent);
+	}
+}
@@ -2,23 +2,45 @@ package com.bignerdranch.android.runtracker;
 /*
  * Provide methods to insert, query, and otherwise managing the data in SQLite
  */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
+import android.os.Build;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
 
 public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is a helper class to manage database creation and version management.
+	private static final String TAG = "RunDatebaseHelper";
 	private static final String DB_NAME = "runs.sqlite";
-	private static final int VERSION = 1;
+	private static final int VERSION = 10;
 	
 	private static final String TABLE_RUN = "run";
 	private static final String COLUMN_RUN_ID = "_id";
 	private static final String COLUMN_RUN_START_DATE = "start_date";
+	private static final String INDEX_RUN_START_DATE = "run_start_date_id";
+	private static final String[] RUN_COLUMNS = {COLUMN_RUN_ID, COLUMN_RUN_START_DATE};
 	
 	private static final String TABLE_LOCATION = "location";
 	private static final String COLUMN_LOCATION_LATITUDE = "latitude";
@@ -27,13 +49,180 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 	private static final String COLUMN_LOCATION_TIMESTAMP = "timestamp";
 	private static final String COLUMN_LOCATION_PROVIDER = "provider";
 	private static final String COLUMN_LOCATION_RUN_ID = "run_id";
+	private static final String INDEX_LOCATION_RUN_TIMESTAMP = "location_run_id_timestamp";
+	// Column order shared by plain location rows and rows decoded from chunks
+	private static final String[] LOCATION_COLUMNS = {COLUMN_LOCATION_TIMESTAMP, COLUMN_LOCATION_LATITUDE,
+		COLUMN_LOCATION_LONGITUDE, COLUMN_LOCATION_ALTITUDE, COLUMN_LOCATION_PROVIDER, COLUMN_LOCATION_RUN_ID};
+	
+	// Older locations of a run are sealed into compressed chunks of this many points, see TrackCodec
+	static final int CHUNK_SIZE = 256;
+	private static final int MAX_READ_ATTEMPTS = 3;		//Of a track page racing a seal, see queryTrackPage()
+	private static final int MAX_REBUILD_ATTEMPTS = 3;		//Of the rollups racing new fixes, see rebuildTrainingTotals()
+	private static final String TABLE_LOCATION_CHUNK = "location_chunk";
+	private static final String COLUMN_CHUNK_RUN_ID = "run_id";
+	private static final String COLUMN_CHUNK_FIRST_TIMESTAMP = "first_timestamp";
+	private static final String COLUMN_CHUNK_LAST_TIMESTAMP = "last_timestamp";
+	private static final String COLUMN_CHUNK_POINT_COUNT = "point_count";
+	private static final String COLUMN_CHUNK_PROVIDER = "provider";
+	private static final String COLUMN_CHUNK_DATA = "data";
+	private static final String COLUMN_CHUNK_ENCODING = "encoding";
+	private static final String INDEX_CHUNK_RUN_TIMESTAMP = "location_chunk_run_id_first_timestamp";
+	
+	private static final String TABLE_RUN_SUMMARY = "run_summary";
+	private static final String COLUMN_SUMMARY_RUN_ID = "run_id";
+	private static final String COLUMN_SUMMARY_POINT_COUNT = "point_count";
+	private static final String COLUMN_SUMMARY_DISTANCE = "distance";
+	private static final String COLUMN_SUMMARY_MIN_LATITUDE = "min_latitude";
+	private static final String COLUMN_SUMMARY_MAX_LATITUDE = "max_latitude";
+	private static final String COLUMN_SUMMARY_MIN_LONGITUDE = "min_longitude";
+	private static final String COLUMN_SUMMARY_MAX_LONGITUDE = "max_longitude";
+	private static final String COLUMN_SUMMARY_FIRST_TIMESTAMP = "first_timestamp";
+	private static final String COLUMN_SUMMARY_LAST_TIMESTAMP = "last_timestamp";
+	private static final String COLUMN_SUMMARY_LAST_LATITUDE = "last_latitude";
+	private static final String COLUMN_SUMMARY_LAST_LONGITUDE = "last_longitude";
+	private static final String COLUMN_SUMMARY_LAST_ALTITUDE = "last_altitude";
+	private static final String COLUMN_SUMMARY_LAST_PROVIDER = "last_provider";
+	private static final String COLUMN_SUMMARY_TIER = "tier";
+	// A summary's columns in the order readRunSummary() reads them
+	private static final String[] SUMMARY_COLUMNS = {COLUMN_SUMMARY_POINT_COUNT, COLUMN_SUMMARY_DISTANCE,
+			COLUMN_SUMMARY_MIN_LATITUDE, COLUMN_SUMMARY_MAX_LATITUDE,
+			COLUMN_SUMMARY_MIN_LONGITUDE, COLUMN_SUMMARY_MAX_LONGITUDE,
+			COLUMN_SUMMARY_FIRST_TIMESTAMP, COLUMN_SUMMARY_LAST_TIMESTAMP,
+			COLUMN_SUMMARY_LAST_LATITUDE, COLUMN_SUMMARY_LAST_LONGITUDE,
+			COLUMN_SUMMARY_LAST_ALTITUDE, COLUMN_SUMMARY_LAST_PROVIDER, COLUMN_SUMMARY_TIER};
+	
+	// Geohash cells (see GeoHash) each run passed through, one row per cell and run
+	private static final String TABLE_RUN_CELL = "run_cell";
+	private static final String COLUMN_CELL_CELL = "cell";
+	private static final String COLUMN_CELL_RUN_ID = "run_id";
+	private static final String INDEX_CELL_CELL_RUN = "run_cell_cell_run_id";
+	// Runs recorded before run_cell existed, waiting to be indexed by backfillCells()
+	private static final String TABLE_CELL_BACKFILL = "run_cell_backfill";
+	private static final String COLUMN_BACKFILL_RUN_ID = "run_id";
+	// A spatial query looks at no more than this many cells, coarser ones for bigger areas
+	private static final int MAX_QUERY_CELLS = 32;
+	
+	// What each DatabaseMaintenance job did, and how far it got
+	private static final String TABLE_MAINTENANCE_LOG = "maintenance_log";
+	private static final String COLUMN_MAINTENANCE_JOB = "job";
+	private static final String COLUMN_MAINTENANCE_START_TIME = "start_time";
+	private static final String COLUMN_MAINTENANCE_ELAPSED = "elapsed";
+	private static final String COLUMN_MAINTENANCE_DONE = "done";
+	private static final String COLUMN_MAINTENANCE_POSITION = "position";
+	private static final String COLUMN_MAINTENANCE_PAGES_FREED = "pages_freed";
+	private static final String COLUMN_MAINTENANCE_DETAIL = "detail";
+	// Totals per calendar week and month, see TrainingTotals
+	private static final String TABLE_ROLLUP = "training_rollup";
+	private static final String COLUMN_ROLLUP_PERIOD = "period";
+	private static final String COLUMN_ROLLUP_BUCKET_START = "bucket_start";
+	private static final String COLUMN_ROLLUP_DISTANCE = "distance";
+	private static final String COLUMN_ROLLUP_DURATION = "duration";
+	private static final String COLUMN_ROLLUP_RUN_COUNT = "run_count";
+	private static final int[] ROLLUP_PERIODS = {TrainingTotals.PERIOD_WEEK, TrainingTotals.PERIOD_MONTH};
+	// Tracking state of every run tracked, see SessionRecord
+	private static final String TABLE_SESSION = "tracking_session";
+	private static final String COLUMN_SESSION_RUN_ID = "run_id";
+	private static final String COLUMN_SESSION_STATE = "state";
+	private static final String COLUMN_SESSION_START_TIME = "start_time";
+	private static final String COLUMN_SESSION_LAST_TIMESTAMP = "last_timestamp";
+	
+	// Indexes checked by checkIndex(), with the table each one belongs to
+	private static final String[] INDEXES = {INDEX_LOCATION_RUN_TIMESTAMP, INDEX_CHUNK_RUN_TIMESTAMP,
+		INDEX_RUN_START_DATE, INDEX_CELL_CELL_RUN};
+	private static final String[] INDEX_TABLES = {TABLE_LOCATION, TABLE_LOCATION_CHUNK, TABLE_RUN, TABLE_RUN_CELL};
+	
+	private SQLiteStatement mInsertLocationStatement;	//Compiled once, reused for every batch
+	private SQLiteStatement mWriteSummaryStatement;
+	private SQLiteStatement mInsertChunkStatement;
+	private SQLiteStatement mCountLocationsStatement;
+	private SQLiteStatement mSealedUntilStatement;
+	private SQLiteStatement mInsertCellStatement;
+	private SQLiteStatement mCreateRollupStatement;
+	private SQLiteStatement mAddRollupStatement;
+	private SQLiteStatement mUpdateSessionStatement;
+	private Calendar mRollupCalendar = Calendar.getInstance();
+	private long mRollupGeneration;		//Counts rollup updates, see rebuildTrainingTotals()
+	// Single-value reads, compiled once; guarded by mReadStatementLock rather than the helper
+	// so they don't wait for a batch being written
+	private final Object mReadStatementLock = new Object();
+	private SQLiteStatement mRunStartDateStatement;
+	// Cell of the last location indexed, consecutive fixes mostly share it
+	private long mLastCellRunId = -1;
+	private long mLastCell = -1;
+	private boolean[] mBatchWritten;		//Fixes of the batch already written, see insertLocations
+	// Summaries of the runs being written, so each batch updates them without reading them back
+	private LongSparseArray<RunSummary> mSummaryCache = new LongSparseArray<RunSummary>();
+	private List<RunSummary> mBatchSummaries = new ArrayList<RunSummary>();		//Those the batch being written changed
+	// Copies of them as last committed, for readers; guarded by mCommittedSummaryLock, not the helper
+	private final Object mCommittedSummaryLock = new Object();
+	private LongSparseArray<RunSummary> mCommittedSummaries = new LongSparseArray<RunSummary>();
+	private volatile SQLiteDatabase mDatabase;		//Once open, see getReadableDatabase()
+	// Every session row, read once; guarded by mSessionCacheLock so reads don't wait for a batch
+	// being written. Only replaced once the transaction that changed a row has committed
+	private final Object mSessionCacheLock = new Object();
+	private LongSparseArray<SessionRecord> mSessionCache;
+	
+	// Checkpoint the WAL back into the db every ~250 pages, and cut the file back to this size afterwards
+	private static final int WAL_AUTOCHECKPOINT_PAGES = 250;
+	private static final long WAL_SIZE_LIMIT_BYTES = 1024 * 1024;
 	
 	public RunDatebaseHelper(Context context) {
-		super(context, DB_NAME, null, VERSION);
+		this(context, DB_NAME);
+	}
+	
+	/*
+	 * A database of the same schema under another name, see Benchmarks
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	RunDatebaseHelper(Context context, String name) {
+		super(context, name, null, VERSION);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			setWriteAheadLoggingEnabled(true);		//Opened straight into WAL mode
+	}
+	
+	/*
+	 * Switch the database to write-ahead logging. The location writer then appends to the WAL
+	 * while loaders keep reading the last committed snapshot on their own pooled read
+	 * connections, so map/list loads never wait behind a batch insert and vice versa.
+	 * Rollback journaling is kept on pre-Honeycomb devices, which have no WAL support.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly())
+			mDatabase = db;
+		if (db.isReadOnly() || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+			return;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+			db.enableWriteAheadLogging();
+		// Keep the WAL file bounded during long runs
+		pragma(db, "pragma wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+		pragma(db, "pragma journal_size_limit=" + WAL_SIZE_LIMIT_BYTES);
+	}
+	
+	/*
+	 * Once the database is open, hand it out without taking the helper's lock: writes hold that
+	 * for a whole batch, while reads in WAL mode only need a connection of their own
+	 */
+	@Override
+	public SQLiteDatabase getReadableDatabase() {
+		SQLiteDatabase db = mDatabase;
+		if (db != null && db.isOpen())
+			return db;
+		return super.getReadableDatabase();
+	}
+	
+	@Override
+	public synchronized void close() {
+		mDatabase = null;
+		super.close();
 	}
 	
 	@Override
 	public void onCreate(SQLiteDatabase db) {	    //SQLiteDatabase exposes methods to manage a SQLite database
+		// Only takes while the file is still empty; older databases are converted by DatabaseMaintenance
+		db.execSQL("pragma auto_vacuum = incremental");
 		// Create the "Run" table
 		db.execSQL("create table run (" + 			//Execute a single SQL statement that is NOT a SELECT or any other SQL statement that returns data
 		           "_id integer primary key autoincrement, start_date integer)");
@@ -41,11 +230,194 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 		db.execSQL("create table location (" + 
 				   " timestamp integer, latitude real, longitude real, altitude real," +
 				   " provider varchar(100), run_id integer references run(_id))");
+		// Everything added since version 1 comes from the upgrade steps, so new and upgraded
+		// databases always end up with the same schema
+		onUpgrade(db, 1, VERSION);
 	}
 
+	/*
+	 * Bring an existing database up to VERSION one step at a time. Each step describes the
+	 * schema as it was at that version; never change a step once it has shipped, add a new one
+	 */
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		// Implement schema changes and data message here when upgrading
+		if (oldVersion < 2) {
+			createLocationIndex(db);
+		}
+		if (oldVersion < 3) {
+			createRunSummaryTable(db);
+			rebuildRunSummaries(db);
+		}
+		if (oldVersion < 4) {
+			// Existing locations stay readable as rows and get sealed the next time their run is
+			createLocationChunkTable(db);
+		}
+		if (oldVersion < 5) {
+			// Retention tiers: how a chunk is encoded and which tier a run has reached
+			db.execSQL("alter table location_chunk add column encoding integer default " +
+					TrackCodec.ENCODING_DELTA_VARINT);
+			db.execSQL("alter table run_summary add column tier integer default " + RetentionPolicy.TIER_FULL);
+		}
+		if (oldVersion < 6) {
+			createRunStartDateIndex(db);
+		}
+		if (oldVersion < 7) {
+			createRunCellTables(db);
+			// Every run recorded so far still has to be indexed, see backfillCells()
+			db.execSQL("insert into " + TABLE_CELL_BACKFILL + " (" + COLUMN_BACKFILL_RUN_ID + ")" +
+					" select " + COLUMN_SUMMARY_RUN_ID + " from " + TABLE_RUN_SUMMARY);
+		}
+		if (oldVersion < 8) {
+			createMaintenanceLogTable(db);
+		}
+		if (oldVersion < 9) {
+			createTrainingRollupTable(db);
+			writeRollups(db, aggregateRollups(db, Long.MIN_VALUE, Long.MAX_VALUE).values());
+		}
+		if (oldVersion < 10) {
+			// Runs tracked at upgrade time are still in the preferences, RunManager moves them over
+			createSessionTable(db);
+		}
+	}
+	
+	/*
+	 * Index serving both "locations of a run by time" and "last location of a run":
+	 * rows are found by run_id and come out already sorted by timestamp, so neither
+	 * query scans the whole table or sorts
+	 */
+	private static void createLocationIndex(SQLiteDatabase db) {
+		db.execSQL("create index if not exists " + INDEX_LOCATION_RUN_TIMESTAMP +
+				" on location (run_id, timestamp)");
+	}
+	
+	/*
+	 * Index for paging through the run list: a page starts right after the (start_date, _id)
+	 * of the last run of the previous one, so it is a seek instead of skipping the rows before it
+	 */
+	private static void createRunStartDateIndex(SQLiteDatabase db) {
+		db.execSQL("create index if not exists " + INDEX_RUN_START_DATE + " on run (start_date, _id)");
+	}
+	
+	/*
+	 * Spatial index of the runs: finding the runs that passed through an area is a handful
+	 * of range scans over (cell, run_id) instead of a scan of every location
+	 */
+	private static void createRunCellTables(SQLiteDatabase db) {
+		db.execSQL("create table run_cell (cell integer, run_id integer references run(_id))");
+		db.execSQL("create unique index " + INDEX_CELL_CELL_RUN + " on run_cell (cell, run_id)");
+		db.execSQL("create table run_cell_backfill (run_id integer primary key)");
+	}
+	
+	/*
+	 * Training totals keyed by period (week/month) and the local start time of the bucket
+	 */
+	private static void createTrainingRollupTable(SQLiteDatabase db) {
+		db.execSQL("create table training_rollup (" +
+				" period integer, bucket_start integer, distance real, duration integer, run_count integer," +
+				" primary key (period, bucket_start))");
+	}
+	
+	/*
+	 * One row per run that was ever tracked, see SessionRecord
+	 */
+	private static void createSessionTable(SQLiteDatabase db) {
+		db.execSQL("create table tracking_session (" +
+				" run_id integer primary key references run(_id), state integer, start_time integer," +
+				" last_timestamp integer)");
+	}
+	
+	/*
+	 * One row per maintenance job run, see DatabaseMaintenance
+	 */
+	private static void createMaintenanceLogTable(SQLiteDatabase db) {
+		db.execSQL("create table maintenance_log (" +
+				" _id integer primary key autoincrement, job varchar(50), start_time integer, elapsed integer," +
+				" done integer, position integer, pages_freed integer, detail varchar(200))");
+	}
+	
+	/*
+	 * One row per run holding its running totals, see RunSummary
+	 */
+	private static void createRunSummaryTable(SQLiteDatabase db) {
+		db.execSQL("create table run_summary (" +
+				" run_id integer primary key references run(_id), point_count integer, distance real," +
+				" min_latitude real, max_latitude real, min_longitude real, max_longitude real," +
+				" first_timestamp integer, last_timestamp integer," +
+				" last_latitude real, last_longitude real, last_altitude real, last_provider varchar(100))");
+	}
+	
+	/*
+	 * Sealed locations, CHUNK_SIZE points of one run per row encoded by TrackCodec
+	 */
+	private static void createLocationChunkTable(SQLiteDatabase db) {
+		db.execSQL("create table location_chunk (" +
+				" run_id integer references run(_id), first_timestamp integer, last_timestamp integer," +
+				" point_count integer, provider varchar(100), data blob)");
+		db.execSQL("create index " + INDEX_CHUNK_RUN_TIMESTAMP + " on location_chunk (run_id, first_timestamp)");
+	}
+	
+	/*
+	 * Compute every run's summary from its locations, used when upgrading a database
+	 * that has locations but no summaries yet
+	 */
+	private static void rebuildRunSummaries(SQLiteDatabase db) {
+		SQLiteStatement write = compileWriteSummary(db);
+		Cursor cursor = db.query(TABLE_LOCATION,
+				new String[] {COLUMN_LOCATION_RUN_ID, COLUMN_LOCATION_TIMESTAMP, COLUMN_LOCATION_LATITUDE,
+						COLUMN_LOCATION_LONGITUDE, COLUMN_LOCATION_ALTITUDE, COLUMN_LOCATION_PROVIDER},
+				null, null, null, null,
+				COLUMN_LOCATION_RUN_ID + " asc, " + COLUMN_LOCATION_TIMESTAMP + " asc");	//Walks the (run_id, timestamp) index
+		try {
+			RunSummary summary = null;
+			while (cursor.moveToNext()) {
+				long runId = cursor.getLong(0);
+				if (summary != null && summary.getRunId() != runId) {
+					writeRunSummary(write, summary);
+					summary = null;
+				}
+				if (summary == null)
+					summary = new RunSummary(runId);
+				summary.add(cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3),
+						cursor.getDouble(4), cursor.getString(5));
+			}
+			if (summary != null)
+				writeRunSummary(write, summary);
+		} finally {
+			cursor.close();
+			write.close();
+		}
+	}
+	
+	private static SQLiteStatement compileWriteSummary(SQLiteDatabase db) {
+		return db.compileStatement("insert or replace into " + TABLE_RUN_SUMMARY + " (" +
+				COLUMN_SUMMARY_RUN_ID + ", " + COLUMN_SUMMARY_POINT_COUNT + ", " + COLUMN_SUMMARY_DISTANCE + ", " +
+				COLUMN_SUMMARY_MIN_LATITUDE + ", " + COLUMN_SUMMARY_MAX_LATITUDE + ", " +
+				COLUMN_SUMMARY_MIN_LONGITUDE + ", " + COLUMN_SUMMARY_MAX_LONGITUDE + ", " +
+				COLUMN_SUMMARY_FIRST_TIMESTAMP + ", " + COLUMN_SUMMARY_LAST_TIMESTAMP + ", " +
+				COLUMN_SUMMARY_LAST_LATITUDE + ", " + COLUMN_SUMMARY_LAST_LONGITUDE + ", " +
+				COLUMN_SUMMARY_LAST_ALTITUDE + ", " + COLUMN_SUMMARY_LAST_PROVIDER + ", " + COLUMN_SUMMARY_TIER + ")" +
+				" values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+	}
+	
+	private static void writeRunSummary(SQLiteStatement write, RunSummary summary) {
+		write.bindLong(1, summary.getRunId());
+		write.bindLong(2, summary.getPointCount());
+		write.bindDouble(3, summary.getDistanceMeters());
+		write.bindDouble(4, summary.getMinLatitude());
+		write.bindDouble(5, summary.getMaxLatitude());
+		write.bindDouble(6, summary.getMinLongitude());
+		write.bindDouble(7, summary.getMaxLongitude());
+		write.bindLong(8, summary.getFirstTimestamp());
+		write.bindLong(9, summary.getLastTimestamp());
+		write.bindDouble(10, summary.getLastLatitude());
+		write.bindDouble(11, summary.getLastLongitude());
+		write.bindDouble(12, summary.getLastAltitude());
+		if (summary.getLastProvider() != null)
+			write.bindString(13, summary.getLastProvider());
+		else
+			write.bindNull(13);
+		write.bindLong(14, summary.getTier());
+		write.executeInsert();
 	}
 	
 	public long insertRun(Run run) {
@@ -56,27 +428,1031 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 		return getWritableDatabase().insert(TABLE_RUN, null, cv);	//Return the ID of the new row	
 	}
 	
-	public long insertLocation(long runId, Location location) {
-		ContentValues cv = new ContentValues();							//ContentValues is essentially a set of key-value pairs
-		cv.put(COLUMN_LOCATION_LATITUDE, location.getLatitude());
-		cv.put(COLUMN_LOCATION_LONGITUDE, location.getLongitude());
-		cv.put(COLUMN_LOCATION_ALTITUDE, location.getAltitude());
-		cv.put(COLUMN_LOCATION_TIMESTAMP, location.getTime());
-		cv.put(COLUMN_LOCATION_PROVIDER, location.getProvider());
-		cv.put(COLUMN_LOCATION_RUN_ID, runId);
-		return getWritableDatabase().insert(TABLE_LOCATION, null, cv);
+	/*
+	 * Insert the run and start tracking it in one transaction, returns the run's id
+	 */
+	public synchronized long insertTrackedRun(Run run) {
+		SQLiteDatabase db = getWritableDatabase();
+		ContentValues cv = new ContentValues();
+		cv.put(COLUMN_RUN_START_DATE, run.getStartDate().getTime());
+		SessionRecord session;
+		beginWriteTransaction(db);
+		try {
+			long runId = db.insertOrThrow(TABLE_RUN, null, cv);
+			session = new SessionRecord(runId, SessionRecord.STATE_STARTED, System.currentTimeMillis(), -1);
+			writeSession(db, session);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		cacheSession(session);
+		return session.getRunId();
+	}
+	
+	/*
+	 * Start, pause or resume tracking the run. Pausing and resuming keep the start time
+	 */
+	public synchronized void writeSessionState(long runId, int state) {
+		SQLiteDatabase db = getWritableDatabase();
+		SessionRecord previous = querySession(runId);
+		long startTime = previous != null && previous.isActive() ? previous.getStartTime() : System.currentTimeMillis();
+		SessionRecord session = new SessionRecord(runId, state, startTime,
+				previous != null ? previous.getLastTimestamp() : -1);
+		writeSession(db, session);
+		cacheSession(session);
+	}
+	
+	/*
+	 * Seal the run's remaining locations and mark it stopped, in one transaction
+	 */
+	public synchronized void stopSession(long runId) {
+		SQLiteDatabase db = getWritableDatabase();
+		SessionRecord previous = querySession(runId);
+		SessionRecord session = new SessionRecord(runId, SessionRecord.STATE_STOPPED,
+				previous != null ? previous.getStartTime() : -1, previous != null ? previous.getLastTimestamp() : -1);
+		beginWriteTransaction(db);
+		try {
+			sealLocations(db, runId, 0);
+			writeSession(db, session);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		forgetRunSummary(runId);
+		cacheSession(session);
+	}
+	
+	private static void writeSession(SQLiteDatabase db, SessionRecord session) {
+		ContentValues cv = new ContentValues();
+		cv.put(COLUMN_SESSION_RUN_ID, session.getRunId());
+		cv.put(COLUMN_SESSION_STATE, session.getState());
+		cv.put(COLUMN_SESSION_START_TIME, session.getStartTime());
+		cv.put(COLUMN_SESSION_LAST_TIMESTAMP, session.getLastTimestamp());
+		db.replaceOrThrow(TABLE_SESSION, null, cv);
+	}
+	
+	/*
+	 * The run's tracking state, or null if it was never tracked. Served from memory
+	 */
+	public SessionRecord querySession(long runId) {
+		LongSparseArray<SessionRecord> cache = getSessionCache();
+		synchronized (mSessionCacheLock) {
+			return cache.get(runId);
+		}
+	}
+	
+	/*
+	 * The runs started or paused, i.e. not stopped yet. Served from memory
+	 */
+	public List<SessionRecord> queryActiveSessions() {
+		List<SessionRecord> sessions = new ArrayList<SessionRecord>();
+		LongSparseArray<SessionRecord> cache = getSessionCache();
+		synchronized (mSessionCacheLock) {
+			for (int i = 0; i < cache.size(); i++) {
+				if (cache.valueAt(i).isActive())
+					sessions.add(cache.valueAt(i));
+			}
+		}
+		return sessions;
+	}
+	
+	/*
+	 * Loaded on first use, outside mSessionCacheLock: opening the database takes the helper's lock
+	 */
+	private LongSparseArray<SessionRecord> getSessionCache() {
+		synchronized (mSessionCacheLock) {
+			if (mSessionCache != null)
+				return mSessionCache;
+		}
+		LongSparseArray<SessionRecord> cache = new LongSparseArray<SessionRecord>();
+		Cursor cursor = getReadableDatabase().query(TABLE_SESSION,
+				new String[] {COLUMN_SESSION_RUN_ID, COLUMN_SESSION_STATE, COLUMN_SESSION_START_TIME,
+						COLUMN_SESSION_LAST_TIMESTAMP},
+				null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				cache.put(cursor.getLong(0), new SessionRecord(cursor.getLong(0), cursor.getInt(1),
+						cursor.getLong(2), cursor.getLong(3)));
+			}
+		} finally {
+			cursor.close();
+		}
+		synchronized (mSessionCacheLock) {
+			if (mSessionCache == null)
+				mSessionCache = cache;
+			return mSessionCache;
+		}
+	}
+	
+	private void cacheSession(SessionRecord session) {
+		LongSparseArray<SessionRecord> cache = getSessionCache();
+		synchronized (mSessionCacheLock) {
+			cache.put(session.getRunId(), session);
+		}
+	}
+	
+	/*
+	 * Fold the WAL back into the main database file, e.g. when a run stops. Passive so it
+	 * never waits on readers; the autocheckpoint picks up whatever is left later on
+	 */
+	public synchronized void checkpoint() {
+		SQLiteDatabase db = getWritableDatabase();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			pragma(db, "pragma wal_checkpoint(PASSIVE)");
+	}
+	
+	/*
+	 * Page count, free pages and page size of the database file
+	 */
+	public long[] queryPageStats() {
+		SQLiteDatabase db = getReadableDatabase();
+		return new long[] {simpleQueryForLong(db, "pragma page_count"), simpleQueryForLong(db, "pragma freelist_count"),
+				simpleQueryForLong(db, "pragma page_size")};
+	}
+	
+	/*
+	 * Incremental vacuum only works once auto_vacuum is incremental. New databases start out
+	 * that way, see onCreate()
+	 */
+	public boolean isIncrementalVacuum() {
+		return simpleQueryForLong(getReadableDatabase(), "pragma auto_vacuum") == 2;		//INCREMENTAL
+	}
+	
+	/*
+	 * Switch an older database over to incremental auto_vacuum. Takes one full VACUUM, which
+	 * rewrites the whole file: only when there is time for it
+	 */
+	public synchronized void convertToIncrementalVacuum() {
+		SQLiteDatabase db = getWritableDatabase();
+		db.execSQL("pragma auto_vacuum = incremental");
+		db.execSQL("vacuum");
+	}
+	
+	/*
+	 * Return up to pages free pages to the file system, returns the number returned
+	 */
+	public synchronized long incrementalVacuum(int pages) {
+		SQLiteDatabase db = getWritableDatabase();
+		long before = simpleQueryForLong(db, "pragma freelist_count");
+		// Every step of the statement frees a page, so it has to be stepped to the end
+		Cursor cursor = db.rawQuery("pragma incremental_vacuum(" + pages + ")", null);
+		try {
+			while (cursor.moveToNext()) {
+			}
+		} finally {
+			cursor.close();
+		}
+		return before - simpleQueryForLong(db, "pragma freelist_count");
+	}
+	
+	/*
+	 * Refresh the statistics the query planner picks the index with, one index at a time
+	 */
+	public synchronized void analyze(int index) {
+		getWritableDatabase().execSQL("analyze " + INDEXES[index]);
+	}
+	
+	public int getIndexCount() {
+		return INDEXES.length;
+	}
+	
+	public String getIndexName(int index) {
+		return INDEXES[index];
+	}
+	
+	/*
+	 * Cheap health check of an index: it has to hold exactly one entry per row of its table
+	 */
+	public boolean checkIndex(int index) {
+		SQLiteDatabase db = getReadableDatabase();
+		String table = INDEX_TABLES[index];
+		long indexed = simpleQueryForLong(db, "select count(*) from " + table + " indexed by " + INDEXES[index]);
+		long rows = simpleQueryForLong(db, "select count(*) from " + table + " not indexed");
+		return indexed == rows;
+	}
+	
+	public synchronized void reindex(int index) {
+		getWritableDatabase().execSQL("reindex " + INDEXES[index]);
+	}
+	
+	public void insertMaintenanceRecord(MaintenanceRecord record) {
+		ContentValues cv = new ContentValues();
+		cv.put(COLUMN_MAINTENANCE_JOB, record.getJob());
+		cv.put(COLUMN_MAINTENANCE_START_TIME, record.getStartTime());
+		cv.put(COLUMN_MAINTENANCE_ELAPSED, record.getElapsedMillis());
+		cv.put(COLUMN_MAINTENANCE_DONE, record.isDone() ? 1 : 0);
+		cv.put(COLUMN_MAINTENANCE_POSITION, record.getPosition());
+		cv.put(COLUMN_MAINTENANCE_PAGES_FREED, record.getPagesFreed());
+		cv.put(COLUMN_MAINTENANCE_DETAIL, record.getDetail());
+		getWritableDatabase().insert(TABLE_MAINTENANCE_LOG, null, cv);
+	}
+	
+	/*
+	 * Delete the records that started before the given time, except the latest of each job,
+	 * which tells when the job is due again
+	 */
+	public int pruneMaintenanceLog(long before) {
+		return getWritableDatabase().delete(TABLE_MAINTENANCE_LOG,
+				COLUMN_MAINTENANCE_START_TIME + " < ? and _id not in (select max(_id) from " + TABLE_MAINTENANCE_LOG +
+						" group by " + COLUMN_MAINTENANCE_JOB + ")",
+				new String[] {String.valueOf(before)});
+	}
+	
+	/*
+	 * The latest record of the job, or null if it never ran
+	 */
+	public MaintenanceRecord queryLastMaintenanceRecord(String job) {
+		List<MaintenanceRecord> records = queryMaintenanceRecords(job, 1);
+		return records.isEmpty() ? null : records.get(0);
+	}
+	
+	/*
+	 * The latest records, newest first, of one job or of all of them if job is null
+	 */
+	public List<MaintenanceRecord> queryMaintenanceRecords(String job, int limit) {
+		Cursor cursor = getReadableDatabase().query(TABLE_MAINTENANCE_LOG,
+				new String[] {COLUMN_MAINTENANCE_JOB, COLUMN_MAINTENANCE_START_TIME, COLUMN_MAINTENANCE_ELAPSED,
+						COLUMN_MAINTENANCE_DONE, COLUMN_MAINTENANCE_POSITION, COLUMN_MAINTENANCE_PAGES_FREED,
+						COLUMN_MAINTENANCE_DETAIL},
+				job != null ? COLUMN_MAINTENANCE_JOB + " = ?" : null,
+				job != null ? new String[] {job} : null,
+				null, null, "_id desc", String.valueOf(limit));
+		List<MaintenanceRecord> records = new ArrayList<MaintenanceRecord>();
+		try {
+			while (cursor.moveToNext()) {
+				MaintenanceRecord record = new MaintenanceRecord(cursor.getString(0), cursor.getLong(1));
+				record.finish(cursor.getLong(2), cursor.getInt(3) != 0, cursor.getInt(4), cursor.getLong(5),
+						cursor.getString(6));
+				records.add(record);
+			}
+		} finally {
+			cursor.close();
+		}
+		return records;
+	}
+	
+	private static long simpleQueryForLong(SQLiteDatabase db, String sql) {
+		Cursor cursor = db.rawQuery(sql, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * Run a pragma that may return a row; execSQL() refuses statements that return data
+	 */
+	private static void pragma(SQLiteDatabase db, String sql) {
+		Cursor cursor = db.rawQuery(sql, null);
+		try {
+			cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * Write a whole batch of fixes in one transaction through a compiled insert statement,
+	 * so a batch costs one journal sync instead of one per fix. The summary of every run
+	 * in the batch is updated in the same transaction
+	 */
+	public synchronized void insertLocations(LocationBatch batch) {
+		SQLiteDatabase db = getWritableDatabase();
+		if (mInsertLocationStatement == null) {
+			mInsertLocationStatement = db.compileStatement("insert into " + TABLE_LOCATION + " (" +
+					COLUMN_LOCATION_TIMESTAMP + ", " + COLUMN_LOCATION_LATITUDE + ", " +
+					COLUMN_LOCATION_LONGITUDE + ", " + COLUMN_LOCATION_ALTITUDE + ", " +
+					COLUMN_LOCATION_PROVIDER + ", " + COLUMN_LOCATION_RUN_ID + ") values (?, ?, ?, ?, ?, ?)");
+		}
+		if (mWriteSummaryStatement == null)
+			mWriteSummaryStatement = compileWriteSummary(db);
+		if (mUpdateSessionStatement == null) {
+			mUpdateSessionStatement = db.compileStatement("update " + TABLE_SESSION + " set " +
+					COLUMN_SESSION_LAST_TIMESTAMP + " = ? where " + COLUMN_SESSION_RUN_ID + " = ?");
+		}
+		if (mBatchWritten == null || mBatchWritten.length < batch.size())
+			mBatchWritten = new boolean[batch.capacity()];
+		boolean[] written = mBatchWritten;
+		Arrays.fill(written, 0, batch.size(), false);
+		boolean success = false;
+		beginWriteTransaction(db);
+		try {
+			// Concurrent sessions interleave their fixes in the batch; write one run at a time,
+			// so each run's bookkeeping and seal happen once per batch
+			for (int i = 0; i < batch.size(); i++) {
+				if (!written[i])
+					insertRunLocations(db, batch, i, written);
+			}
+			db.setTransactionSuccessful();
+			success = true;
+		} finally {
+			db.endTransaction();
+			if (!success) {
+				mSummaryCache.clear();		//Cached totals ran ahead of the rolled back rows
+				mLastCellRunId = -1;
+				mBatchSummaries.clear();
+			}
+		}
+		synchronized (mCommittedSummaryLock) {
+			for (RunSummary summary : mBatchSummaries)
+				mCommittedSummaries.put(summary.getRunId(), new RunSummary(summary));
+		}
+		mBatchSummaries.clear();
+		cacheLastTimestamps(batch);
+	}
+	
+	/*
+	 * Insert the fixes of the run of the fix at start, from there to the end of the batch,
+	 * then update its summary, session, rollups and chunks once. Fixes no newer than the run's
+	 * last chunk are left out: sealed after it they would put the chunks out of order, and
+	 * readers take everything up to its end from the chunks
+	 */
+	private void insertRunLocations(SQLiteDatabase db, LocationBatch batch, int start, boolean[] written) {
+		SQLiteStatement insert = mInsertLocationStatement;
+		long runId = batch.getRunId(start);
+		long sealedUntil = querySealedUntil(db, runId);
+		int late = 0;
+		RunSummary summary = getCachedRunSummary(db, runId);
+		// Totals of the run before this batch, the difference goes into the rollups
+		double distanceBefore = summary.getDistanceMeters();
+		long durationBefore = summary.getDurationMillis();
+		boolean newRun = summary.getPointCount() == 0;
+		for (int i = start; i < batch.size(); i++) {
+			if (batch.getRunId(i) != runId)
+				continue;
+			written[i] = true;
+			if (batch.getTimestamp(i) <= sealedUntil) {
+				late++;
+				continue;
+			}
+			insert.bindLong(1, batch.getTimestamp(i));
+			insert.bindDouble(2, batch.getLatitude(i));
+			insert.bindDouble(3, batch.getLongitude(i));
+			insert.bindDouble(4, batch.getAltitude(i));
+			String provider = batch.getProvider(i);
+			if (provider != null)
+				insert.bindString(5, provider);
+			else
+				insert.bindNull(5);
+			insert.bindLong(6, runId);
+			insert.executeInsert();
+			
+			indexCell(db, runId, batch.getLatitude(i), batch.getLongitude(i));
+			summary.add(batch.getTimestamp(i), batch.getLatitude(i), batch.getLongitude(i),
+					batch.getAltitude(i), provider, batch.getDistance(i));
+		}
+		if (late > 0)
+			Log.w(TAG, "Left out " + late + " fixes of run " + runId + " older than its sealed locations");
+		writeRunSummary(mWriteSummaryStatement, summary);
+		mBatchSummaries.add(summary);
+		// The session's last fix commits with the fixes, imported runs have no session
+		mUpdateSessionStatement.bindLong(1, summary.getLastTimestamp());
+		mUpdateSessionStatement.bindLong(2, runId);
+		mUpdateSessionStatement.execute();
+		addToRollups(db, summary.getFirstTimestamp(), summary.getDistanceMeters() - distanceBefore,
+				summary.getDurationMillis() - durationBefore, newRun ? 1 : 0);
+		// A large batch (a recovered journal, say) can fill several chunks at once
+		while (countLocationRows(db, runId) >= CHUNK_SIZE)
+			sealLocations(db, runId, CHUNK_SIZE);
+	}
+	
+	private void cacheLastTimestamps(LocationBatch batch) {
+		synchronized (mSessionCacheLock) {
+			if (mSessionCache == null)
+				return;
+			for (int i = 0; i < batch.size(); i++) {
+				long runId = batch.getRunId(i);
+				if (i < batch.size() - 1 && batch.getRunId(i + 1) == runId)
+					continue;
+				SessionRecord session = mSessionCache.get(runId);
+				if (session != null) {
+					mSessionCache.put(runId, new SessionRecord(runId, session.getState(), session.getStartTime(),
+							Math.max(session.getLastTimestamp(), batch.getTimestamp(i))));
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Record that the run passed through the cell of the point, unless it is the cell
+	 * the previous point of the run was indexed in
+	 */
+	private void indexCell(SQLiteDatabase db, long runId, double latitude, double longitude) {
+		long cell = GeoHash.encode(latitude, longitude);
+		if (runId == mLastCellRunId && cell == mLastCell)
+			return;
+		insertCell(db, runId, cell);
+		mLastCellRunId = runId;
+		mLastCell = cell;
+	}
+	
+	private void insertCell(SQLiteDatabase db, long runId, long cell) {
+		if (mInsertCellStatement == null) {
+			mInsertCellStatement = db.compileStatement("insert or ignore into " + TABLE_RUN_CELL + " (" +
+					COLUMN_CELL_CELL + ", " + COLUMN_CELL_RUN_ID + ") values (?, ?)");
+		}
+		mInsertCellStatement.bindLong(1, cell);
+		mInsertCellStatement.bindLong(2, runId);
+		mInsertCellStatement.executeInsert();
+	}
+	
+	/*
+	 * Index the cells of up to maxRuns runs recorded before the spatial index existed,
+	 * one transaction per run. Tracks are read and their cells worked out without holding
+	 * the helper, so the location writer only waits for the inserts. Returns the number of
+	 * runs indexed, 0 once all are done
+	 */
+	public int backfillCells(int maxRuns) {
+		SQLiteDatabase db = getWritableDatabase();
+		long[] runIds;
+		Cursor cursor = db.query(TABLE_CELL_BACKFILL, new String[] {COLUMN_BACKFILL_RUN_ID},
+				null, null, null, null, null, String.valueOf(maxRuns));
+		try {
+			runIds = new long[cursor.getCount()];
+			for (int i = 0; cursor.moveToNext(); i++)
+				runIds[i] = cursor.getLong(0);
+		} finally {
+			cursor.close();
+		}
+		
+		for (long runId : runIds) {
+			TrackBuffer track = queryTrack(runId);
+			long[] cells = new long[track.size()];
+			int count = 0;
+			for (int i = 0; i < track.size(); i++) {
+				long cell = GeoHash.encode(track.getLatitude(i), track.getLongitude(i));
+				if (count == 0 || cells[count - 1] != cell)
+					cells[count++] = cell;		//Consecutive fixes mostly share a cell
+			}
+			writeBackfilledCells(db, runId, cells, count);
+		}
+		return runIds.length;
+	}
+	
+	private synchronized void writeBackfilledCells(SQLiteDatabase db, long runId, long[] cells, int count) {
+		beginWriteTransaction(db);
+		try {
+			for (int i = 0; i < count; i++)
+				insertCell(db, runId, cells[i]);
+			db.delete(TABLE_CELL_BACKFILL, COLUMN_BACKFILL_RUN_ID + " = ?", new String[] {String.valueOf(runId)});
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/*
+	 * Summaries of the runs with a location in the box, give or take a cell: runs are matched
+	 * by the cells covering the box and by their own bounds. The box must not cross the antimeridian
+	 */
+	public List<RunSummary> queryRunsInBox(double south, double west, double north, double east) {
+		long[] ranges = GeoHash.cover(south, west, north, east, MAX_QUERY_CELLS);
+		// One query: the summaries come with the match, rather than one read per run
+		StringBuilder sql = new StringBuilder("select ");
+		for (String column : SUMMARY_COLUMNS)
+			sql.append(column).append(", ");
+		sql.append(COLUMN_SUMMARY_RUN_ID + " from " + TABLE_RUN_SUMMARY +
+				" where " + COLUMN_SUMMARY_MIN_LATITUDE + " <= ? and " + COLUMN_SUMMARY_MAX_LATITUDE + " >= ?" +
+				" and " + COLUMN_SUMMARY_MIN_LONGITUDE + " <= ? and " + COLUMN_SUMMARY_MAX_LONGITUDE + " >= ?" +
+				" and " + COLUMN_SUMMARY_RUN_ID + " in (select " + COLUMN_CELL_RUN_ID + " from " + TABLE_RUN_CELL + " where ");
+		String[] args = new String[ranges.length + 4];
+		args[0] = String.valueOf(north);
+		args[1] = String.valueOf(south);
+		args[2] = String.valueOf(east);
+		args[3] = String.valueOf(west);
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (i > 0)
+				sql.append(" or ");
+			sql.append("(" + COLUMN_CELL_CELL + " >= ? and " + COLUMN_CELL_CELL + " < ?)");
+			args[i + 4] = String.valueOf(ranges[i]);
+			args[i + 5] = String.valueOf(ranges[i + 1]);
+		}
+		sql.append(")");
+		
+		Cursor cursor = getReadableDatabase().rawQuery(sql.toString(), args);
+		List<RunSummary> summaries = new ArrayList<RunSummary>(cursor.getCount());
+		try {
+			while (cursor.moveToNext())
+				summaries.add(readRunSummary(cursor, cursor.getLong(SUMMARY_COLUMNS.length)));
+		} finally {
+			cursor.close();
+		}
+		return summaries;
+	}
+	
+	/*
+	 * Add to the week and month buckets of a run starting at firstTimestamp
+	 */
+	private void addToRollups(SQLiteDatabase db, long firstTimestamp, double distance, long duration, int runCount) {
+		if (mCreateRollupStatement == null) {
+			mCreateRollupStatement = db.compileStatement("insert or ignore into " + TABLE_ROLLUP + " (" +
+					COLUMN_ROLLUP_PERIOD + ", " + COLUMN_ROLLUP_BUCKET_START + ", " + COLUMN_ROLLUP_DISTANCE + ", " +
+					COLUMN_ROLLUP_DURATION + ", " + COLUMN_ROLLUP_RUN_COUNT + ") values (?, ?, 0, 0, 0)");
+			mAddRollupStatement = db.compileStatement("update " + TABLE_ROLLUP + " set " +
+					COLUMN_ROLLUP_DISTANCE + " = " + COLUMN_ROLLUP_DISTANCE + " + ?, " +
+					COLUMN_ROLLUP_DURATION + " = " + COLUMN_ROLLUP_DURATION + " + ?, " +
+					COLUMN_ROLLUP_RUN_COUNT + " = " + COLUMN_ROLLUP_RUN_COUNT + " + ?" +
+					" where " + COLUMN_ROLLUP_PERIOD + " = ? and " + COLUMN_ROLLUP_BUCKET_START + " = ?");
+		}
+		mRollupGeneration++;
+		for (int period : ROLLUP_PERIODS) {
+			long bucketStart = TrainingTotals.getBucketStart(period, firstTimestamp, mRollupCalendar);
+			mCreateRollupStatement.bindLong(1, period);
+			mCreateRollupStatement.bindLong(2, bucketStart);
+			mCreateRollupStatement.executeInsert();
+			mAddRollupStatement.bindDouble(1, distance);
+			mAddRollupStatement.bindLong(2, duration);
+			mAddRollupStatement.bindLong(3, runCount);
+			mAddRollupStatement.bindLong(4, period);
+			mAddRollupStatement.bindLong(5, bucketStart);
+			mAddRollupStatement.execute();
+		}
+	}
+	
+	/*
+	 * Recompute every rollup from the run summaries, e.g. after the time zone changed. The runs
+	 * are split into id ranges aggregated in parallel without holding the helper, then all buckets
+	 * are replaced in one transaction. If fixes were written meanwhile the totals are aggregated
+	 * again; the last attempt holds the writer off while it aggregates
+	 */
+	public void rebuildTrainingTotals(int threads) {
+		SQLiteDatabase db = getWritableDatabase();
+		for (int attempt = 1; attempt < MAX_REBUILD_ATTEMPTS; attempt++) {
+			long generation;
+			synchronized (this) {
+				generation = mRollupGeneration;
+			}
+			Map<Long, TrainingTotals> rollups = aggregateRollups(db, threads);
+			if (rollups == null)
+				return;		//Interrupted
+			synchronized (this) {
+				if (generation == mRollupGeneration) {
+					replaceRollups(db, rollups);
+					return;
+				}
+			}
+		}
+		synchronized (this) {
+			Map<Long, TrainingTotals> rollups = aggregateRollups(db, threads);
+			if (rollups != null)
+				replaceRollups(db, rollups);
+		}
+	}
+	
+	/*
+	 * Totals of every run keyed by period and bucket, or null if interrupted
+	 */
+	private static Map<Long, TrainingTotals> aggregateRollups(final SQLiteDatabase db, int threads) {
+		long minRunId = simpleQueryForLong(db, "select min(" + COLUMN_SUMMARY_RUN_ID + ") from " + TABLE_RUN_SUMMARY);
+		long maxRunId = simpleQueryForLong(db, "select max(" + COLUMN_SUMMARY_RUN_ID + ") from " + TABLE_RUN_SUMMARY);
+		threads = Math.max(1, threads);
+		long sliceSize = (maxRunId - minRunId) / threads + 1;
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Map<Long, TrainingTotals>>> slices = new ArrayList<Future<Map<Long, TrainingTotals>>>();
+		for (long from = minRunId; from <= maxRunId; from += sliceSize) {
+			final long sliceFrom = from;
+			final long sliceTo = from + sliceSize;
+			slices.add(pool.submit(new Callable<Map<Long, TrainingTotals>>() {
+				@Override
+				public Map<Long, TrainingTotals> call() {
+					return aggregateRollups(db, sliceFrom, sliceTo);
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		Map<Long, TrainingTotals> merged = new HashMap<Long, TrainingTotals>();
+		try {
+			for (Future<Map<Long, TrainingTotals>> slice : slices) {
+				for (Map.Entry<Long, TrainingTotals> entry : slice.get().entrySet()) {
+					TrainingTotals totals = entry.getValue();
+					TrainingTotals into = merged.get(entry.getKey());
+					if (into == null)
+						merged.put(entry.getKey(), totals);
+					else
+						into.add(totals.getDistanceMeters(), totals.getDurationMillis(), totals.getRunCount());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to rebuild training totals", e.getCause());
+		}
+		return merged;
+	}
+	
+	private void replaceRollups(SQLiteDatabase db, Map<Long, TrainingTotals> rollups) {
+		beginWriteTransaction(db);
+		try {
+			db.delete(TABLE_ROLLUP, null, null);
+			writeRollups(db, rollups.values());
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		mRollupCalendar = Calendar.getInstance();		//Pick up a new time zone for incremental updates too
+	}
+	
+	/*
+	 * Totals of the runs with ids in [fromRunId, toRunId), keyed by period and bucket
+	 */
+	private static Map<Long, TrainingTotals> aggregateRollups(SQLiteDatabase db, long fromRunId, long toRunId) {
+		Map<Long, TrainingTotals> rollups = new HashMap<Long, TrainingTotals>();
+		Calendar calendar = Calendar.getInstance();
+		Cursor cursor = db.query(TABLE_RUN_SUMMARY,
+				new String[] {COLUMN_SUMMARY_FIRST_TIMESTAMP, COLUMN_SUMMARY_LAST_TIMESTAMP, COLUMN_SUMMARY_DISTANCE},
+				COLUMN_SUMMARY_RUN_ID + " >= ? and " + COLUMN_SUMMARY_RUN_ID + " < ? and " +
+						COLUMN_SUMMARY_POINT_COUNT + " > 0",
+				new String[] {String.valueOf(fromRunId), String.valueOf(toRunId)},
+				null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				long first = cursor.getLong(0);
+				for (int period : ROLLUP_PERIODS) {
+					long bucketStart = TrainingTotals.getBucketStart(period, first, calendar);
+					Long key = bucketStart * ROLLUP_PERIODS.length + period;
+					TrainingTotals totals = rollups.get(key);
+					if (totals == null) {
+						totals = new TrainingTotals(period, bucketStart);
+						rollups.put(key, totals);
+					}
+					totals.add(cursor.getDouble(2), cursor.getLong(1) - first, 1);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return rollups;
+	}
+	
+	private static void writeRollups(SQLiteDatabase db, Collection<TrainingTotals> rollups) {
+		ContentValues cv = new ContentValues();
+		for (TrainingTotals totals : rollups) {
+			cv.put(COLUMN_ROLLUP_PERIOD, totals.getPeriod());
+			cv.put(COLUMN_ROLLUP_BUCKET_START, totals.getBucketStart());
+			cv.put(COLUMN_ROLLUP_DISTANCE, totals.getDistanceMeters());
+			cv.put(COLUMN_ROLLUP_DURATION, totals.getDurationMillis());
+			cv.put(COLUMN_ROLLUP_RUN_COUNT, totals.getRunCount());
+			db.insert(TABLE_ROLLUP, null, cv);
+		}
+	}
+	
+	/*
+	 * The buckets of the period starting at or after fromBucketStart, oldest first.
+	 * Buckets without any run are left out. A primary key range scan
+	 */
+	public List<TrainingTotals> queryTrainingTotals(int period, long fromBucketStart) {
+		Cursor cursor = getReadableDatabase().query(TABLE_ROLLUP,
+				new String[] {COLUMN_ROLLUP_BUCKET_START, COLUMN_ROLLUP_DISTANCE, COLUMN_ROLLUP_DURATION,
+						COLUMN_ROLLUP_RUN_COUNT},
+				COLUMN_ROLLUP_PERIOD + " = ? and " + COLUMN_ROLLUP_BUCKET_START + " >= ?",
+				new String[] {String.valueOf(period), String.valueOf(fromBucketStart)},
+				null, null, COLUMN_ROLLUP_BUCKET_START + " asc");
+		List<TrainingTotals> totals = new ArrayList<TrainingTotals>(cursor.getCount());
+		try {
+			while (cursor.moveToNext()) {
+				TrainingTotals bucket = new TrainingTotals(period, cursor.getLong(0));
+				bucket.add(cursor.getDouble(1), cursor.getLong(2), cursor.getInt(3));
+				totals.add(bucket);
+			}
+		} finally {
+			cursor.close();
+		}
+		return totals;
+	}
+	
+	/*
+	 * Seal every remaining location row of the run into chunks, e.g. once the run is stopped
+	 */
+	public synchronized void sealRun(long runId) {
+		SQLiteDatabase db = getWritableDatabase();
+		beginWriteTransaction(db);
+		try {
+			sealLocations(db, runId, 0);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		forgetRunSummary(runId);
+	}
+	
+	/*
+	 * End of the run's newest chunk, Long.MIN_VALUE if nothing is sealed yet
+	 */
+	private long querySealedUntil(SQLiteDatabase db, long runId) {
+		if (mSealedUntilStatement == null) {
+			mSealedUntilStatement = db.compileStatement("select " + COLUMN_CHUNK_LAST_TIMESTAMP + " from " +
+					TABLE_LOCATION_CHUNK + " where " + COLUMN_CHUNK_RUN_ID + " = ? order by " +
+					COLUMN_CHUNK_FIRST_TIMESTAMP + " desc limit 1");
+		}
+		mSealedUntilStatement.bindLong(1, runId);
+		try {
+			return mSealedUntilStatement.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+	
+	private int countLocationRows(SQLiteDatabase db, long runId) {
+		if (mCountLocationsStatement == null) {
+			mCountLocationsStatement = db.compileStatement("select count(*) from " + TABLE_LOCATION +
+					" where " + COLUMN_LOCATION_RUN_ID + " = ?");
+		}
+		mCountLocationsStatement.bindLong(1, runId);
+		return (int) mCountLocationsStatement.simpleQueryForLong();
+	}
+	
+	/*
+	 * Move the oldest location rows of the run (at least count of them, all of them if count is 0)
+	 * into chunks of about CHUNK_SIZE points. Rows sharing a timestamp always go into the same
+	 * chunk, so chunks never overlap and the rows left behind are all strictly newer than them
+	 */
+	private void sealLocations(SQLiteDatabase db, long runId, int count) {
+		String selection = COLUMN_LOCATION_RUN_ID + " = ?";
+		String[] selectionArgs = new String[] {String.valueOf(runId)};
+		if (count > 0) {
+			Cursor cutoff = db.query(TABLE_LOCATION, new String[] {COLUMN_LOCATION_TIMESTAMP},
+					selection, selectionArgs, null, null, COLUMN_LOCATION_TIMESTAMP + " asc",
+					(count - 1) + ", 1");		//The count-th oldest row
+			try {
+				if (!cutoff.moveToFirst())
+					return;
+				selection += " and " + COLUMN_LOCATION_TIMESTAMP + " <= ?";
+				selectionArgs = new String[] {String.valueOf(runId), String.valueOf(cutoff.getLong(0))};
+			} finally {
+				cutoff.close();
+			}
+		}
+		
+		Cursor cursor = db.query(TABLE_LOCATION, LOCATION_COLUMNS, selection, selectionArgs,
+				null, null, COLUMN_LOCATION_TIMESTAMP + " asc");
+		TrackBuffer track = new TrackBuffer(cursor.getCount());
+		String provider = null;
+		try {
+			while (cursor.moveToNext()) {
+				track.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3));
+				provider = cursor.getString(4);		//A chunk keeps a single provider, the latest one
+			}
+		} finally {
+			cursor.close();
+		}
+		int size = track.size();
+		if (size == 0)
+			return;
+		
+		for (int offset = 0; offset < size; ) {
+			int end = Math.min(offset + CHUNK_SIZE, size);
+			while (end < size && track.getTimestamp(end) == track.getTimestamp(end - 1))
+				end++;
+			insertChunk(db, runId, track, offset, end - offset, provider, TrackCodec.ENCODING_DELTA_VARINT);
+			offset = end;
+		}
+		db.delete(TABLE_LOCATION, selection, selectionArgs);
+	}
+	
+	/*
+	 * Encode count points of the track starting at offset into a new chunk row
+	 */
+	private void insertChunk(SQLiteDatabase db, long runId, TrackBuffer track, int offset, int count,
+			String provider, int encoding) {
+		if (mInsertChunkStatement == null) {
+			mInsertChunkStatement = db.compileStatement("insert into " + TABLE_LOCATION_CHUNK + " (" +
+					COLUMN_CHUNK_RUN_ID + ", " + COLUMN_CHUNK_FIRST_TIMESTAMP + ", " +
+					COLUMN_CHUNK_LAST_TIMESTAMP + ", " + COLUMN_CHUNK_POINT_COUNT + ", " +
+					COLUMN_CHUNK_PROVIDER + ", " + COLUMN_CHUNK_DATA + ", " + COLUMN_CHUNK_ENCODING + ")" +
+					" values (?, ?, ?, ?, ?, ?, ?)");
+		}
+		byte[] data = TrackCodec.encode(track.getTimestamps(), track.getLatitudes(),
+				track.getLongitudes(), track.getAltitudes(), offset, count);
+		if (encoding == TrackCodec.ENCODING_DEFLATED)
+			data = TrackCodec.deflate(data);
+		SQLiteStatement insert = mInsertChunkStatement;
+		insert.bindLong(1, runId);
+		insert.bindLong(2, track.getTimestamp(offset));
+		insert.bindLong(3, track.getTimestamp(offset + count - 1));
+		insert.bindLong(4, count);
+		if (provider != null)
+			insert.bindString(5, provider);
+		else
+			insert.bindNull(5);
+		insert.bindBlob(6, data);
+		insert.bindLong(7, encoding);
+		insert.executeInsert();
+	}
+	
+	/*
+	 * Runs whose last location is older than the cutoff of a tier they haven't reached yet,
+	 * oldest first, at most limit of them
+	 */
+	public List<RunSummary> queryRetentionCandidates(long simplifyBefore, long archiveBefore, int limit) {
+		Cursor cursor = getReadableDatabase().query(TABLE_RUN_SUMMARY,
+				new String[] {COLUMN_SUMMARY_RUN_ID},
+				"(" + COLUMN_SUMMARY_TIER + " < ? and " + COLUMN_SUMMARY_LAST_TIMESTAMP + " < ?) or (" +
+						COLUMN_SUMMARY_TIER + " < ? and " + COLUMN_SUMMARY_LAST_TIMESTAMP + " < ?)",
+				new String[] {String.valueOf(RetentionPolicy.TIER_SIMPLIFIED), String.valueOf(simplifyBefore),
+						String.valueOf(RetentionPolicy.TIER_ARCHIVED), String.valueOf(archiveBefore)},
+				null, null, COLUMN_SUMMARY_LAST_TIMESTAMP + " asc", String.valueOf(limit));
+		List<RunSummary> summaries = new ArrayList<RunSummary>();
+		try {
+			while (cursor.moveToNext()) {
+				RunSummary summary = queryRunSummary(cursor.getLong(0));
+				if (summary != null)
+					summaries.add(summary);
+			}
+		} finally {
+			cursor.close();
+		}
+		return summaries;
+	}
+	
+	/*
+	 * Bytes of encoded location data stored for the run
+	 */
+	public long queryChunkBytes(long runId) {
+		Cursor cursor = getReadableDatabase().rawQuery("select sum(length(" + COLUMN_CHUNK_DATA + ")) from " +
+				TABLE_LOCATION_CHUNK + " where " + COLUMN_CHUNK_RUN_ID + " = ?", new String[] {String.valueOf(runId)});
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * Replace all stored locations of a (sealed) run with the given track and move the run
+	 * to the given tier. Archived runs become one deflated chunk, others regular chunks.
+	 * The run's summary totals are left alone, they keep describing the original track
+	 */
+	public synchronized void rewriteTrack(long runId, TrackBuffer track, int tier) {
+		SQLiteDatabase db = getWritableDatabase();
+		beginWriteTransaction(db);
+		try {
+			String provider = null;
+			Cursor chunks = queryChunks(db, runId, Long.MIN_VALUE, Long.MAX_VALUE, COLUMN_CHUNK_LAST_TIMESTAMP + " desc", "1");
+			try {
+				if (chunks.moveToFirst())
+					provider = chunks.getString(0);
+			} finally {
+				chunks.close();
+			}
+			String[] selectionArgs = new String[] {String.valueOf(runId)};
+			db.delete(TABLE_LOCATION_CHUNK, COLUMN_CHUNK_RUN_ID + " = ?", selectionArgs);
+			if (tier >= RetentionPolicy.TIER_ARCHIVED) {
+				if (!track.isEmpty())
+					insertChunk(db, runId, track, 0, track.size(), provider, TrackCodec.ENCODING_DEFLATED);
+			} else {
+				for (int offset = 0; offset < track.size(); offset += CHUNK_SIZE)
+					insertChunk(db, runId, track, offset, Math.min(CHUNK_SIZE, track.size() - offset),
+							provider, TrackCodec.ENCODING_DELTA_VARINT);
+			}
+			ContentValues cv = new ContentValues();
+			cv.put(COLUMN_SUMMARY_TIER, tier);
+			db.update(TABLE_RUN_SUMMARY, cv, COLUMN_SUMMARY_RUN_ID + " = ?", selectionArgs);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		RunSummary cached = mSummaryCache.get(runId);
+		if (cached != null)
+			cached.setTier(tier);
+		synchronized (mCommittedSummaryLock) {
+			cached = mCommittedSummaries.get(runId);
+			if (cached != null)
+				cached.setTier(tier);
+		}
+	}
+	
+	/*
+	 * Done being written, the row has the same totals
+	 */
+	private void forgetRunSummary(long runId) {
+		mSummaryCache.remove(runId);
+		synchronized (mCommittedSummaryLock) {
+			mCommittedSummaries.remove(runId);
+		}
+	}
+	
+	private RunSummary getCachedRunSummary(SQLiteDatabase db, long runId) {
+		RunSummary summary = mSummaryCache.get(runId);
+		if (summary == null) {
+			summary = readRunSummary(db, runId);
+			if (summary == null)
+				summary = new RunSummary(runId);
+			mSummaryCache.put(runId, summary);
+		}
+		return summary;
+	}
+	
+	/*
+	 * Returns a copy of the run's summary in a single-row read, or null if the run has no locations.
+	 * A run being written is served from memory, as of its last committed batch
+	 */
+	public RunSummary queryRunSummary(long runId) {
+		synchronized (mCommittedSummaryLock) {
+			RunSummary summary = mCommittedSummaries.get(runId);
+			if (summary != null)
+				return new RunSummary(summary);
+		}
+		return readRunSummary(getReadableDatabase(), runId);
+	}
+	
+	private static RunSummary readRunSummary(SQLiteDatabase db, long runId) {
+		Cursor cursor = db.query(TABLE_RUN_SUMMARY,
+				SUMMARY_COLUMNS,
+				COLUMN_SUMMARY_RUN_ID + " = ?",
+				new String[] {String.valueOf(runId)},
+				null, null, null);
+		try {
+			if (!cursor.moveToFirst())
+				return null;
+			return readRunSummary(cursor, runId);
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/*
+	 * The summary in the cursor's current row, which starts with SUMMARY_COLUMNS
+	 */
+	private static RunSummary readRunSummary(Cursor cursor, long runId) {
+		RunSummary summary = new RunSummary(runId);
+		summary.setPointCount(cursor.getInt(0));
+		summary.setDistanceMeters(cursor.getDouble(1));
+		summary.setBounds(cursor.getDouble(2), cursor.getDouble(3), cursor.getDouble(4), cursor.getDouble(5));
+		summary.setFirstTimestamp(cursor.getLong(6));
+		summary.setLast(cursor.getLong(7), cursor.getDouble(8), cursor.getDouble(9),
+				cursor.getDouble(10), cursor.getString(11));
+		summary.setTier(cursor.getInt(12));
+		return summary;
+	}
+	
+	/*
+	 * In WAL mode an immediate (non-exclusive) transaction lets readers carry on while we write
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void beginWriteTransaction(SQLiteDatabase db) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			db.beginTransactionNonExclusive();
+		else
+			db.beginTransaction();
 	}
 	
 	public RunCursor queryRuns() {
-		//Equivalent to "select * from run order by start_date asc"
+		//Equivalent to "select _id, start_date from run order by start_date asc"
 		Cursor wrapped = getReadableDatabase().query(TABLE_RUN, 
-				null, null, null, null, null, COLUMN_RUN_START_DATE + " asc");
+				RUN_COLUMNS, null, null, null, null, COLUMN_RUN_START_DATE + " asc");
 		return new RunCursor(wrapped);
 	}
 	
+	/*
+	 * At most limit runs in start date order, starting after the run with the given start date
+	 * and id. Pass Long.MIN_VALUE and -1 for the first page, then the values of the last run
+	 * of the previous page. The id breaks ties between runs started at the same time
+	 */
+	public RunCursor queryRuns(long afterStartDate, long afterId, int limit) {
+		String after = String.valueOf(afterStartDate);
+		Cursor wrapped = getReadableDatabase().query(TABLE_RUN,
+				RUN_COLUMNS,
+				COLUMN_RUN_START_DATE + " > ? or (" + COLUMN_RUN_START_DATE + " = ? and " + COLUMN_RUN_ID + " > ?)",
+				new String[] {after, after, String.valueOf(afterId)},
+				null,
+				null,
+				COLUMN_RUN_START_DATE + " asc, " + COLUMN_RUN_ID + " asc",
+				String.valueOf(limit));
+		return new RunCursor(wrapped);
+	}
+	
+	/*
+	 * The run with the given id, or null if there is none. Read through a compiled
+	 * statement, so no cursor (and no CursorWindow) is created for the single value
+	 */
+	public Run queryRun(long id) {
+		SQLiteDatabase db = getReadableDatabase();
+		long startDate;
+		synchronized (mReadStatementLock) {
+			if (mRunStartDateStatement == null) {
+				mRunStartDateStatement = db.compileStatement("select " + COLUMN_RUN_START_DATE +
+						" from " + TABLE_RUN + " where " + COLUMN_RUN_ID + " = ?");
+			}
+			mRunStartDateStatement.bindLong(1, id);
+			try {
+				startDate = mRunStartDateStatement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return null;		//No such run
+			}
+		}
+		Run run = new Run();
+		run.setId(id);
+		run.setStartDate(new Date(startDate));
+		return run;
+	}
+	
 	public RunCursor queryRuns(long id) {
 		Cursor wrapped = getReadableDatabase().query(TABLE_RUN,
-				null, // All columns 
+				RUN_COLUMNS, // Only the columns a Run needs
 				COLUMN_RUN_ID + " = ?", //Look for a run ID
 				new String[] {String.valueOf(id)}, //with this value
 				null, //group by
@@ -87,26 +1463,239 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 	}
 	
 	public LocationCursor queryLastLocationForRun(long runId) {
-		Cursor wrapped = getReadableDatabase().query(TABLE_LOCATION, 
-				null, // All columns 
+		SQLiteDatabase db = getReadableDatabase();
+		Cursor wrapped = db.query(TABLE_LOCATION, 
+				LOCATION_COLUMNS, 
 				COLUMN_LOCATION_RUN_ID + " = ?", //limit to the given run
 				new String[] {String.valueOf(runId)},  
 				null, //group by 
 				null, //having 
 				COLUMN_LOCATION_TIMESTAMP + " desc", //order by latest first
 				"1"); //Limit 1
-		return new LocationCursor(wrapped);
+		if (wrapped.getCount() > 0)
+			return new LocationCursor(wrapped);
+		wrapped.close();
+		
+		// Everything has been sealed, the last location is the end of the newest chunk
+		MatrixCursor last = new MatrixCursor(LOCATION_COLUMNS, 1);
+		Cursor chunks = queryChunks(db, runId, Long.MIN_VALUE, Long.MAX_VALUE, COLUMN_CHUNK_LAST_TIMESTAMP + " desc", "1");
+		try {
+			if (chunks.moveToFirst())
+				addChunkRows(last, runId, chunks.getString(0), TrackCodec.unwrap(chunks.getBlob(1), chunks.getInt(2)),
+						chunks.getLong(3), Long.MAX_VALUE);
+		} finally {
+			chunks.close();
+		}
+		return new LocationCursor(last);
 	}
 	
+	/*
+	 * All locations of the run in time order: the sealed chunks decoded, followed by
+	 * the rows that have not been sealed yet.
+	 *
+	 * Reads that take both never hold a lock against the writer. The unsealed rows are read
+	 * first and the chunks after them: a seal in between moves rows into a chunk that is then
+	 * read as well, so nothing is missed, and the rows it moved are dropped again by their
+	 * timestamp, which is never newer than the end of the last chunk read
+	 */
 	public LocationCursor queryLocationsForRun(long runId) {
-		Cursor wrapped = getReadableDatabase().query(TABLE_LOCATION, 
-				null, 
-				COLUMN_LOCATION_RUN_ID + " = ?", 	 //Limit to the given run
-				new String[] {String.valueOf(runId)},
+		return queryLocationsForRun(runId, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/*
+	 * The locations of the run from fromMillis (inclusive) to toMillis (exclusive) in time order.
+	 * Only the chunks overlapping the window are decoded
+	 */
+	public LocationCursor queryLocationsForRun(long runId, long fromMillis, long toMillis) {
+		SQLiteDatabase db = getReadableDatabase();
+		Cursor rows = db.query(TABLE_LOCATION, 
+				LOCATION_COLUMNS, 
+				COLUMN_LOCATION_RUN_ID + " = ? and " + COLUMN_LOCATION_TIMESTAMP + " >= ? and " +
+						COLUMN_LOCATION_TIMESTAMP + " < ?", 	 //Limit to the given run and window
+				new String[] {String.valueOf(runId), String.valueOf(fromMillis), String.valueOf(toMillis)},
 				null, 	//group by
 				null, 	//having
 				COLUMN_LOCATION_TIMESTAMP + " asc"); //Ordered by timestamp
-		return new LocationCursor(wrapped);
+		Cursor chunks = null;
+		try {
+			rows.getCount();		//Runs the query now, before the chunks are read
+			chunks = queryChunks(db, runId, fromMillis, toMillis, COLUMN_CHUNK_FIRST_TIMESTAMP + " asc", null);
+			if (chunks.getCount() == 0)
+				return new LocationCursor(rows);
+			MatrixCursor sealed = new MatrixCursor(LOCATION_COLUMNS, chunks.getCount() * CHUNK_SIZE + rows.getCount());
+			long fence = Long.MIN_VALUE;
+			while (chunks.moveToNext()) {
+				addChunkRows(sealed, runId, chunks.getString(0), TrackCodec.unwrap(chunks.getBlob(1), chunks.getInt(2)),
+						fromMillis, toMillis);
+				fence = Math.max(fence, chunks.getLong(3));
+			}
+			while (rows.moveToNext()) {
+				if (rows.getLong(0) > fence)
+					sealed.addRow(new Object[] {rows.getLong(0), rows.getDouble(1), rows.getDouble(2),
+							rows.getDouble(3), rows.getString(4), rows.getLong(5)});
+			}
+			rows.close();
+			return new LocationCursor(sealed);
+		} catch (RuntimeException e) {
+			rows.close();
+			throw e;
+		} finally {
+			if (chunks != null)
+				chunks.close();
+		}
+	}
+	
+	/*
+	 * Chunks of the run overlapping [fromMillis, toMillis): provider, data, encoding, last timestamp
+	 */
+	private static Cursor queryChunks(SQLiteDatabase db, long runId, long fromMillis, long toMillis,
+			String orderBy, String limit) {
+		return db.query(TABLE_LOCATION_CHUNK,
+				new String[] {COLUMN_CHUNK_PROVIDER, COLUMN_CHUNK_DATA, COLUMN_CHUNK_ENCODING, COLUMN_CHUNK_LAST_TIMESTAMP},
+				COLUMN_CHUNK_RUN_ID + " = ? and " + COLUMN_CHUNK_LAST_TIMESTAMP + " >= ? and " +
+						COLUMN_CHUNK_FIRST_TIMESTAMP + " < ?",
+				new String[] {String.valueOf(runId), String.valueOf(fromMillis), String.valueOf(toMillis)},
+				null, null, orderBy, limit);
+	}
+	
+	/*
+	 * Decode the points of a chunk within [fromMillis, toMillis) into cursor rows laid out like LOCATION_COLUMNS
+	 */
+	private static void addChunkRows(MatrixCursor cursor, long runId, String provider, byte[] data,
+			long fromMillis, long toMillis) {
+		TrackBuffer track = new TrackBuffer(TrackCodec.getPointCount(data));
+		track.addChunk(data);
+		for (int i = 0; i < track.size(); i++) {
+			long timestamp = track.getTimestamp(i);
+			if (timestamp >= fromMillis && timestamp < toMillis)
+				cursor.addRow(new Object[] {timestamp, track.getLatitude(i), track.getLongitude(i),
+						track.getAltitude(i), provider, runId});
+		}
+	}
+	
+	/*
+	 * Fill the buffer with the next page of at most maxPoints points of the run, those after
+	 * afterTimestamp and before toMillis. Chunks are decoded one at a time and the unsealed rows
+	 * read with a limit, so a page costs about maxPoints points however long the run is.
+	 * A full page never ends halfway through a timestamp (unless the whole page shares one),
+	 * so the timestamp of its last point is the key for the next page. Returns false if this
+	 * is the last page. Rows and chunks are read as in queryLocationsForRun()
+	 */
+	public boolean queryTrackPage(long runId, long afterTimestamp, long toMillis, int maxPoints, TrackBuffer into) {
+		SQLiteDatabase db = getReadableDatabase();
+		// A seal between the reads can push rows the page needs past the row limit, read again
+		boolean complete;
+		int attempts = 0;
+		do {
+			complete = readTrackPage(db, runId, afterTimestamp, toMillis, maxPoints, into);
+		} while (!complete && ++attempts < MAX_READ_ATTEMPTS);
+		
+		if (into.size() < maxPoints)
+			return false;
+		// Leave points sharing the last timestamp to the next page, they may continue past this one
+		int size = into.size();
+		long last = into.getTimestamp(size - 1);
+		while (size > 1 && into.getTimestamp(size - 1) == last)
+			size--;
+		if (into.getTimestamp(size - 1) != last)
+			into.truncate(size);
+		return true;
+	}
+	
+	/*
+	 * Returns false if a seal got in between and dropping the rows it moved left the page short
+	 */
+	private static boolean readTrackPage(SQLiteDatabase db, long runId, long afterTimestamp, long toMillis,
+			int maxPoints, TrackBuffer into) {
+		into.clear();
+		Cursor rows = db.query(TABLE_LOCATION, LOCATION_COLUMNS,
+				COLUMN_LOCATION_RUN_ID + " = ? and " + COLUMN_LOCATION_TIMESTAMP + " > ? and " +
+						COLUMN_LOCATION_TIMESTAMP + " < ?",
+				new String[] {String.valueOf(runId), String.valueOf(afterTimestamp), String.valueOf(toMillis)},
+				null, null, COLUMN_LOCATION_TIMESTAMP + " asc", String.valueOf(maxPoints));
+		try {
+			rows.getCount();		//Before the chunks, see queryLocationsForRun()
+			long fence = Long.MIN_VALUE;
+			Cursor chunks = db.query(TABLE_LOCATION_CHUNK,
+					new String[] {COLUMN_CHUNK_DATA, COLUMN_CHUNK_ENCODING, COLUMN_CHUNK_LAST_TIMESTAMP},
+					COLUMN_CHUNK_RUN_ID + " = ? and " + COLUMN_CHUNK_LAST_TIMESTAMP + " > ? and " +
+							COLUMN_CHUNK_FIRST_TIMESTAMP + " < ?",
+					new String[] {String.valueOf(runId), String.valueOf(afterTimestamp), String.valueOf(toMillis)},
+					null, null, COLUMN_CHUNK_FIRST_TIMESTAMP + " asc");
+			try {
+				TrackBuffer chunk = null;
+				while (into.size() < maxPoints && chunks.moveToNext()) {
+					byte[] data = TrackCodec.unwrap(chunks.getBlob(0), chunks.getInt(1));
+					fence = Math.max(fence, chunks.getLong(2));
+					if (chunk == null)
+						chunk = new TrackBuffer(TrackCodec.getPointCount(data));
+					chunk.clear();
+					chunk.addChunk(data);
+					for (int i = 0; i < chunk.size() && into.size() < maxPoints; i++) {
+						long timestamp = chunk.getTimestamp(i);
+						if (timestamp > afterTimestamp && timestamp < toMillis)
+							into.add(timestamp, chunk.getLatitude(i), chunk.getLongitude(i), chunk.getAltitude(i));
+					}
+				}
+			} finally {
+				chunks.close();
+			}
+			
+			// Unsealed rows are all newer than the chunks, bar those a seal just moved
+			boolean dropped = false;
+			while (into.size() < maxPoints && rows.moveToNext()) {
+				if (rows.getLong(0) > fence)
+					into.add(rows.getLong(0), rows.getDouble(1), rows.getDouble(2), rows.getDouble(3));
+				else
+					dropped = true;
+			}
+			return !(dropped && into.size() < maxPoints && rows.getCount() == maxPoints);
+		} finally {
+			rows.close();
+		}
+	}
+	
+	/*
+	 * Load every point of the run into a TrackBuffer in one pass: chunks are decoded
+	 * straight into its arrays and the unsealed rows read by column position. Rows and
+	 * chunks are read as in queryLocationsForRun()
+	 */
+	public TrackBuffer queryTrack(long runId) {
+		SQLiteDatabase db = getReadableDatabase();
+		String[] selectionArgs = new String[] {String.valueOf(runId)};
+		Cursor rows = db.query(TABLE_LOCATION, LOCATION_COLUMNS,
+				COLUMN_LOCATION_RUN_ID + " = ?", selectionArgs,
+				null, null, COLUMN_LOCATION_TIMESTAMP + " asc");
+		try {
+			int total = rows.getCount();		//Runs the query now, before the chunks are read
+			Cursor chunks = db.query(TABLE_LOCATION_CHUNK,
+					new String[] {COLUMN_CHUNK_POINT_COUNT, COLUMN_CHUNK_DATA, COLUMN_CHUNK_ENCODING,
+							COLUMN_CHUNK_LAST_TIMESTAMP},
+					COLUMN_CHUNK_RUN_ID + " = ?", selectionArgs,
+					null, null, COLUMN_CHUNK_FIRST_TIMESTAMP + " asc");
+			TrackBuffer track;
+			long fence = Long.MIN_VALUE;
+			try {
+				// Size the buffer up front so it never grows, rows moved by a seal counted twice at worst
+				while (chunks.moveToNext())
+					total += chunks.getInt(0);
+				track = new TrackBuffer(total);
+				chunks.moveToPosition(-1);
+				while (chunks.moveToNext()) {
+					track.addChunk(TrackCodec.unwrap(chunks.getBlob(1), chunks.getInt(2)));
+					fence = Math.max(fence, chunks.getLong(3));
+				}
+			} finally {
+				chunks.close();
+			}
+			while (rows.moveToNext()) {
+				if (rows.getLong(0) > fence)
+					track.add(rows.getLong(0), rows.getDouble(1), rows.getDouble(2), rows.getDouble(3));
+			}
+			return track;
+		} finally {
+			rows.close();
+		}
 	}
 	
 	/*
@@ -115,9 +1704,14 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 	 * the current row
 	 */
 	public static class RunCursor extends CursorWrapper {
+		// Column positions, looked up once instead of by name on every row
+		private final int mIdIndex;
+		private final int mStartDateIndex;
 		
 		public RunCursor(Cursor c) {
 			super(c);
+			mIdIndex = c.getColumnIndexOrThrow(COLUMN_RUN_ID);
+			mStartDateIndex = c.getColumnIndexOrThrow(COLUMN_RUN_START_DATE);
 		}
 		
 		/*
@@ -129,30 +1723,41 @@ public class RunDatebaseHelper extends SQLiteOpenHelper {	//SQLiteOpenHelper is
 				return null;
 			
 			Run run = new Run();
-			long runId = getLong(getColumnIndex(COLUMN_RUN_ID));
+			long runId = getLong(mIdIndex);
 			run.setId(runId);
-			long startDate = getLong(getColumnIndex(COLUMN_RUN_START_DATE));
+			long startDate = getLong(mStartDateIndex);
 			run.setStartDate(new Date(startDate));
 			return run;
 		}
 	}
 	
 	public static class LocationCursor extends CursorWrapper {
+		private final int mTimestampIndex;
+		private final int mLatitudeIndex;
+		private final int mLongitudeIndex;
+		private final int mAltitudeIndex;
+		private final int mProviderIndex;
+		
 		public LocationCursor(Cursor cursor) {
 			super(cursor);
+			mTimestampIndex = cursor.getColumnIndexOrThrow(COLUMN_LOCATION_TIMESTAMP);
+			mLatitudeIndex = cursor.getColumnIndexOrThrow(COLUMN_LOCATION_LATITUDE);
+			mLongitudeIndex = cursor.getColumnIndexOrThrow(COLUMN_LOCATION_LONGITUDE);
+			mAltitudeIndex = cursor.getColumnIndexOrThrow(COLUMN_LOCATION_ALTITUDE);
+			mProviderIndex = cursor.getColumnIndexOrThrow(COLUMN_LOCATION_PROVIDER);
 		}
 		
 		public Location getLocation() {
 			if (isBeforeFirst() || isAfterLast())
 				return null;
 			// First get the provider out so you can use the constructor
-			String provider = getString(getColumnIndex(COLUMN_LOCATION_PROVIDER));
+			String provider = getString(mProviderIndex);
 			Location location = new Location(provider);
 			// Populate the remaining properties
-			location.setLatitude(getDouble(getColumnIndex(COLUMN_LOCATION_LATITUDE)));
-			location.setLongitude(getDouble(getColumnIndex(COLUMN_LOCATION_LONGITUDE)));
-			location.setAltitude(getDouble(getColumnIndex(COLUMN_LOCATION_ALTITUDE)));
-			location.setTime(getLong(getColumnIndex(COLUMN_LOCATION_TIMESTAMP)));
+			location.setLatitude(getDouble(mLatitudeIndex));
+			location.setLongitude(getDouble(mLongitudeIndex));
+			location.setAltitude(getDouble(mAltitudeIndex));
+			location.setTime(getLong(mTimestampIndex));
 			return location;
 		}
 	}
@@ -1,15 +1,17 @@
 package com.bignerdranch.android.runtracker;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -30,18 +32,40 @@ public class RunFragment extends Fragment {
 	private Location mLastLocation;
 	private Run mRun;
 	
-	private BroadcastReceiver mLocationReceiver = new LocationReceiver() {	//LocationReceiver
+	private Location mFixLocation;				//Reused for every fix delivered
+	private TrackingService.LocalBinder mTrackingBinder;
+	private FixDispatcher.Subscription mFixSubscription;
+	
+	// Connected while TrackingService runs, which is while any run is tracked
+	private ServiceConnection mTrackingConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			mTrackingBinder = (TrackingService.LocalBinder) service;
+			subscribeToFixes();
+		}
+		
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mTrackingBinder = null;
+			cancelFixSubscription();
+		}
+	};
+	
+	private FixDispatcher.Subscriber mFixSubscriber = new FixDispatcher.Subscriber() {
 		@Override
-		protected void onLocationReceived(Context context, Location loc) {
-			if (!mRunManager.isTrackingRun()) 
+		public void onFix(FixDispatcher.Fix fix) {
+			if (mRun == null || fix.getRunId() != mRun.getId())
 				return;
-			mLastLocation = loc;
+			if (mFixLocation == null)
+				mFixLocation = new Location(fix.getProvider());
+			fix.copyTo(mFixLocation);
+			mLastLocation = mFixLocation;
 			if (isVisible()) 							//True if the current fragment is visible to the user
 				updateUI();
 		}
 		
 		@Override
-		protected void onProviderEnabledChanged(boolean enabled) {
+		public void onProviderEnabledChanged(boolean enabled) {
 			int toastText = enabled ? R.string.gps_enabled : R.string.gps_disabled;
 			Toast.makeText(getActivity(), toastText, Toast.LENGTH_LONG).show();
 		}
@@ -89,6 +113,7 @@ public class RunFragment extends Fragment {
 			public void onClick(View v) {
 				if (mRun == null) {
 					mRun = mRunManager.startNewRun();
+					subscribeToFixes();
 				} else {
 					mRunManager.startTrackingRun(mRun);
 				}
@@ -100,7 +125,7 @@ public class RunFragment extends Fragment {
 		mStopButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				mRunManager.stopRun();
+				mRunManager.stopRun(mRun.getId());
 				updateUI();
 			}
 		});
@@ -122,7 +147,6 @@ public class RunFragment extends Fragment {
 	 * Enable the Start button when the track is not running
 	 */
 	private void updateUI() {
-		boolean started = mRunManager.isTrackingRun();
 		boolean trackingThisRun = mRunManager.isTrackingRun(mRun);
 		
 		if (mRun != null) {
@@ -142,8 +166,8 @@ public class RunFragment extends Fragment {
 		}
 		mDurationTextView.setText(Run.formatDuration(durationSecond));
 		
-		mStartButton.setEnabled(!started);
-		mStopButton.setEnabled(started && trackingThisRun);
+		mStartButton.setEnabled(!trackingThisRun);
+		mStopButton.setEnabled(trackingThisRun);
 	}
 	
 	/*
@@ -152,8 +176,8 @@ public class RunFragment extends Fragment {
 	@Override
 	public void onStart() {
 		super.onStart();
-		getActivity().registerReceiver(mLocationReceiver, 		//Register a BroadcastReceiver to be run in the main activity thread
-					new IntentFilter(RunManager.ACTION_LOCATION));
+		// Without BIND_AUTO_CREATE: connects whenever tracking starts, doesn't start it
+		getActivity().bindService(new Intent(getActivity(), TrackingService.class), mTrackingConnection, 0);
 	}
 	
 	/*
@@ -161,10 +185,30 @@ public class RunFragment extends Fragment {
 	 */
 	@Override
 	public void onStop() {
-		getActivity().unregisterReceiver(mLocationReceiver);			//Unregister the receiver
+		getActivity().unbindService(mTrackingConnection);
+		mTrackingBinder = null;
+		cancelFixSubscription();
 		super.onStop();
 	}
 	
+	/*
+	 * Fixes of this fragment's run on the main thread, only the newest if several arrived since
+	 * the last frame. Other runs tracked at the same time don't wake the fragment
+	 */
+	private void subscribeToFixes() {
+		cancelFixSubscription();
+		if (mTrackingBinder != null && mRun != null)
+			mFixSubscription = mTrackingBinder.subscribe(mFixSubscriber, mRun.getId(), Looper.getMainLooper(), true);
+	}
+	
+	private void cancelFixSubscription() {
+		if (mFixSubscription != null) {
+			mFixSubscription.cancel();
+			Log.d(TAG, mFixSubscription.toString());
+			mFixSubscription = null;
+		}
+	}
+	
 	/*
 	 * A subclass of LoaderCallbacks interface for a client to interact with the LoaderManager. 
 	 * LoaderCallbacks implementation is associated with the loader, and will be called when the loader state changes.
@@ -183,6 +227,7 @@ public class RunFragment extends Fragment {
 		@Override
 		public void onLoadFinished(Loader<Run> loader, Run run) {	//Called when a previously created loader has finished its load.
 			mRun = run;
+			subscribeToFixes();
 			updateUI();
 		}
 		
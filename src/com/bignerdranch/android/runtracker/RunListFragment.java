@@ -1,13 +1,16 @@
 package com.bignerdranch.android.runtracker;
 
+import java.util.List;
+
 import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -15,23 +18,18 @@ import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.content.Loader;
-import android.support.v4.widget.CursorAdapter;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.ListView;
-import android.widget.TextView;
-
-import com.bignerdranch.android.runtracker.RunDatebaseHelper.RunCursor;
 
 /*
- * Now the Cursor is being loaded on the UI thread, it is not a good practice.
+ * The list of runs, loaded a page at a time in the background, see RunPageAdapter
  */
-public class RunListFragment extends ListFragment implements LoaderCallbacks<Cursor>{
+public class RunListFragment extends ListFragment implements LoaderCallbacks<List<Run>>{
 	private static final String TAG = "RunListFragment";
 	private static final int REQUEST_NEW_RUN = 0;
 	private static final int START_TRACKING = 1;
@@ -40,6 +38,14 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 	private View mViewOfListItem;
 	private long mRunId;
 	
+	// Runs were added in among the loaded ones, the pages no longer line up: start over
+	private BroadcastReceiver mRunsChangedReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			getLoaderManager().restartLoader(0, null, RunListFragment.this);
+		}
+	};
+	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -47,6 +53,14 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 		// Initalize the loader to load the list of runs
 		getLoaderManager().initLoader(0, null, this);		//LoaderManager calls "this" to report loader events
 		mIsDefaultColorSet = false;
+		LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mRunsChangedReceiver,
+				new IntentFilter(RunManager.ACTION_RUNS_CHANGED));
+	}
+	
+	@Override
+	public void onDestroy() {
+		LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mRunsChangedReceiver);
+		super.onDestroy();
 	}
 	
 	@Override
@@ -86,7 +100,7 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 				
 				if (runLoader.isTrackingRun(run)) {
 					mViewOfListItem.setBackgroundColor(Color.GREEN);
-					((RunCursorAdapter) getListAdapter()).notifyDataSetChanged();
+					((RunPageAdapter) getListAdapter()).notifyDataSetChanged();
 					Notification notification = new NotificationCompat.Builder(getActivity())
 						.setTicker(res.getString(R.string.tracking_run))
 						.setSmallIcon(android.R.drawable.ic_menu_report_image)				//Configure small icon
@@ -106,7 +120,9 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 	
 	@Override
 	public void onListItemClick(ListView listview, View view, int pos, long id) {
-		// The id argument will be the Run ID; CursorAdapter gives us this for 
+		// The id argument will be the Run ID; RunPageAdapter gives us this for
+		if (id == -1)
+			return;		//Its page is still loading
 		Intent intent = new Intent(getActivity(), RunActivity.class);
 		intent.putExtra(RunActivity.EXTRA_RUN_ID, id);
 		startActivityForResult(intent, START_TRACKING);
@@ -124,9 +140,9 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 	 * requires id if have more than one loader of the same type
 	 */
 	@Override
-	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+	public Loader<List<Run>> onCreateLoader(int id, Bundle args) {
 		// You only ever load the runs, so assume this is the case
-		return new RunListCursorLoader(getActivity());
+		return new RunPageLoader(getActivity());
 	}
 	
 	/*
@@ -134,67 +150,37 @@ public class RunListFragment extends ListFragment implements LoaderCallbacks<Cur
 	 * in the background
 	 */
 	@Override
-	public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-		// Create an adapter to point at this cursor
-		RunCursorAdapter adapter = 
-				new RunCursorAdapter(getActivity(), (RunCursor) cursor);
-		setListAdapter(adapter);
+	public void onLoadFinished(Loader<List<Run>> loader, List<Run> firstPage) {
+		RunPageAdapter adapter = (RunPageAdapter) getListAdapter();
+		if (adapter == null)
+			setListAdapter(new RunPageAdapter(getActivity(), firstPage));
+		else
+			adapter.setFirstPage(firstPage);		//Reloaded, e.g. after a new run
 	}
 	
 	/*
 	 * Called in the event that the data is no longer available
 	 */
 	@Override
-	public void onLoaderReset(Loader<Cursor> loader) {
-		// Stop using the cursor (via the adapter)
+	public void onLoaderReset(Loader<List<Run>> loader) {
+		// Stop using the runs (via the adapter)
+		RunPageAdapter adapter = (RunPageAdapter) getListAdapter();
+		if (adapter != null)
+			adapter.release();
 		setListAdapter(null);
 	}
 	
-	private static class RunListCursorLoader extends SQLiteCursorLoader {
-		public RunListCursorLoader(Context context) {
-			super(context);
-		}
-		
-		@Override
-		protected Cursor loadCursor() {
-			// Query the list of runs
-			return RunManager.get(getContext()).queryRuns();
-		}
-	}
-	
 	/*
-	 * Subclass of CursorAdapter to display the loader's data for listview
+	 * Loads the first page of runs; RunPageAdapter fetches the rest as the list scrolls
 	 */
-	private static class RunCursorAdapter extends CursorAdapter {
-		private RunCursor mRunCursor;
-		
-		public RunCursorAdapter(Context context, RunCursor cursor) {
-			super(context, cursor, 0);	//Constructor of CursorAdapter 
-			mRunCursor = cursor;
-		}
-		
-		@Override
-		public View newView(Context context, Cursor cursor, ViewGroup parent) {
-			// Use a layout inflater to get a row view
-			LayoutInflater inflater = (LayoutInflater) context
-					.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-			return inflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+	private static class RunPageLoader extends DataLoader<List<Run>> {
+		public RunPageLoader(Context context) {
+			super(context);
 		}
 		
-		/*
-		 * This method will be called by CursorAdapter when it wants to configure
-		 * a view to hold data for a row in the cursor
-		 */
 		@Override
-		public void bindView(View view, Context context, Cursor cursor) {	//The view is always from the prev newView()
-			// Get the run for the current row
-			Run run = mRunCursor.getRun();			//Cursor already positioned by CursorAdapter
-			
-			// Set up the start date text view
-			TextView startDateTextView = (TextView) view;
-			String cellText = 
-					context.getString(R.string.cell_text, run.getStartDate());
-			startDateTextView.setText(cellText);
+		public List<Run> loadInBackground() {
+			return RunManager.get(getContext()).queryRunPage(null, RunPageAdapter.PAGE_SIZE);
 		}
 	}
 }
@@ -2,12 +2,28 @@ package com.bignerdranch.android.runtracker;
 /*
  * Singleton to manage the communication with LocationManager
  */
-import android.app.PendingIntent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.location.Location;
+import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.content.LocalBroadcastManager;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.bignerdranch.android.runtracker.RunDatebaseHelper.LocationCursor;
@@ -15,17 +31,37 @@ import com.bignerdranch.android.runtracker.RunDatebaseHelper.RunCursor;
 
 public class RunManager {
 	private static final String TAG = "RunManager";
-	public static final String ACTION_LOCATION = "com.bignerdranch.android.runtracker.ACTION_LOCATION";
-	private static final String TEST_PROVIDER = "TEST_PROVIDER";
+	// Sent locally when runs were added other than at the end of the list, e.g. by an import
+	public static final String ACTION_RUNS_CHANGED = "com.bignerdranch.android.runtracker.ACTION_RUNS_CHANGED";
+	static final String TEST_PROVIDER = "TEST_PROVIDER";		//Used instead of the GPS when present, see TrackReplayer
 	private static final String PREFS_FILE = "runs";
+	// Where tracked runs were kept before the session table, see migrateTrackingPrefs()
 	private static final String PREFS_CURRENT_RUN_ID = "RunManager.currentRunId";
+	private static final String PREFS_TRACKING_RUN_IDS = "RunManager.trackingRunIds";
+	private static final String JOURNAL_DIR = "journal";
+	private static final double EARTH_RADIUS_METERS = 6371000;
+	private static final long PAUSED_INTERVAL_MILLIS = 60 * 1000;		//Location request while every run is paused
 	
 	private static RunManager sRunManager;
 	private Context mAppContext;				//Context of the current state of the app
 	private LocationManager mLocationManager;	//Provide access to the system location services
 	private RunDatebaseHelper mHelper;
+	private LocationWriter mLocationWriter;
+	private Handler mWriterHandler;				//The writer's thread, also stops runs and stores session state
+	private FixDispatcher mFixDispatcher = new FixDispatcher(FixDispatcher.DEFAULT_CAPACITY);
 	private SharedPreferences mPrefs;
-	private long mCurrentRunId;
+	private final ConcurrentHashMap<Long, TrackingSession> mSessions = new ConcurrentHashMap<Long, TrackingSession>();
+	private volatile TrackingSession[] mSessionArray = new TrackingSession[0];	//What fixes are routed to, replaced as sessions come and go
+	private final Object mSessionLock = new Object();		//Starting and stopping sessions
+	private final CountDownLatch mSessionsLoaded = new CountDownLatch(1);	//Read on the writer's thread, see awaitSessions()
+	private final Object mRequestLock = new Object();		//The location request, also changed on TrackingService's thread
+	private RetentionPolicy mRetentionPolicy = RetentionPolicy.getDefault();
+	private volatile SamplingPolicy.Profile mSamplingProfile = SamplingPolicy.Profile.TRAINING;
+	private String mProvider;
+	private volatile LocationListener mListener;
+	private Looper mListenerLooper;
+	private long mRequestMillis;
+	private float mRequestMeters;
 	
 	//The private constructor forces users to use RunManager.get(Context)
 	private RunManager(Context appContext) {
@@ -33,10 +69,70 @@ public class RunManager {
 		mLocationManager = (LocationManager) mAppContext.getSystemService(Context.LOCATION_SERVICE);	//This is how you retrieve LocationManager
 		mHelper = new RunDatebaseHelper(mAppContext);
 		mPrefs = mAppContext.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
-		mCurrentRunId = mPrefs.getLong(PREFS_CURRENT_RUN_ID, -1);
+		// Locations are written to SQLite on their own background thread
+		HandlerThread writerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		writerThread.start();
+		mLocationWriter = new LocationWriter(mHelper, new File(mAppContext.getFilesDir(), JOURNAL_DIR),
+				writerThread.getLooper(), getTrackingRunIdSet());
+		mWriterHandler = new Handler(writerThread.getLooper());
+		// The database is first opened there too, not on the main thread that usually gets here.
+		// Replay whatever a previous process journaled but never wrote, before anything new arrives
+		mWriterHandler.postAtFrontOfQueue(new Runnable() {
+			@Override
+			public void run() {
+				long[] legacyRunIds;
+				try {
+					legacyRunIds = loadSessions();
+				} finally {
+					mSessionsLoaded.countDown();
+				}
+				if (legacyRunIds.length > 0)
+					migrateTrackingPrefs(legacyRunIds);
+				mLocationWriter.recover();
+			}
+		});
 	}
 	
-	public static RunManager get(Context context) {
+	/*
+	 * Sessions that were tracked when the process died carry on. Returns the runs tracked
+	 * before the session table, which are tracked straight away and written to it afterwards
+	 */
+	private long[] loadSessions() {
+		long[] legacyRunIds = readTrackingPrefs();
+		synchronized (mSessionLock) {
+			for (SessionRecord record : mHelper.queryActiveSessions()) {
+				TrackingSession session = new TrackingSession(record.getRunId(), mSamplingProfile);
+				session.setPaused(record.getState() == SessionRecord.STATE_PAUSED);
+				mSessions.put(record.getRunId(), session);
+			}
+			for (long runId : legacyRunIds) {
+				if (!mSessions.containsKey(runId))
+					mSessions.put(runId, new TrackingSession(runId, mSamplingProfile));
+			}
+			updateSessionArray();
+		}
+		return legacyRunIds;
+	}
+	
+	/*
+	 * Wait for the sessions to be loaded, at most once per process and only until the
+	 * writer's thread has opened the database
+	 */
+	private void awaitSessions() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				mSessionsLoaded.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	public static synchronized RunManager get(Context context) {
 		if (sRunManager == null) {
 			// Use the application context to avoid leaking activities
 			sRunManager = new RunManager(context.getApplicationContext());
@@ -45,20 +141,18 @@ public class RunManager {
 	}
 	
 	/*
-	 * Create pendingIntent for locationManager to be broadcasted when location update happens
+	 * The RunManager if one was created already, else null; never opens the database
 	 */
-	private PendingIntent getLocationPendingIntent(boolean shouldCreate) {
-		Intent broadcast = new Intent(ACTION_LOCATION);
-		
-		//Flag indicating that if the described PendingIntent already exists, then simply return null instead of creating it
-		int flags = shouldCreate ? 0 : PendingIntent.FLAG_NO_CREATE;		
-		return PendingIntent.getBroadcast(mAppContext, 0, broadcast, flags);	//Retrieve a PendingIntent that will perform a broadcast
+	static synchronized RunManager peek() {
+		return sRunManager;
 	}
 	
 	/*
-	 * start tracking
+	 * Start tracking: fixes go to the listener on the looper's thread. Called by TrackingService,
+	 * which owns both
 	 */
-	public void startLocationUpdates() {
+	void startLocationUpdates(LocationListener listener, Looper looper) {
+		awaitSessions();
 		String provider = LocationManager.GPS_PROVIDER;
 		
 		//If you have the test provider and it's enabled, use it
@@ -72,75 +166,320 @@ public class RunManager {
 		if (lastKnown != null) {
 			//Reset the time to now
 			lastKnown.setTime(System.currentTimeMillis());					//Set timestamp of lastKnown
-			broadcastLocation(lastKnown);
+			for (TrackingSession session : mSessionArray)
+				mFixDispatcher.publish(session.getRunId(), lastKnown);		//Shown, not recorded
 		}
 		
 		// Start updates from the location manager
-		PendingIntent pi = getLocationPendingIntent(true);
-		mLocationManager.requestLocationUpdates(provider, 0, 0, pi);		//Min time to wait (milliseconds) and min dist to cover (m) before sending the next update
+		synchronized (mRequestLock) {
+			mProvider = provider;
+			mListener = listener;
+			mListenerLooper = looper;
+			mRequestMillis = -1;
+			for (TrackingSession session : mSessionArray)
+				session.reset();
+			updateLocationRequest();
+		}
 	}
 	
 	/*
-	 * Broadcast the given intent to all interested BroadcastReceivers
+	 * Ask for fixes as densely as the most demanding session wants them. The same listener
+	 * replaces the previous request
 	 */
-	private void broadcastLocation(Location location) {
-		Intent broadcast = new Intent(ACTION_LOCATION);
-		broadcast.putExtra(LocationManager.KEY_LOCATION_CHANGED, location);
-		mAppContext.sendBroadcast(broadcast);	//Broadcast the given intent to all interested BroadcastReceivers
+	private void updateLocationRequest() {
+		synchronized (mRequestLock) {
+			if (mListener == null)
+				return;
+			long minTime = Long.MAX_VALUE;
+			float minDistance = Float.MAX_VALUE;
+			boolean still = true;
+			for (TrackingSession session : mSessionArray) {
+				if (session.isPaused())
+					continue;		//Ignores fixes, however densely it was sampling
+				minTime = Math.min(minTime, session.getMinTimeMillis());	//Min time to wait (milliseconds) and min dist to cover (m) before sending the next update
+				minDistance = Math.min(minDistance, session.getMinDistanceMeters());
+				still &= session.isStill();
+			}
+			if (minTime == Long.MAX_VALUE) {
+				if (mSessionArray.length == 0)
+					return;
+				minTime = PAUSED_INTERVAL_MILLIS;		//Every run is paused
+				minDistance = 0;
+			}
+			if (minTime == mRequestMillis && minDistance == mRequestMeters)
+				return;
+			mRequestMillis = minTime;
+			mRequestMeters = minDistance;
+			Log.d(TAG, "Sampling every " + minTime + "ms / " + minDistance + "m" + (still ? ", standing still" : ""));
+			mLocationManager.requestLocationUpdates(mProvider, minTime, minDistance, mListener, mListenerLooper);
+		}
 	}
 	
 	/*
 	 * Stop tracking
 	 */
-	public void stopLocationUpdates() {
-		PendingIntent pi = getLocationPendingIntent(false);
-		if (pi != null) {
-			mLocationManager.removeUpdates(pi);
-			pi.cancel();
+	void stopLocationUpdates() {
+		LocationListener listener;
+		synchronized (mRequestLock) {
+			listener = mListener;
+			mListener = null;
+			mListenerLooper = null;
 		}
+		if (listener != null)
+			mLocationManager.removeUpdates(listener);
 	}
 	
 	/*
-	 * Check if it's currently tracking any run
+	 * Check if any run is being tracked. Sessions are loaded from the database, so this holds
+	 * from the moment a run is started, and after the process was restarted, even before
+	 * TrackingService has asked for locations
 	 */
 	public boolean isTrackingRun() {
-		return getLocationPendingIntent(false) != null;
+		awaitSessions();
+		return !mSessions.isEmpty();
+	}
+	
+	/*
+	 * Check if TrackingService's listener is getting location updates
+	 */
+	boolean isReceivingUpdates() {
+		return mListener != null;
 	}
 	
 	public boolean isTrackingRun(Run run) {
-		return run != null && run.getId() == mCurrentRunId;
+		return run != null && isTrackingRun(run.getId());
+	}
+	
+	public boolean isTrackingRun(long runId) {
+		awaitSessions();
+		return mSessions.containsKey(runId);
+	}
+	
+	/*
+	 * Live, read-only view of the ids of the runs being tracked
+	 */
+	Set<Long> getTrackingRunIdSet() {
+		return Collections.unmodifiableSet(mSessions.keySet());
+	}
+	
+	/*
+	 * The runs being tracked, or that were when the process died
+	 */
+	public long[] getTrackingRunIds() {
+		awaitSessions();
+		TrackingSession[] sessions = mSessionArray;
+		long[] runIds = new long[sessions.length];
+		for (int i = 0; i < sessions.length; i++)
+			runIds[i] = sessions[i].getRunId();
+		return runIds;
+	}
+	
+	/*
+	 * What each tracked run has recorded so far
+	 */
+	public List<TrackingSession> getTrackingSessions() {
+		awaitSessions();
+		return new ArrayList<TrackingSession>(Arrays.asList(mSessionArray));
 	}
 	
 	/*
 	 * Saves a new run in SQLite db, start tracking the run and return the instance of the run
 	 */
 	public Run startNewRun() {
-		// Insert a new run into the db
-		Run run = insertRun();
-		// Start tracking the run
-		startTrackingRun(run);
+		awaitSessions();
+		Run run = new Run();
+		synchronized (mSessionLock) {
+			// The run and its session row in one transaction
+			run.setId(mHelper.insertTrackedRun(run));
+			addSession(run.getId());
+		}
+		updateLocationRequest();
 		return run;
 	}
 	
+	/*
+	 * Runs already being tracked carry on, every fix is recorded for each of them
+	 */
 	public void startTrackingRun(Run run) {
-		// Keep the ID
-		mCurrentRunId = run.getId();
-		// Store it in sharedPreferences
-		mPrefs.edit().putLong(PREFS_CURRENT_RUN_ID, mCurrentRunId).commit();
-		// Start location update
-		startLocationUpdates();
+		awaitSessions();
+		synchronized (mSessionLock) {
+			if (mSessions.containsKey(run.getId())) {
+				resumeRun(run.getId());
+				TrackingService.startTracking(mAppContext);
+				return;
+			}
+			writeSessionState(run.getId(), SessionRecord.STATE_STARTED);
+			addSession(run.getId());
+		}
+		updateLocationRequest();		//A new session starts out sampling densely
+	}
+	
+	/*
+	 * Store the state on the writer's thread: after any stop of the run posted before it,
+	 * and off the main thread the buttons call from
+	 */
+	private void writeSessionState(final long runId, final int state) {
+		mWriterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mHelper.writeSessionState(runId, state);
+			}
+		});
+	}
+	
+	private void addSession(long runId) {
+		mSessions.put(runId, new TrackingSession(runId, mSamplingProfile));
+		updateSessionArray();
+		// The service asks for the updates, and keeps the process alive while it gets them
+		TrackingService.startTracking(mAppContext);
+	}
+	
+	/*
+	 * Stop recording fixes for the run for now, without closing it
+	 */
+	public void pauseRun(long runId) {
+		setPaused(runId, true);
+	}
+	
+	public void resumeRun(long runId) {
+		setPaused(runId, false);
 	}
 	
+	private void setPaused(long runId, boolean paused) {
+		awaitSessions();
+		synchronized (mSessionLock) {
+			TrackingSession session = mSessions.get(runId);
+			if (session == null || session.isPaused() == paused)
+				return;
+			writeSessionState(runId, paused ? SessionRecord.STATE_PAUSED : SessionRecord.STATE_STARTED);
+			session.setPaused(paused);
+		}
+		updateLocationRequest();		//Resumed sampling densely, or no longer sampling at all
+	}
+	
+	/*
+	 * The run's stored tracking state, or null if it was never tracked. Doesn't touch the disk
+	 * once the sessions were read
+	 */
+	public SessionRecord getSessionRecord(long runId) {
+		return mHelper.querySession(runId);
+	}
+	
+	/*
+	 * Stop every run being tracked
+	 */
 	public void stopRun() {
-		stopLocationUpdates();
-		mCurrentRunId = -1;
-		mPrefs.edit().remove(PREFS_CURRENT_RUN_ID).commit();		//Modifications to Prefs must be down thru the editor
+		for (long runId : getTrackingRunIds())
+			stopRun(runId);
 	}
 	
-	private Run insertRun() {
-		Run run = new Run();
-		run.setId(mHelper.insertRun(run));			//Run id is row id in SQLite table
-		return run;
+	/*
+	 * Stop tracking one run; the others carry on, without a gap. Returns at once: the run's
+	 * last fixes are written, and it is sealed and marked stopped, on the writer's thread
+	 */
+	public void stopRun(long runId) {
+		stopRun(runId, null);
+	}
+	
+	/*
+	 * Stop the run and wait until it is written, sealed and marked stopped. Not on the main thread
+	 */
+	void stopRunAndWait(long runId) {
+		CountDownLatch stopped = new CountDownLatch(1);
+		if (!stopRun(runId, stopped))
+			return;
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private boolean stopRun(final long runId, final CountDownLatch stopped) {
+		final TrackingSession session;
+		final boolean last;
+		awaitSessions();
+		synchronized (mSessionLock) {
+			session = mSessions.remove(runId);
+			if (session == null)
+				return false;
+			updateSessionArray();			//No new fix is routed to the session
+			last = mSessions.isEmpty();
+			if (last) {
+				stopLocationUpdates();
+				TrackingService.stopTracking(mAppContext);
+			} else {
+				TrackingService.startTracking(mAppContext);		//Refreshes the notification
+			}
+		}
+		if (!last)
+			updateLocationRequest();		//The run may have been the one sampled most densely
+		mWriterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					finishRun(session, last);
+				} finally {
+					if (stopped != null)
+						stopped.countDown();
+				}
+			}
+		});
+		return true;
+	}
+	
+	/*
+	 * The disk side of stopping a run, on the writer's thread
+	 */
+	private void finishRun(TrackingSession session, boolean last) {
+		long runId = session.getRunId();
+		session.close();						//Waits for a fix still on its way in
+		mLocationWriter.closeRun(runId);		//Make sure the end of the run hits the disk
+		mHelper.stopSession(runId);				//Sealed and marked stopped together
+		// Only then is the journal no longer needed, unless the run was started again meanwhile
+		if (!mSessions.containsKey(runId))
+			mLocationWriter.releaseRun(runId);
+		Log.i(TAG, session.toString());
+		if (!last)
+			return;
+		mHelper.checkpoint();
+		// A good moment to thin out old runs
+		TrackMaintenanceService.startRetention(mAppContext);
+	}
+	
+	private void updateSessionArray() {
+		mSessionArray = mSessions.values().toArray(new TrackingSession[0]);
+	}
+	
+	/*
+	 * The runs tracked before the session table existed, usually none
+	 */
+	private long[] readTrackingPrefs() {
+		String value = mPrefs.getString(PREFS_TRACKING_RUN_IDS, null);
+		long currentRunId = mPrefs.getLong(PREFS_CURRENT_RUN_ID, -1);
+		if (value == null && currentRunId == -1)
+			return new long[0];
+		String[] values = value != null ? TextUtils.split(value, ",") : new String[] {String.valueOf(currentRunId)};
+		long[] runIds = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			runIds[i] = Long.parseLong(values[i]);
+		return runIds;
+	}
+	
+	/*
+	 * Move those runs over to the session table, once. A run stopped in the meantime is left alone
+	 */
+	private void migrateTrackingPrefs(long[] runIds) {
+		synchronized (mSessionLock) {
+			for (long runId : runIds) {
+				if (mSessions.containsKey(runId))
+					mHelper.writeSessionState(runId, SessionRecord.STATE_STARTED);
+			}
+		}
+		mPrefs.edit()				//Modifications to Prefs must be down thru the editor
+				.remove(PREFS_TRACKING_RUN_IDS)
+				.remove(PREFS_CURRENT_RUN_ID)
+				.commit();
 	}
 	
 	/*
@@ -152,39 +491,307 @@ public class RunManager {
 	}
 	
 	/*
-	 * Insert a location for the currently tracking run
+	 * The page of at most limit runs following the given run, or the first page if after is null.
+	 * See RunPageAdapter
+	 */
+	public List<Run> queryRunPage(Run after, int limit) {
+		long afterStartDate = after != null ? after.getStartDate().getTime() : Long.MIN_VALUE;
+		long afterId = after != null ? after.getId() : -1;
+		List<Run> runs = new ArrayList<Run>(limit);
+		RunCursor cursor = mHelper.queryRuns(afterStartDate, afterId, limit);
+		try {
+			while (cursor.moveToNext())
+				runs.add(cursor.getRun());
+		} finally {
+			cursor.close();
+		}
+		return runs;
+	}
+	
+	/*
+	 * Insert a location for every run being tracked. Each session puts the fix through its
+	 * own filter chain first, which may drop it or smooth its position; then it is
+	 * buffered and written out with its batch, see LocationWriter, and handed on
+	 * to whoever subscribed to the fix dispatcher. Called on TrackingService's thread
 	 */
 	public void insertLocation(Location loc) {
-		if (mCurrentRunId != -1) {
-			mHelper.insertLocation(mCurrentRunId, loc);
-		} else {
+		awaitSessions();
+		TrackingSession[] sessions = mSessionArray;
+		if (sessions.length == 0) {
 			Log.e(TAG, "location received with no tracking run" + loc.toString());
+			return;
 		}
+		boolean requestChanged = false;
+		for (TrackingSession session : sessions)
+			requestChanged |= session.onFix(loc, mLocationWriter, mFixDispatcher);
+		if (requestChanged)
+			updateLocationRequest();
+	}
+	
+	/*
+	 * How densely to sample the GPS for the runs being tracked and those started later,
+	 * takes effect with the next fix
+	 */
+	public void setSamplingProfile(SamplingPolicy.Profile profile) {
+		mSamplingProfile = profile;
+		for (TrackingSession session : mSessionArray)
+			session.setSamplingProfile(profile);
 	}
 	
+	/*
+	 * What a sampling profile would have saved on a recorded run, see SamplingPolicy.evaluate()
+	 */
+	public SamplingPolicy.Evaluation evaluateSamplingProfile(long runId, SamplingPolicy.Profile profile) {
+		return SamplingPolicy.evaluate(queryTrack(runId), profile);
+	}
+	
+	/*
+	 * Run a recorded run through a fresh default filter chain, see LocationFilterChain.replay()
+	 */
+	public LocationFilterChain.Report replayLocationFilters(long runId) {
+		return LocationFilterChain.createDefault().replay(queryTrack(runId));
+	}
+	
+	/*
+	 * Fixes of the tracking run as they arrive, for consumers in this process
+	 */
+	public FixDispatcher getFixDispatcher() {
+		return mFixDispatcher;
+	}
+	
+	/*
+	 * Write out any buffered locations soon, e.g. when the system is low on memory. The flush
+	 * runs on the writer's thread, so this can be called from the main thread
+	 */
+	public void flushLocations() {
+		mWriterHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mLocationWriter.flush();
+			}
+		});
+	}
+	
+	/*
+	 * How far (in metres) a recorded track may stray from the fixes received; fixes that
+	 * add nothing beyond that are not stored, see StreamingSimplifier. 0 stores every fix
+	 */
+	public void setRecordingTolerance(double toleranceMeters) {
+		mLocationWriter.setTolerance(toleranceMeters);
+	}
+	
+	/*
+	 * Bound how many fixes (and how old) may be held in memory before they are written
+	 */
+	public void setLocationDurabilityBound(int maxFixes, long maxDelayMillis) {
+		mLocationWriter.setDurabilityBound(maxFixes, maxDelayMillis);
+	}
+	
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		mRetentionPolicy = policy;
+	}
+	
+	/*
+	 * Move up to maxRuns old runs to the tier the retention policy has them due for
+	 */
+	public List<RetentionJob.Report> applyRetentionPolicy(int maxRuns) {
+		return new RetentionJob(mHelper, mRetentionPolicy, mLocationWriter.getTolerance()).run(maxRuns,
+				getTrackingRunIdSet());
+	}
+	
+	/*
+	 * Ids of the runs with a location inside the box, to within about a geohash cell (~1km).
+	 * A box with west > east crosses the antimeridian
+	 */
+	public long[] queryRunIdsInBox(double south, double west, double north, double east) {
+		List<RunSummary> runs;
+		if (west <= east) {
+			runs = mHelper.queryRunsInBox(south, west, north, east);
+		} else {
+			runs = mHelper.queryRunsInBox(south, west, north, 180);
+			for (RunSummary run : mHelper.queryRunsInBox(south, -180, north, east)) {
+				if (!containsRun(runs, run.getRunId()))
+					runs.add(run);
+			}
+		}
+		long[] runIds = new long[runs.size()];
+		for (int i = 0; i < runIds.length; i++)
+			runIds[i] = runs.get(i).getRunId();
+		return runIds;
+	}
+	
+	/*
+	 * Ids of the runs with a location within radiusMeters of the point, to within about a geohash cell
+	 */
+	public long[] queryRunIdsNear(double latitude, double longitude, double radiusMeters) {
+		double latDelta = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+		double south = Math.max(-90, latitude - latDelta);
+		double north = Math.min(90, latitude + latDelta);
+		double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+		double lonDelta = cos > 0 ? Math.toDegrees(radiusMeters / (EARTH_RADIUS_METERS * cos)) : 180;
+		if (lonDelta >= 180) {
+			return queryRunIdsInBox(south, -180, north, 180);
+		}
+		double west = normalizeLongitude(longitude - lonDelta);
+		double east = normalizeLongitude(longitude + lonDelta);
+		
+		// The box of the circle, then drop runs whose bounds stay outside the circle
+		long[] candidates = queryRunIdsInBox(south, west, north, east);
+		long[] runIds = new long[candidates.length];
+		int count = 0;
+		float[] distance = new float[1];
+		for (long runId : candidates) {
+			RunSummary run = mHelper.queryRunSummary(runId);
+			if (run == null)
+				continue;
+			double nearestLat = Math.max(run.getMinLatitude(), Math.min(run.getMaxLatitude(), latitude));
+			double nearestLon = Math.max(run.getMinLongitude(), Math.min(run.getMaxLongitude(), longitude));
+			Location.distanceBetween(latitude, longitude, nearestLat, nearestLon, distance);
+			if (distance[0] <= radiusMeters)
+				runIds[count++] = runId;
+		}
+		long[] result = new long[count];
+		System.arraycopy(runIds, 0, result, 0, count);
+		return result;
+	}
+	
+	private static boolean containsRun(List<RunSummary> runs, long runId) {
+		for (RunSummary run : runs) {
+			if (run.getRunId() == runId)
+				return true;
+		}
+		return false;
+	}
+	
+	private static double normalizeLongitude(double longitude) {
+		if (longitude < -180)
+			return longitude + 360;
+		if (longitude > 180)
+			return longitude - 360;
+		return longitude;
+	}
+	
+	/*
+	 * Add the runs recorded before the spatial index existed to it, up to maxRuns of them.
+	 * Returns the number of runs indexed, 0 once there are none left
+	 */
+	public int backfillSpatialIndex(int maxRuns) {
+		return mHelper.backfillCells(maxRuns);
+	}
+	
+	/*
+	 * Import each GPX/TCX source as a new run, blocking until they are all written. See TrackImporter
+	 */
+	public TrackImporter.Result importTracks(List<TrackImporter.Source> sources) {
+		TrackImporter.Result result = new TrackImporter(mHelper).importSources(sources);
+		// Imported runs fall in among the others by their start date
+		if (result.getRuns() > 0)
+			LocalBroadcastManager.getInstance(mAppContext).sendBroadcast(new Intent(ACTION_RUNS_CHANGED));
+		return result;
+	}
+	
+	/*
+	 * Size of the pages in use in the database file
+	 */
+	public long getDatabaseBytes() {
+		long[] stats = mHelper.queryPageStats();
+		return (stats[0] - stats[1]) * stats[2];
+	}
+	
+	/*
+	 * Run the database housekeeping jobs that are due, for as long as conditions allow
+	 */
+	public List<MaintenanceRecord> maintainDatabase(DatabaseMaintenance.Conditions conditions) {
+		return new DatabaseMaintenance(mHelper, DatabaseMaintenance.DEFAULT_BUDGET_MILLIS).run(conditions);
+	}
+	
+	/*
+	 * What the housekeeping jobs did lately, newest first
+	 */
+	public List<MaintenanceRecord> queryMaintenanceLog(int limit) {
+		return mHelper.queryMaintenanceRecords(null, limit);
+	}
+	
+	/*
+	 * Totals of the last weeks calendar weeks including this one, oldest first; weeks
+	 * without a run are left out. Fixes still waiting in the writer are not counted yet
+	 */
+	public List<TrainingTotals> queryWeeklyTotals(int weeks) {
+		return queryTrainingTotals(TrainingTotals.PERIOD_WEEK, weeks);
+	}
+	
+	public List<TrainingTotals> queryMonthlyTotals(int months) {
+		return queryTrainingTotals(TrainingTotals.PERIOD_MONTH, months);
+	}
+	
+	private List<TrainingTotals> queryTrainingTotals(int period, int count) {
+		long from = TrainingTotals.getBucketStart(period, System.currentTimeMillis(), count - 1, Calendar.getInstance());
+		return mHelper.queryTrainingTotals(period, from);
+	}
+	
+	/*
+	 * Recompute the training totals from the run summaries, needed when the time zone or
+	 * the first day of the week changed. Call from a background thread
+	 */
+	public void rebuildTrainingTotals() {
+		mLocationWriter.flush();
+		mHelper.rebuildTrainingTotals(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/*
+	 * Single-value read, no cursor involved
+	 */
 	public Run getRun(long id) {
-		Run run = null;
-		RunCursor cursor = mHelper.queryRuns(id);
-		cursor.moveToFirst();
-		// If you got a row, get a run
-		if (!cursor.isAfterLast())
-			run = cursor.getRun();	
-		cursor.close();					//Caller of this method has no access to RunCursor, so must close() before returning
-		return run;
+		return mHelper.queryRun(id);
 	}
 	
+	/*
+	 * The newest fix still buffered for the run, or else the last location kept in the
+	 * run's summary (served from memory for the run being written). Never forces a flush
+	 */
 	public Location getLastKnownLocationForRun(long runId) {
-		Location location = null;
-		LocationCursor cursor = mHelper.queryLastLocationForRun(runId);
-		cursor.moveToFirst();
-		// If you got a row, get a location
-		if (!cursor.isAfterLast())
-			location = cursor.getLocation();
-		cursor.close();
-		return location;
+		Location pending = mLocationWriter.getLastPendingLocation(runId);
+		if (pending != null)
+			return pending;
+		RunSummary summary = mHelper.queryRunSummary(runId);		//Waits for a flush in progress
+		return summary != null ? summary.getLastLocation() : null;
+	}
+	
+	/*
+	 * Returns point count, distance, bounds and times of the run, or null if it has no locations yet
+	 */
+	public RunSummary getRunSummary(long runId) {
+		mLocationWriter.flush();			//Buffered fixes are newer than anything in the db
+		return mHelper.queryRunSummary(runId);
+	}
+	
+	/*
+	 * All points of the run as primitive columns, the cheap way to read a whole track
+	 */
+	public TrackBuffer queryTrack(long runId) {
+		mLocationWriter.flush();
+		return mHelper.queryTrack(runId);
 	}
 	
 	public LocationCursor queryLocationsForRun(long runId) {
-		return mHelper.queryLastLocationForRun(runId);
+		mLocationWriter.flush();
+		return mHelper.queryLocationsForRun(runId);
+	}
+	
+	/*
+	 * The run's locations from fromMillis (inclusive) to toMillis (exclusive)
+	 */
+	public LocationCursor queryLocationsForRun(long runId, long fromMillis, long toMillis) {
+		mLocationWriter.flush();
+		return mHelper.queryLocationsForRun(runId, fromMillis, toMillis);
+	}
+	
+	/*
+	 * Walk the run's points from fromMillis to toMillis a page of pageSize points at a time,
+	 * see TrackPager. Pass Long.MIN_VALUE and Long.MAX_VALUE for the whole run
+	 */
+	public TrackPager pageTrack(long runId, long fromMillis, long toMillis, int pageSize) {
+		mLocationWriter.flush();
+		return new TrackPager(mHelper, runId, fromMillis, toMillis, pageSize);
 	}
 }
@@ -3,19 +3,15 @@ package com.bignerdranch.android.runtracker;
 import java.util.Date;
 
 import android.content.res.Resources;
-import android.database.Cursor;
-import android.location.Location;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
-import android.util.Log;
 import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.bignerdranch.android.runtracker.RunDatebaseHelper.LocationCursor;
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
@@ -25,12 +21,14 @@ import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.PolylineOptions;
 
-public class RunMapFragment extends SupportMapFragment implements LoaderCallbacks<Cursor> {
+public class RunMapFragment extends SupportMapFragment implements LoaderCallbacks<TrackBuffer> {
 	private static final String ARG_RUN_ID = "RUN_ID";
 	private static final int LOAD_LOCATION = 0;
+	private static final int LOAD_SUMMARY = 1;
 	
 	private GoogleMap mGoogleMap;
-	private LocationCursor mLocationCursor;
+	private TrackBuffer mTrack;
+	private RunSummary mRunSummary;
 	
 	public static RunMapFragment newInstance(long runId) {
 		Bundle args = new Bundle();
@@ -51,6 +49,7 @@ public class RunMapFragment extends SupportMapFragment implements LoaderCallback
 			if (runId != -1) {
 				LoaderManager lm = getLoaderManager();
 				lm.initLoader(LOAD_LOCATION, args, this);		//Returns the Loader that's created
+				lm.initLoader(LOAD_SUMMARY, args, new SummaryLoaderCallbacks());
 			}
 		}
 	}
@@ -68,33 +67,29 @@ public class RunMapFragment extends SupportMapFragment implements LoaderCallback
 	}
 	
 	private void updateUI() {
-		if (mGoogleMap == null || mLocationCursor == null) return;
+		//Wait for both the locations and the summary, a run without locations has no summary
+		if (mGoogleMap == null || mTrack == null || mRunSummary == null) return;
 		
 		//Set up an overlay on the map for this run's locations
 		//Create a polyline with all of the points
 		PolylineOptions line = new PolylineOptions();
-		//Also create a LatLngBoundsso you can zoom to fit
-		LatLngBounds.Builder latLngBuilder = new LatLngBounds.Builder();
+		Resources r = getResources();
+		int last = mTrack.size() - 1;
 		//Iterate over the locations
-		mLocationCursor.moveToFirst();
-		int num = 1;
-		while (!mLocationCursor.isAfterLast()) {
-			Location loc = mLocationCursor.getLocation();
-			LatLng latLng = new LatLng(loc.getLatitude(), loc.getLongitude());
-			
-			Resources r = getResources();
+		for (int i = 0; i <= last; i++) {
+			LatLng latLng = new LatLng(mTrack.getLatitude(i), mTrack.getLongitude(i));
 			
 			//If this is the first location, add a marker for it
-			if (mLocationCursor.isFirst()) {
-				String startDate = new Date(loc.getTime()).toString();
+			if (i == 0) {
+				String startDate = new Date(mTrack.getTimestamp(i)).toString();
 				MarkerOptions startMarkerOptions = new MarkerOptions()
 						.position(latLng)
 						.title(r.getString(R.string.run_start))
 						.snippet(r.getString(R.string.run_started_at_format, startDate));
 				mGoogleMap.addMarker(startMarkerOptions);
-			} else if (mLocationCursor.isLast()) {
+			} else if (i == last) {
 				// If this is the last location, and also not the first, add a marker
-				String endDate = new Date(loc.getTime()).toString();
+				String endDate = new Date(mTrack.getTimestamp(i)).toString();
 				MarkerOptions endMarkerOptions = new MarkerOptions()
 						.position(latLng)
 						.title(r.getString(R.string.run_finish))
@@ -102,41 +97,61 @@ public class RunMapFragment extends SupportMapFragment implements LoaderCallback
 				mGoogleMap.addMarker(endMarkerOptions);
 			}
 			line.add(latLng);
-			latLngBuilder.include(latLng);
-			mLocationCursor.moveToNext();
-			Log.i("RunMapFragment", num++ + "");
-			
 		}
 		//Add the polyline to the map
 		mGoogleMap.addPolyline(line);
+		//The run's extent comes from its summary, no need to collect every point into a bounds builder
+		LatLngBounds latLngBounds = new LatLngBounds(
+				new LatLng(mRunSummary.getMinLatitude(), mRunSummary.getMinLongitude()),
+				new LatLng(mRunSummary.getMaxLatitude(), mRunSummary.getMaxLongitude()));
 		//Make the map zoom to show the track, with some padding
 		//Use the size of the current display in pixels as a bounding box
 		Display display = getActivity().getWindowManager().getDefaultDisplay();
 		//Construct a movement instruction for the map camera
-		LatLngBounds latLngBounds = latLngBuilder.build();
-		CameraUpdate movement = CameraUpdateFactory.newLatLngBounds(latLngBuilder.build(),
+		CameraUpdate movement = CameraUpdateFactory.newLatLngBounds(latLngBounds,
 								display.getWidth(), display.getHeight(), 15);
 //		mGoogleMap.moveCamera(movement);
 	}
 	
 	@Override
-	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+	public Loader<TrackBuffer> onCreateLoader(int id, Bundle args) {
 		long runId = args.getLong(ARG_RUN_ID, -1);
-		return new LocationListCursorLoader(getActivity(), runId);
+		return new TrackBufferLoader(getActivity(), runId);
 	}
 	
 	@Override
-	public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-		mLocationCursor = (LocationCursor) cursor;
+	public void onLoadFinished(Loader<TrackBuffer> loader, TrackBuffer track) {
+		mTrack = track;
 		updateUI();
 	}
 	
 	//This method is called when the LoaderManager is shutting the loader down
 	//after the user navigates away from the fragment
 	@Override
-	public void onLoaderReset(Loader<Cursor> loader) {
+	public void onLoaderReset(Loader<TrackBuffer> loader) {
 		// Stop using the data
-		mLocationCursor.close();
-		mLocationCursor = null;
+		mTrack = null;
+	}
+	
+	/*
+	 * Loads the run's summary for its bounding box
+	 */
+	private class SummaryLoaderCallbacks implements LoaderCallbacks<RunSummary> {
+		
+		@Override
+		public Loader<RunSummary> onCreateLoader(int id, Bundle args) {
+			return new RunSummaryLoader(getActivity(), args.getLong(ARG_RUN_ID, -1));
+		}
+		
+		@Override
+		public void onLoadFinished(Loader<RunSummary> loader, RunSummary summary) {
+			mRunSummary = summary;
+			updateUI();
+		}
+		
+		@Override
+		public void onLoaderReset(Loader<RunSummary> loader) {
+			// Do nothing
+		}
 	}
 }
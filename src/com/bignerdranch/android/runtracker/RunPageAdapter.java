@@ -0,0 +1,182 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/*
+ * Adapter for the run list that loads runs a page at a time as the user scrolls, so opening
+ * the list costs one page no matter how many runs there are.
+ *
+ * Pages are fetched with keyset queries (see RunManager.queryRunPage()) on a background thread
+ * before the user reaches the end of what is loaded. Only the pages around the visible position
+ * keep their runs; pages further away drop them and remember just the key they start after,
+ * so they can be fetched again when scrolled back to. Tracking only ever adds runs after the
+ * last one, so a page reloads with the same runs it had; runs added anywhere else (imported ones)
+ * shift every page after them, and the list starts over with setFirstPage(), see RunListFragment.
+ */
+public class RunPageAdapter extends BaseAdapter {
+	public static final int PAGE_SIZE = 50;
+	private static final int PREFETCH_ROWS = 20;			//Start loading the next page this close to the end
+	private static final int MAX_PAGES_IN_MEMORY = 5;
+	
+	private Context mContext;
+	private LayoutInflater mInflater;
+	private ArrayList<Page> mPages = new ArrayList<Page>();
+	private int mCount;
+	private boolean mHasMore;
+	private int mGeneration;		//Pages loading for an older generation are ignored
+	
+	/*
+	 * Starts out with the first page, as delivered by the list's loader
+	 */
+	public RunPageAdapter(Context context, List<Run> firstPage) {
+		mContext = context.getApplicationContext();
+		mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		setFirstPage(firstPage);
+	}
+	
+	/*
+	 * Drop everything loaded so far and start over from the given first page
+	 */
+	public void setFirstPage(List<Run> firstPage) {
+		mGeneration++;
+		mPages.clear();
+		mCount = 0;
+		Page page = new Page(null);
+		mPages.add(page);
+		onPageLoaded(page, firstPage);
+		notifyDataSetChanged();
+	}
+	
+	/*
+	 * Stop delivering pages that are still loading, e.g. when the list goes away
+	 */
+	public void release() {
+		mGeneration++;
+	}
+	
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+	
+	/*
+	 * The run at the position, or null while its page is being fetched again
+	 */
+	@Override
+	public Run getItem(int position) {
+		List<Run> runs = mPages.get(position / PAGE_SIZE).mRuns;
+		int index = position % PAGE_SIZE;
+		if (runs == null || index >= runs.size())
+			return null;
+		return runs.get(index);
+	}
+	
+	@Override
+	public long getItemId(int position) {
+		Run run = getItem(position);
+		return run != null ? run.getId() : -1;
+	}
+	
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		onPositionShown(position);
+		TextView startDateTextView = (TextView) convertView;
+		if (startDateTextView == null)
+			startDateTextView = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+		
+		Run run = getItem(position);
+		if (run != null)
+			startDateTextView.setText(mContext.getString(R.string.cell_text, run.getStartDate()));
+		else
+			startDateTextView.setText(null);		//Filled in when its page is back
+		return startDateTextView;
+	}
+	
+	/*
+	 * Keep the pages around the position in memory and the next page coming
+	 */
+	private void onPositionShown(int position) {
+		int current = position / PAGE_SIZE;
+		int keep = MAX_PAGES_IN_MEMORY / 2;
+		for (int i = 0; i < mPages.size(); i++) {
+			Page page = mPages.get(i);
+			if (Math.abs(i - current) > keep) {
+				page.mRuns = null;
+			} else if (page.mRuns == null && page.mLoaded && !page.mLoading) {
+				load(i);
+			}
+		}
+		Page last = mPages.get(mPages.size() - 1);
+		if (mHasMore && !last.mLoading && position + PREFETCH_ROWS >= mCount) {
+			mPages.add(new Page(last.mLast));
+			load(mPages.size() - 1);
+		}
+	}
+	
+	private void load(int pageIndex) {
+		Page page = mPages.get(pageIndex);
+		page.mLoading = true;
+		new PageTask(pageIndex, page.mAfter, mGeneration).execute();
+	}
+	
+	private void onPageLoaded(Page page, List<Run> runs) {
+		page.mLoading = false;
+		page.mRuns = runs;
+		if (!page.mLoaded) {
+			// A new page at the end of the list
+			page.mLoaded = true;
+			page.mLast = runs.isEmpty() ? page.mAfter : runs.get(runs.size() - 1);
+			mCount += runs.size();
+			mHasMore = runs.size() == PAGE_SIZE;
+		}
+	}
+	
+	/*
+	 * A page of the list; mRuns is null while the page is not held in memory
+	 */
+	private static class Page {
+		private Run mAfter;			//Last run of the previous page, null for the first page
+		private Run mLast;			//Last run of this page
+		private List<Run> mRuns;
+		private boolean mLoaded;
+		private boolean mLoading;
+		
+		public Page(Run after) {
+			mAfter = after;
+		}
+	}
+	
+	private class PageTask extends AsyncTask<Void, Void, List<Run>> {
+		private int mPageIndex;
+		private Run mAfter;
+		private int mTaskGeneration;
+		
+		public PageTask(int pageIndex, Run after, int generation) {
+			mPageIndex = pageIndex;
+			mAfter = after;
+			mTaskGeneration = generation;
+		}
+		
+		@Override
+		protected List<Run> doInBackground(Void... params) {
+			return RunManager.get(mContext).queryRunPage(mAfter, PAGE_SIZE);
+		}
+		
+		@Override
+		protected void onPostExecute(List<Run> runs) {
+			if (mTaskGeneration != mGeneration)
+				return;
+			onPageLoaded(mPages.get(mPageIndex), runs);
+			notifyDataSetChanged();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.bignerdranch.android.runtracker;
+
+import android.location.Location;
+
+/*
+ * Running totals of a single run, kept up to date as locations are written
+ * so nothing has to re-read the run's locations to answer "how far / how long / where"
+ */
+public class RunSummary {
+	private long mRunId;
+	private int mPointCount;
+	private double mDistanceMeters;
+	private double mMinLatitude, mMaxLatitude, mMinLongitude, mMaxLongitude;
+	private long mFirstTimestamp, mLastTimestamp;
+	private double mLastLatitude, mLastLongitude, mLastAltitude;
+	private String mLastProvider;
+	private int mTier;		//See RetentionPolicy
+	private final float[] mDistanceResult = new float[1];		//Reused by Location.distanceBetween()
+
+	public RunSummary(long runId) {
+		mRunId = runId;
+	}
+
+	public RunSummary(RunSummary other) {
+		mRunId = other.mRunId;
+		mPointCount = other.mPointCount;
+		mDistanceMeters = other.mDistanceMeters;
+		setBounds(other.mMinLatitude, other.mMaxLatitude, other.mMinLongitude, other.mMaxLongitude);
+		mFirstTimestamp = other.mFirstTimestamp;
+		setLast(other.mLastTimestamp, other.mLastLatitude, other.mLastLongitude, other.mLastAltitude, other.mLastProvider);
+		mTier = other.mTier;
+	}
+
+	/*
+	 * Fold the next location of the run (in time order) into the totals
+	 */
+	public void add(long timestamp, double latitude, double longitude, double altitude, String provider) {
+		add(timestamp, latitude, longitude, altitude, provider, Double.NaN);
+	}
+
+	/*
+	 * With the distance travelled since the previous location, when fixes in between
+	 * were left out; NaN measures it in a straight line
+	 */
+	public void add(long timestamp, double latitude, double longitude, double altitude, String provider,
+			double distance) {
+		if (mPointCount == 0) {
+			mFirstTimestamp = timestamp;
+			mMinLatitude = mMaxLatitude = latitude;
+			mMinLongitude = mMaxLongitude = longitude;
+		} else {
+			if (Double.isNaN(distance)) {
+				Location.distanceBetween(mLastLatitude, mLastLongitude, latitude, longitude, mDistanceResult);
+				distance = mDistanceResult[0];
+			}
+			mDistanceMeters += distance;
+			mMinLatitude = Math.min(mMinLatitude, latitude);
+			mMaxLatitude = Math.max(mMaxLatitude, latitude);
+			mMinLongitude = Math.min(mMinLongitude, longitude);
+			mMaxLongitude = Math.max(mMaxLongitude, longitude);
+		}
+		mPointCount++;
+		mLastTimestamp = timestamp;
+		mLastLatitude = latitude;
+		mLastLongitude = longitude;
+		mLastAltitude = altitude;
+		mLastProvider = provider;
+	}
+
+	/*
+	 * Returns the last location of the run, or null if it has none yet
+	 */
+	public Location getLastLocation() {
+		if (mPointCount == 0)
+			return null;
+		Location location = new Location(mLastProvider);
+		location.setLatitude(mLastLatitude);
+		location.setLongitude(mLastLongitude);
+		location.setAltitude(mLastAltitude);
+		location.setTime(mLastTimestamp);
+		return location;
+	}
+
+	public long getDurationMillis() {
+		return mLastTimestamp - mFirstTimestamp;
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	public int getPointCount() {
+		return mPointCount;
+	}
+
+	public void setPointCount(int pointCount) {
+		mPointCount = pointCount;
+	}
+
+	public double getDistanceMeters() {
+		return mDistanceMeters;
+	}
+
+	public void setDistanceMeters(double distanceMeters) {
+		mDistanceMeters = distanceMeters;
+	}
+
+	public double getMinLatitude() {
+		return mMinLatitude;
+	}
+
+	public double getMaxLatitude() {
+		return mMaxLatitude;
+	}
+
+	public double getMinLongitude() {
+		return mMinLongitude;
+	}
+
+	public double getMaxLongitude() {
+		return mMaxLongitude;
+	}
+
+	public void setBounds(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+		mMinLatitude = minLatitude;
+		mMaxLatitude = maxLatitude;
+		mMinLongitude = minLongitude;
+		mMaxLongitude = maxLongitude;
+	}
+
+	public long getFirstTimestamp() {
+		return mFirstTimestamp;
+	}
+
+	public void setFirstTimestamp(long firstTimestamp) {
+		mFirstTimestamp = firstTimestamp;
+	}
+
+	public long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	public double getLastLatitude() {
+		return mLastLatitude;
+	}
+
+	public double getLastLongitude() {
+		return mLastLongitude;
+	}
+
+	public double getLastAltitude() {
+		return mLastAltitude;
+	}
+
+	public String getLastProvider() {
+		return mLastProvider;
+	}
+
+	public void setLast(long timestamp, double latitude, double longitude, double altitude, String provider) {
+		mLastTimestamp = timestamp;
+		mLastLatitude = latitude;
+		mLastLongitude = longitude;
+		mLastAltitude = altitude;
+		mLastProvider = provider;
+	}
+
+	public int getTier() {
+		return mTier;
+	}
+
+	public void setTier(int tier) {
+		mTier = tier;
+	}
+}
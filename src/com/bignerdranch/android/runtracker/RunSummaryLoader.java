@@ -0,0 +1,17 @@
+package com.bignerdranch.android.runtracker;
+
+import android.content.Context;
+
+public class RunSummaryLoader extends DataLoader<RunSummary> {
+	private long mRunId;
+	
+	public RunSummaryLoader(Context context, long runId) {
+		super(context);
+		mRunId = runId;
+	}
+	
+	@Override
+	public RunSummary loadInBackground() {
+		return RunManager.get(getContext()).getRunSummary(mRunId);
+	}
+}
@@ -0,0 +1,41 @@
+package com.bignerdranch.android.runtracker;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+
+/*
+ * Application subclass so buffered locations can be written out when the system
+ * is running low on memory and might kill the process
+ */
+public class RunTrackerApplication extends Application {
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// Index runs recorded before the spatial index, a no-op once they are
+		TrackMaintenanceService.startSpatialIndexBackfill(this);
+		TrackMaintenanceService.scheduleDatabaseMaintenance(this);
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		flushLocations();
+	}
+	
+	@Override
+	public void onTrimMemory(int level) {		//Only called on API 14+
+		super.onTrimMemory(level);
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+			flushLocations();
+	}
+	
+	/*
+	 * Nothing is buffered until the RunManager exists, so don't create one just for this
+	 */
+	private static void flushLocations() {
+		RunManager runManager = RunManager.peek();
+		if (runManager != null)
+			runManager.flushLocations();
+	}
+}
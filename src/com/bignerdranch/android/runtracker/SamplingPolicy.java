@@ -0,0 +1,303 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * Decides how often to ask the GPS for fixes. Moving, the interval is the time it takes to
+ * cover the profile's spacing at the current (smoothed) speed; standing still for a while,
+ * updates are only wanted once the runner has moved the spacing again. A sudden change of
+ * pace snaps back to the shortest interval.
+ *
+ * Hysteresis keeps the request from flapping: sampling gets denser as soon as needed, but
+ * only sparser once the new interval has held for a few fixes, and small changes are ignored.
+ *
+ * Not thread safe; feed it from one thread.
+ */
+public class SamplingPolicy {
+	private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+	private static final double SPEED_SMOOTHING = 0.3;			//Weight of the newest speed
+	private static final double STILL_SPEED = 0.5;				//m/s
+	private static final long STILL_HOLD_MILLIS = 20 * 1000;
+	private static final double SNAP_ACCELERATION = 0.5;		//m/s/s, a change of pace
+	private static final double MIN_CHANGE = 0.25;				//Relative change worth re-registering for
+	private static final int RELAX_HOLD_FIXES = 3;
+
+	/*
+	 * How densely a kind of activity is sampled
+	 */
+	public static class Profile {
+		public static final Profile RACE = new Profile("race", 5, 1000, 3000, 5000);
+		public static final Profile TRAINING = new Profile("training", 10, 1000, 5000, 10000);
+		public static final Profile HIKE = new Profile("hike", 25, 2000, 15000, 30000);
+
+		private final String mName;
+		private final double mSpacingMeters;
+		private final long mMinMillis;
+		private final long mMaxMillis;
+		private final long mStillMillis;
+
+		/*
+		 * spacingMeters apart while moving, every minMillis to maxMillis, and every stillMillis
+		 * at most while standing still
+		 */
+		public Profile(String name, double spacingMeters, long minMillis, long maxMillis, long stillMillis) {
+			mName = name;
+			mSpacingMeters = spacingMeters;
+			mMinMillis = minMillis;
+			mMaxMillis = maxMillis;
+			mStillMillis = stillMillis;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public double getSpacingMeters() {
+			return mSpacingMeters;
+		}
+
+		@Override
+		public String toString() {
+			return mName;
+		}
+	}
+
+	private Profile mProfile;
+	private long mMinTimeMillis;
+	private long mTargetMillis;			//Unrounded interval the current request was made for
+	private float mMinDistanceMeters;
+	private boolean mStill;
+
+	private long mLastTime;
+	private double mLastLatitude, mLastLongitude;
+	private double mSpeed = -1;			//Smoothed, m/s, -1 before the first estimate
+	private long mSlowSince = -1;
+	private long mRelaxMillis;			//Sparser interval waiting to hold
+	private int mRelaxFixes;
+
+	public SamplingPolicy(Profile profile) {
+		mProfile = profile;
+		reset();
+	}
+
+	/*
+	 * Back to the densest sampling, e.g. at the start of a run
+	 */
+	public void reset() {
+		mMinTimeMillis = mTargetMillis = mProfile.mMinMillis;
+		mMinDistanceMeters = 0;
+		mStill = false;
+		mLastTime = -1;
+		mSpeed = -1;
+		mSlowSince = -1;
+		mRelaxFixes = 0;
+	}
+
+	public void setProfile(Profile profile) {
+		mProfile = profile;
+		reset();
+	}
+
+	public Profile getProfile() {
+		return mProfile;
+	}
+
+	public long getMinTimeMillis() {
+		return mMinTimeMillis;
+	}
+
+	public float getMinDistanceMeters() {
+		return mMinDistanceMeters;
+	}
+
+	public boolean isStill() {
+		return mStill;
+	}
+
+	/*
+	 * Fold in the next fix; speed is the fix's own speed or negative if it has none.
+	 * Returns true if the location request should be changed to the new values
+	 */
+	public boolean onFix(long time, double latitude, double longitude, float speed) {
+		long previousTime = mLastTime;
+		double previousSpeed = mSpeed;
+		if (previousTime != -1 && time > previousTime) {
+			double seconds = (time - previousTime) / 1000.0;
+			double measured = speed >= 0 ? speed : distance(mLastLatitude, mLastLongitude, latitude, longitude) / seconds;
+			mSpeed = mSpeed < 0 ? measured : SPEED_SMOOTHING * measured + (1 - SPEED_SMOOTHING) * mSpeed;
+		} else if (previousTime == -1 && speed >= 0) {
+			mSpeed = speed;
+		}
+		mLastTime = time;
+		mLastLatitude = latitude;
+		mLastLongitude = longitude;
+		if (mSpeed < 0)
+			return false;
+
+		// Standing still: entered only after a while, left at once
+		if (mSpeed < STILL_SPEED) {
+			if (mSlowSince == -1)
+				mSlowSince = time;
+		} else {
+			mSlowSince = -1;
+		}
+		boolean still = mSlowSince != -1 && (mStill || time - mSlowSince >= STILL_HOLD_MILLIS);
+		if (still != mStill) {
+			mStill = still;
+			mRelaxFixes = 0;
+			mTargetMillis = mProfile.mMinMillis;
+			if (still)
+				return apply(mProfile.mStillMillis, (float) mProfile.mSpacingMeters);
+			return apply(mProfile.mMinMillis, 0);
+		}
+		if (still)
+			return false;
+
+		long millis = (long) (mProfile.mSpacingMeters / Math.max(mSpeed, STILL_SPEED) * 1000);
+		millis = Math.max(mProfile.mMinMillis, Math.min(mProfile.mMaxMillis, millis));
+		if (previousSpeed >= 0 && time > previousTime) {
+			double acceleration = (mSpeed - previousSpeed) * 1000 / (time - previousTime);
+			if (Math.abs(acceleration) > SNAP_ACCELERATION)
+				millis = mProfile.mMinMillis;
+		}
+		// Only a clear change is worth a re-registration, and whole seconds are fine enough
+		if (millis < mTargetMillis * (1 - MIN_CHANGE)) {
+			mRelaxFixes = 0;
+			mTargetMillis = millis;
+			return apply(Math.max(mProfile.mMinMillis, millis / 1000 * 1000), 0);
+		}
+		if (millis <= mTargetMillis * (1 + MIN_CHANGE)) {
+			mRelaxFixes = 0;
+			return false;
+		}
+		// Sparser: only once it held for a few fixes, then at the most conservative of them
+		if (mRelaxFixes == 0 || millis < mRelaxMillis)
+			mRelaxMillis = millis;
+		if (++mRelaxFixes < RELAX_HOLD_FIXES)
+			return false;
+		mRelaxFixes = 0;
+		mTargetMillis = mRelaxMillis;
+		return apply(Math.min(mProfile.mMaxMillis, (mRelaxMillis + 500) / 1000 * 1000), 0);
+	}
+
+	private boolean apply(long minTimeMillis, float minDistanceMeters) {
+		if (minTimeMillis == mMinTimeMillis && minDistanceMeters == mMinDistanceMeters)
+			return false;
+		mMinTimeMillis = minTimeMillis;
+		mMinDistanceMeters = minDistanceMeters;
+		return true;
+	}
+
+	/*
+	 * Run the policy over a recorded track as the GPS would have: a fix is only delivered
+	 * once both the minimum time and distance have passed since the last delivered one.
+	 * Every fix delivered is one fix written. Best run over tracks recorded at full rate
+	 */
+	public static Evaluation evaluate(TrackBuffer track, Profile profile) {
+		Evaluation result = new Evaluation(profile);
+		int size = track.size();
+		result.mFixes = size;
+		if (size == 0)
+			return result;
+		SamplingPolicy policy = new SamplingPolicy(profile);
+		double metersPerLonDegree = TrackSimplifier.metersPerLonDegree(track.getLatitude(0));
+		int last = 0;
+		policy.onFix(track.getTimestamp(0), track.getLatitude(0), track.getLongitude(0), -1);
+		result.mKept = 1;
+		for (int i = 1; i < size; i++) {
+			result.mFullDistanceMeters += distance(track.getLatitude(i - 1), track.getLongitude(i - 1),
+					track.getLatitude(i), track.getLongitude(i));
+			boolean delivered = i == size - 1;		//Keep the end so both distances cover the same ground
+			if (!delivered) {
+				long elapsed = track.getTimestamp(i) - track.getTimestamp(last);
+				double moved = distance(track.getLatitude(last), track.getLongitude(last),
+						track.getLatitude(i), track.getLongitude(i));
+				delivered = elapsed >= policy.getMinTimeMillis() && moved >= policy.getMinDistanceMeters();
+			}
+			if (!delivered)
+				continue;
+			result.mSampledDistanceMeters += distance(track.getLatitude(last), track.getLongitude(last),
+					track.getLatitude(i), track.getLongitude(i));
+			// How far each skipped fix is from the straight line the map draws instead
+			for (int j = last + 1; j < i; j++) {
+				double error = TrackSimplifier.distanceToSegment(track, j, last, i, metersPerLonDegree);
+				result.mTotalErrorMeters += error;
+				result.mMaxErrorMeters = Math.max(result.mMaxErrorMeters, error);
+			}
+			if (policy.onFix(track.getTimestamp(i), track.getLatitude(i), track.getLongitude(i), -1))
+				result.mRequestChanges++;
+			result.mKept++;
+			last = i;
+		}
+		return result;
+	}
+
+	private static double distance(double latA, double lonA, double latB, double lonB) {
+		double dx = (lonB - lonA) * TrackSimplifier.metersPerLonDegree((latA + latB) / 2);
+		double dy = (latB - latA) * METERS_PER_DEGREE;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/*
+	 * What a profile would have saved on a recorded track, and what it would have cost
+	 */
+	public static class Evaluation {
+		private Profile mProfile;
+		private int mFixes;
+		private int mKept;
+		private int mRequestChanges;
+		private double mFullDistanceMeters;
+		private double mSampledDistanceMeters;
+		private double mTotalErrorMeters;
+		private double mMaxErrorMeters;
+
+		private Evaluation(Profile profile) {
+			mProfile = profile;
+		}
+
+		public Profile getProfile() {
+			return mProfile;
+		}
+
+		public int getFixes() {
+			return mFixes;
+		}
+
+		/*
+		 * Fixes the GPS would have delivered, and so the number of location rows written
+		 */
+		public int getKept() {
+			return mKept;
+		}
+
+		public int getRequestChanges() {
+			return mRequestChanges;
+		}
+
+		public double getFullDistanceMeters() {
+			return mFullDistanceMeters;
+		}
+
+		public double getSampledDistanceMeters() {
+			return mSampledDistanceMeters;
+		}
+
+		/*
+		 * Over the fixes that were skipped
+		 */
+		public double getMeanErrorMeters() {
+			int skipped = mFixes - mKept;
+			return skipped > 0 ? mTotalErrorMeters / skipped : 0;
+		}
+
+		public double getMaxErrorMeters() {
+			return mMaxErrorMeters;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d of %d fixes (%.0f%% fewer writes), %d request changes, " +
+					"error %.1fm mean %.1fm max, distance %.0fm of %.0fm",
+					mProfile, mKept, mFixes, mFixes > 0 ? 100.0 * (mFixes - mKept) / mFixes : 0.0, mRequestChanges,
+					getMeanErrorMeters(), mMaxErrorMeters, mSampledDistanceMeters, mFullDistanceMeters);
+		}
+	}
+}
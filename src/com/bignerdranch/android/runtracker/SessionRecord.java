@@ -0,0 +1,59 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * The stored tracking state of one run: whether it is being tracked, paused or was stopped,
+ * and the time of its last fix committed to the database. Written in the same transactions
+ * as the run's rows, so after a crash it never disagrees with them
+ */
+public class SessionRecord {
+	public static final int STATE_STARTED = 1;
+	public static final int STATE_PAUSED = 2;
+	public static final int STATE_STOPPED = 3;
+
+	private long mRunId;
+	private int mState;
+	private long mStartTime;
+	private long mLastTimestamp;
+
+	public SessionRecord(long runId, int state, long startTime, long lastTimestamp) {
+		mRunId = runId;
+		mState = state;
+		mStartTime = startTime;
+		mLastTimestamp = lastTimestamp;
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	public int getState() {
+		return mState;
+	}
+
+	/*
+	 * Started or paused: the run is still open
+	 */
+	public boolean isActive() {
+		return mState != STATE_STOPPED;
+	}
+
+	/*
+	 * When tracking the run was (last) started
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	/*
+	 * Timestamp of the run's newest fix in the database, -1 if none was written yet
+	 */
+	public long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	@Override
+	public String toString() {
+		String state = mState == STATE_STARTED ? "started" : mState == STATE_PAUSED ? "paused" : "stopped";
+		return "Run " + mRunId + " " + state + ", last fix " + mLastTimestamp;
+	}
+}
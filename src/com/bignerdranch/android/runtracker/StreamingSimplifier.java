@@ -0,0 +1,193 @@
+package com.bignerdranch.android.runtracker;
+
+import android.location.Location;
+
+/*
+ * Error-bounded simplification of a run while it is being recorded (opening window).
+ * The last point let through is the anchor; following fixes are held back for as long as
+ * every one of them stays within the tolerance of the line from the anchor to the newest.
+ * When a new fix breaks that, or the window is full, the newest fix that still fitted comes
+ * out and becomes the next anchor. So the first fix always comes out, and the last one does
+ * with takeHeld() when the run ends.
+ *
+ * Each point that comes out carries the distance travelled along every fix since the
+ * previous one, so the run's distance stays what it would have been with all fixes kept.
+ *
+ * Not thread safe, one instance per run.
+ */
+public class StreamingSimplifier {
+	public static final double DEFAULT_TOLERANCE_METERS = 2;
+	public static final int DEFAULT_WINDOW = 64;
+
+	private double mToleranceMeters;
+	private final double[] mWindowLatitudes, mWindowLongitudes;		//Held back before the newest
+	private int mWindowSize;
+
+	private boolean mHasAnchor;
+	private double mAnchorLatitude, mAnchorLongitude;
+	private double mMetersPerLonDegree;
+
+	private boolean mHasHeld;
+	private long mHeldSeq, mHeldTime;
+	private double mHeldLatitude, mHeldLongitude, mHeldAltitude;
+	private String mHeldProvider;
+	private double mHeldDistance;			//Along the fixes, from the anchor to the held one
+
+	private long mOutTime;
+	private double mOutLatitude, mOutLongitude, mOutAltitude, mOutDistance;
+	private String mOutProvider;
+	private long mEmittedSeq = -1;
+	private final float[] mDistanceResult = new float[1];
+
+	/*
+	 * A tolerance of 0 lets every fix through as it comes
+	 */
+	public StreamingSimplifier(double toleranceMeters, int window) {
+		mToleranceMeters = toleranceMeters;
+		mWindowLatitudes = new double[window];
+		mWindowLongitudes = new double[window];
+	}
+
+	/*
+	 * Take the next fix of the run, seq being its journal sequence number. Returns true if
+	 * a point came out of it, see getOutTimestamp() and the others
+	 */
+	public boolean add(long seq, long time, double latitude, double longitude, double altitude, String provider) {
+		if (!mHasAnchor || mToleranceMeters <= 0) {
+			// Nothing to compare against (or nothing to simplify), straight through
+			mHasAnchor = true;
+			mMetersPerLonDegree = TrackSimplifier.metersPerLonDegree(latitude);
+			setAnchor(latitude, longitude);
+			setOut(time, latitude, longitude, altitude, provider, Double.NaN);
+			mEmittedSeq = seq;
+			return true;
+		}
+		if (!mHasHeld) {
+			hold(seq, time, latitude, longitude, altitude, provider,
+					distance(mAnchorLatitude, mAnchorLongitude, latitude, longitude));
+			return false;
+		}
+		double step = distance(mHeldLatitude, mHeldLongitude, latitude, longitude);
+		if (mWindowSize < mWindowLatitudes.length && fits(latitude, longitude)) {
+			mWindowLatitudes[mWindowSize] = mHeldLatitude;
+			mWindowLongitudes[mWindowSize] = mHeldLongitude;
+			mWindowSize++;
+			hold(seq, time, latitude, longitude, altitude, provider, mHeldDistance + step);
+			return false;
+		}
+		takeHeld();
+		hold(seq, time, latitude, longitude, altitude, provider, step);
+		return true;
+	}
+
+	/*
+	 * Let the held fix out now, e.g. at the end of the run. Returns false if none is held
+	 */
+	public boolean takeHeld() {
+		if (!mHasHeld)
+			return false;
+		setOut(mHeldTime, mHeldLatitude, mHeldLongitude, mHeldAltitude, mHeldProvider, mHeldDistance);
+		mEmittedSeq = mHeldSeq;
+		setAnchor(mHeldLatitude, mHeldLongitude);
+		mHasHeld = false;
+		return true;
+	}
+
+	/*
+	 * Would every fix held back still be within tolerance of the line from the anchor to this one
+	 */
+	private boolean fits(double latitude, double longitude) {
+		if (TrackSimplifier.distanceToSegment(mHeldLatitude, mHeldLongitude, mAnchorLatitude, mAnchorLongitude,
+				latitude, longitude, mMetersPerLonDegree) > mToleranceMeters)
+			return false;
+		for (int i = 0; i < mWindowSize; i++) {
+			if (TrackSimplifier.distanceToSegment(mWindowLatitudes[i], mWindowLongitudes[i],
+					mAnchorLatitude, mAnchorLongitude, latitude, longitude, mMetersPerLonDegree) > mToleranceMeters)
+				return false;
+		}
+		return true;
+	}
+
+	private void setAnchor(double latitude, double longitude) {
+		mAnchorLatitude = latitude;
+		mAnchorLongitude = longitude;
+		mWindowSize = 0;
+	}
+
+	private void hold(long seq, long time, double latitude, double longitude, double altitude, String provider,
+			double distance) {
+		mHasHeld = true;
+		mHeldSeq = seq;
+		mHeldTime = time;
+		mHeldLatitude = latitude;
+		mHeldLongitude = longitude;
+		mHeldAltitude = altitude;
+		mHeldProvider = provider;
+		mHeldDistance = distance;
+	}
+
+	private void setOut(long time, double latitude, double longitude, double altitude, String provider,
+			double distance) {
+		mOutTime = time;
+		mOutLatitude = latitude;
+		mOutLongitude = longitude;
+		mOutAltitude = altitude;
+		mOutProvider = provider;
+		mOutDistance = distance;
+	}
+
+	private double distance(double latA, double lonA, double latB, double lonB) {
+		// The same measure RunSummary uses, so the totals agree to the metre
+		Location.distanceBetween(latA, lonA, latB, lonB, mDistanceResult);
+		return mDistanceResult[0];
+	}
+
+	/*
+	 * The newest fix held back, or null
+	 */
+	public Location getHeldLocation() {
+		if (!mHasHeld)
+			return null;
+		Location location = new Location(mHeldProvider);
+		location.setTime(mHeldTime);
+		location.setLatitude(mHeldLatitude);
+		location.setLongitude(mHeldLongitude);
+		location.setAltitude(mHeldAltitude);
+		return location;
+	}
+
+	/*
+	 * Journal sequence number of the newest fix that came out; every fix up to it is
+	 * either out or represented by one that is
+	 */
+	public long getEmittedSeq() {
+		return mEmittedSeq;
+	}
+
+	public long getOutTimestamp() {
+		return mOutTime;
+	}
+
+	public double getOutLatitude() {
+		return mOutLatitude;
+	}
+
+	public double getOutLongitude() {
+		return mOutLongitude;
+	}
+
+	public double getOutAltitude() {
+		return mOutAltitude;
+	}
+
+	public String getOutProvider() {
+		return mOutProvider;
+	}
+
+	/*
+	 * Distance travelled since the previous point that came out, NaN if unknown
+	 */
+	public double getOutDistance() {
+		return mOutDistance;
+	}
+}
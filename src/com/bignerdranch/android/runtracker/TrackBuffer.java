@@ -0,0 +1,159 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.Arrays;
+
+import android.location.Location;
+
+/*
+ * The points of a track held column by column in primitive arrays. Loading a run into a
+ * TrackBuffer allocates a handful of arrays instead of a Location (and friends) per point,
+ * so long runs can be drawn or processed without GC churn on the UI thread.
+ * Read points by index, or walk them with a reusable Point flyweight.
+ */
+public class TrackBuffer {
+	private long[] mTimestamps;
+	private double[] mLatitudes;
+	private double[] mLongitudes;
+	private double[] mAltitudes;
+	private int mSize;
+
+	public TrackBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		mTimestamps = new long[capacity];
+		mLatitudes = new double[capacity];
+		mLongitudes = new double[capacity];
+		mAltitudes = new double[capacity];
+	}
+
+	public void add(long timestamp, double latitude, double longitude, double altitude) {
+		ensureCapacity(mSize + 1);
+		mTimestamps[mSize] = timestamp;
+		mLatitudes[mSize] = latitude;
+		mLongitudes[mSize] = longitude;
+		mAltitudes[mSize] = altitude;
+		mSize++;
+	}
+
+	/*
+	 * Decode an encoded chunk (see TrackCodec) straight onto the end of the buffer
+	 */
+	public void addChunk(byte[] data) {
+		ensureCapacity(mSize + TrackCodec.getPointCount(data));
+		mSize += TrackCodec.decode(data, mTimestamps, mLatitudes, mLongitudes, mAltitudes, mSize);
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity <= mTimestamps.length)
+			return;
+		capacity = Math.max(capacity, mTimestamps.length * 2);
+		mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+		mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+		mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+		mAltitudes = Arrays.copyOf(mAltitudes, capacity);
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+	
+	/*
+	 * Drop the points from index size on
+	 */
+	public void truncate(int size) {
+		if (size < mSize)
+			mSize = Math.max(size, 0);
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public long getTimestamp(int i) {
+		return mTimestamps[i];
+	}
+
+	public double getLatitude(int i) {
+		return mLatitudes[i];
+	}
+
+	public double getLongitude(int i) {
+		return mLongitudes[i];
+	}
+
+	public double getAltitude(int i) {
+		return mAltitudes[i];
+	}
+
+	/*
+	 * The underlying columns, for bulk consumers such as the codec. Only the first size() entries are valid
+	 */
+	public long[] getTimestamps() {
+		return mTimestamps;
+	}
+
+	public double[] getLatitudes() {
+		return mLatitudes;
+	}
+
+	public double[] getLongitudes() {
+		return mLongitudes;
+	}
+
+	public double[] getAltitudes() {
+		return mAltitudes;
+	}
+
+	public Point newPoint() {
+		return new Point();
+	}
+
+	/*
+	 * A movable view of one point of the buffer; move it instead of creating one per point
+	 */
+	public class Point {
+		private int mIndex = -1;
+
+		public boolean moveTo(int index) {
+			mIndex = index;
+			return index >= 0 && index < mSize;
+		}
+
+		public boolean moveToNext() {
+			return moveTo(mIndex + 1);
+		}
+
+		public int getIndex() {
+			return mIndex;
+		}
+
+		public long getTimestamp() {
+			return mTimestamps[mIndex];
+		}
+
+		public double getLatitude() {
+			return mLatitudes[mIndex];
+		}
+
+		public double getLongitude() {
+			return mLongitudes[mIndex];
+		}
+
+		public double getAltitude() {
+			return mAltitudes[mIndex];
+		}
+
+		/*
+		 * Copy the point into an existing Location
+		 */
+		public void copyTo(Location location) {
+			location.setTime(getTimestamp());
+			location.setLatitude(getLatitude());
+			location.setLongitude(getLongitude());
+			location.setAltitude(getAltitude());
+		}
+	}
+}
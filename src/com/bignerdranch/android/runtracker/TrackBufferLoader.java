@@ -0,0 +1,20 @@
+package com.bignerdranch.android.runtracker;
+
+import android.content.Context;
+
+/*
+ * Loads all points of a run into a TrackBuffer off the UI thread
+ */
+public class TrackBufferLoader extends DataLoader<TrackBuffer> {
+	private long mRunId;
+	
+	public TrackBufferLoader(Context context, long runId) {
+		super(context);
+		mRunId = runId;
+	}
+	
+	@Override
+	public TrackBuffer loadInBackground() {
+		return RunManager.get(getContext()).queryTrack(mRunId);
+	}
+}
@@ -0,0 +1,182 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Encoder/decoder for the compact track format stored in location_chunk blobs.
+ *
+ * Coordinates are stored as fixed-point integers (degrees * 1e7, about 1cm; altitude
+ * in centimetres) and timestamps in milliseconds. The first point of a chunk is stored
+ * as is, every following point as the difference to the previous one. All values are
+ * zig-zag encoded so small negative deltas stay small, then written as varints.
+ * A point of a steady 1 Hz track usually takes 6-8 bytes instead of ~60 for a row.
+ *
+ * Layout: varint pointCount, then per point: time, latitude, longitude, altitude
+ *
+ * Archived chunks additionally run that through deflate (ENCODING_DEFLATED), prefixed
+ * with the length of the plain encoding.
+ */
+public class TrackCodec {
+	public static final int ENCODING_DELTA_VARINT = 0;
+	public static final int ENCODING_DEFLATED = 1;
+
+	private static final double DEGREE_SCALE = 1e7;
+	private static final double ALTITUDE_SCALE = 100;
+	private static final int MAX_VARINT_BYTES = 10;
+
+	private TrackCodec() {
+	}
+
+	public static long toFixedDegrees(double degrees) {
+		return Math.round(degrees * DEGREE_SCALE);
+	}
+
+	public static double fromFixedDegrees(long fixed) {
+		return fixed / DEGREE_SCALE;
+	}
+
+	public static long toFixedAltitude(double meters) {
+		return Math.round(meters * ALTITUDE_SCALE);
+	}
+
+	public static double fromFixedAltitude(long fixed) {
+		return fixed / ALTITUDE_SCALE;
+	}
+
+	/*
+	 * Encode count points starting at offset of the given parallel arrays
+	 */
+	public static byte[] encode(long[] timestamps, double[] latitudes, double[] longitudes,
+			double[] altitudes, int offset, int count) {
+		byte[] out = new byte[MAX_VARINT_BYTES * (1 + 4 * count)];
+		int pos = writeVarint(out, 0, count);
+		long prevTime = 0, prevLat = 0, prevLon = 0, prevAlt = 0;
+		for (int i = offset; i < offset + count; i++) {
+			long lat = toFixedDegrees(latitudes[i]);
+			long lon = toFixedDegrees(longitudes[i]);
+			long alt = toFixedAltitude(altitudes[i]);
+			pos = writeVarint(out, pos, zigZag(timestamps[i] - prevTime));
+			pos = writeVarint(out, pos, zigZag(lat - prevLat));
+			pos = writeVarint(out, pos, zigZag(lon - prevLon));
+			pos = writeVarint(out, pos, zigZag(alt - prevAlt));
+			prevTime = timestamps[i];
+			prevLat = lat;
+			prevLon = lon;
+			prevAlt = alt;
+		}
+		return Arrays.copyOf(out, pos);
+	}
+
+	/*
+	 * Number of points held in an encoded chunk
+	 */
+	public static int getPointCount(byte[] data) {
+		return (int) readVarint(data, new int[] {0});
+	}
+
+	/*
+	 * Decode all points of the chunk into the parallel arrays starting at offset,
+	 * returns the number of points written. The arrays must have room for getPointCount()
+	 */
+	public static int decode(byte[] data, long[] timestamps, double[] latitudes, double[] longitudes,
+			double[] altitudes, int offset) {
+		int[] pos = {0};
+		int count = (int) readVarint(data, pos);
+		long time = 0, lat = 0, lon = 0, alt = 0;
+		for (int i = offset; i < offset + count; i++) {
+			time += unZigZag(readVarint(data, pos));
+			lat += unZigZag(readVarint(data, pos));
+			lon += unZigZag(readVarint(data, pos));
+			alt += unZigZag(readVarint(data, pos));
+			timestamps[i] = time;
+			latitudes[i] = fromFixedDegrees(lat);
+			longitudes[i] = fromFixedDegrees(lon);
+			altitudes[i] = fromFixedAltitude(alt);
+		}
+		return count;
+	}
+
+	/*
+	 * Deflate an encoded chunk, for archived runs
+	 */
+	public static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+			byte[] header = new byte[MAX_VARINT_BYTES];
+			out.write(header, 0, writeVarint(header, 0, data.length));
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/*
+	 * Returns the plain delta/varint encoding of a stored chunk
+	 */
+	public static byte[] unwrap(byte[] data, int encoding) {
+		if (encoding == ENCODING_DELTA_VARINT)
+			return data;
+		if (encoding != ENCODING_DEFLATED)
+			throw new IllegalArgumentException("Unknown chunk encoding " + encoding);
+		int[] pos = {0};
+		byte[] plain = new byte[(int) readVarint(data, pos)];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, pos[0], data.length - pos[0]);
+			int length = 0;
+			while (length < plain.length && !inflater.finished())
+				length += inflater.inflate(plain, length, plain.length - length);
+			return plain;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt archived chunk", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int writeVarint(byte[] out, int pos, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	/*
+	 * Read a varint at pos[0] and advance pos[0] past it
+	 */
+	private static long readVarint(byte[] data, int[] pos) {
+		long value = 0;
+		int shift = 0;
+		int p = pos[0];
+		byte b;
+		do {
+			b = data[p++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		pos[0] = p;
+		return value;
+	}
+}
@@ -0,0 +1,74 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/*
+ * Exports runs as GPX in the background, see TrackExporter. The throughput is logged
+ */
+public class TrackExportService extends IntentService {
+	private static final String TAG = "TrackExportService";
+	public static final String ACTION_EXPORT_RUN = "com.bignerdranch.android.runtracker.ACTION_EXPORT_RUN";
+	public static final String ACTION_EXPORT_ALL = "com.bignerdranch.android.runtracker.ACTION_EXPORT_ALL";
+	public static final String EXTRA_RUN_ID = "run_id";
+	public static final String EXTRA_PATH = "path";
+	
+	public TrackExportService() {
+		super(TAG);
+	}
+	
+	/*
+	 * Write one run to a .gpx file
+	 */
+	public static void startExport(Context context, long runId, String path) {
+		Intent intent = new Intent(context, TrackExportService.class);
+		intent.setAction(ACTION_EXPORT_RUN);
+		intent.putExtra(EXTRA_RUN_ID, runId);
+		intent.putExtra(EXTRA_PATH, path);
+		context.startService(intent);
+	}
+	
+	/*
+	 * Write every run to a .zip file
+	 */
+	public static void startExportAll(Context context, String path) {
+		Intent intent = new Intent(context, TrackExportService.class);
+		intent.setAction(ACTION_EXPORT_ALL);
+		intent.putExtra(EXTRA_PATH, path);
+		context.startService(intent);
+	}
+	
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		String path = intent.getStringExtra(EXTRA_PATH);
+		if (path == null)
+			return;
+		TrackExporter exporter = new TrackExporter(this);
+		try {
+			if (ACTION_EXPORT_ALL.equals(intent.getAction())) {
+				exporter.exportAll(new File(path));
+			} else if (ACTION_EXPORT_RUN.equals(intent.getAction())) {
+				Run run = RunManager.get(this).getRun(intent.getLongExtra(EXTRA_RUN_ID, -1));
+				if (run == null)
+					return;
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+				try {
+					long points = exporter.writeGpx(run, out);
+					Log.i(TAG, "Exported " + points + " points of run " + run.getId() + " to " + path);
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to export to " + path, e);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Writes runs out as GPX without creating a Location (or String) per point: the track is
+ * walked a page at a time with a TrackPager and every page is formatted into one reused
+ * StringBuilder, numbers written as fixed-point digits. Memory stays flat however long the run is.
+ *
+ * exportAll() writes every run into one zip. Runs are formatted in parallel into spool files
+ * in the cache directory, a few runs ahead of the one being zipped, and copied into the zip in
+ * run order, so the zip is the same as a sequential export would write.
+ */
+public class TrackExporter {
+	private static final String TAG = "TrackExporter";
+	static final int PAGE_SIZE = 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_WORKERS = 4;
+	private static final int RUN_PAGE_SIZE = 50;
+
+	private Context mContext;
+	private RunManager mRunManager;
+
+	public TrackExporter(Context context) {
+		mContext = context.getApplicationContext();
+		mRunManager = RunManager.get(mContext);
+	}
+
+	/*
+	 * Write the run as a GPX document, returns the number of points written.
+	 * The stream is flushed but not closed
+	 */
+	public long writeGpx(Run run, OutputStream out) throws IOException {
+		return writeGpx(run, mRunManager.pageTrack(run.getId(), Long.MIN_VALUE, Long.MAX_VALUE, PAGE_SIZE), out);
+	}
+
+	/*
+	 * Write the points the pager walks, see Benchmarks
+	 */
+	long writeGpx(Run run, TrackPager pager, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+		StringBuilder sb = new StringBuilder(PAGE_SIZE * 100);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<gpx version=\"1.1\" creator=\"RunTracker\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n")
+				.append("  <trk>\n    <name>")
+				.append(mContext.getString(R.string.cell_text, run.getStartDate()))
+				.append("</name>\n    <trkseg>\n");
+
+		long points = 0;
+		while (pager.hasNext()) {
+			TrackBuffer page = pager.next();
+			for (int i = 0; i < page.size(); i++) {
+				sb.append("      <trkpt lat=\"");
+				appendFixed(sb, TrackCodec.toFixedDegrees(page.getLatitude(i)), 7);
+				sb.append("\" lon=\"");
+				appendFixed(sb, TrackCodec.toFixedDegrees(page.getLongitude(i)), 7);
+				sb.append("\"><ele>");
+				appendFixed(sb, TrackCodec.toFixedAltitude(page.getAltitude(i)), 2);
+				sb.append("</ele><time>");
+				Iso8601.append(sb, page.getTimestamp(i));
+				sb.append("</time></trkpt>\n");
+			}
+			points += page.size();
+			writer.append(sb);
+			sb.setLength(0);
+		}
+
+		sb.append("    </trkseg>\n  </trk>\n</gpx>\n");
+		writer.append(sb);
+		writer.flush();
+		return points;
+	}
+
+	/*
+	 * Write every run into a zip of GPX files, one entry per run in start date order
+	 */
+	public Result exportAll(File zipFile) throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		Result result = new Result();
+		int workers = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		ArrayDeque<Future<Spool>> pending = new ArrayDeque<Future<Spool>>();
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile), BUFFER_SIZE));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			Run after = null;
+			List<Run> runs;
+			do {
+				runs = mRunManager.queryRunPage(after, RUN_PAGE_SIZE);
+				for (Run run : runs) {
+					// Keep a couple of runs per worker in flight, no more
+					if (pending.size() >= 2 * workers)
+						zipSpool(zip, pending.removeFirst(), buffer, result);
+					pending.addLast(pool.submit(new SpoolTask(run)));
+					after = run;
+				}
+			} while (runs.size() == RUN_PAGE_SIZE);
+			while (!pending.isEmpty())
+				zipSpool(zip, pending.removeFirst(), buffer, result);
+			zip.finish();
+		} finally {
+			// Whatever failed half way, leave no spool files behind. A cancelled task deletes its own
+			// file, one that already finished is cleaned up here; queued ones never ran
+			for (Future<Spool> future : pending)
+				future.cancel(true);
+			pool.shutdownNow();
+			for (Future<Spool> future : pending)
+				deleteSpool(future);
+			zip.close();
+		}
+		result.mBytes = zipFile.length();
+		result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+		Log.i(TAG, result.toString());
+		return result;
+	}
+
+	private void zipSpool(ZipOutputStream zip, Future<Spool> future, byte[] buffer, Result result) throws IOException {
+		Spool spool;
+		try {
+			spool = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Export interrupted");
+		} catch (ExecutionException e) {
+			IOException ioe = new IOException("Failed to export a run");
+			ioe.initCause(e.getCause());
+			throw ioe;
+		}
+		try {
+			zip.putNextEntry(new ZipEntry("run-" + spool.mRun.getId() + ".gpx"));
+			InputStream in = new FileInputStream(spool.mFile);
+			try {
+				int length;
+				while ((length = in.read(buffer)) != -1)
+					zip.write(buffer, 0, length);
+			} finally {
+				in.close();
+			}
+			zip.closeEntry();
+		} finally {
+			spool.mFile.delete();
+		}
+		result.mRuns++;
+		result.mPoints += spool.mPoints;
+	}
+
+	private static void deleteSpool(Future<Spool> future) {
+		if (!future.isDone() || future.isCancelled())
+			return;
+		try {
+			future.get().mFile.delete();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// The task removed its file when it failed
+		}
+	}
+
+	private static class Spool {
+		private Run mRun;
+		private File mFile;
+		private long mPoints;
+	}
+
+	/*
+	 * Formats one run into a spool file on a worker
+	 */
+	private class SpoolTask implements Callable<Spool> {
+		private Run mRun;
+
+		public SpoolTask(Run run) {
+			mRun = run;
+		}
+
+		@Override
+		public Spool call() throws IOException {
+			Spool spool = new Spool();
+			spool.mRun = mRun;
+			spool.mFile = File.createTempFile("run-" + mRun.getId(), ".gpx", mContext.getCacheDir());
+			boolean written = false;
+			try {
+				OutputStream out = new FileOutputStream(spool.mFile);
+				try {
+					spool.mPoints = writeGpx(mRun, out);
+				} finally {
+					out.close();
+				}
+				// Cancelled while writing: nobody will collect the file
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException("Export cancelled");
+				written = true;
+			} finally {
+				if (!written)
+					spool.mFile.delete();
+			}
+			return spool;
+		}
+	}
+
+	/*
+	 * Append value / 10^decimals with exactly that many decimals
+	 */
+	private static void appendFixed(StringBuilder sb, long value, int decimals) {
+		if (value < 0) {
+			sb.append('-');
+			value = -value;
+		}
+		long scale = 1;
+		for (int i = 0; i < decimals; i++)
+			scale *= 10;
+		sb.append(value / scale).append('.');
+		long fraction = value % scale;
+		for (long digit = scale / 10; digit > 1 && fraction < digit; digit /= 10)
+			sb.append('0');
+		sb.append(fraction);
+	}
+
+	/*
+	 * What an export did
+	 */
+	public static class Result {
+		private int mRuns;
+		private long mPoints;
+		private long mBytes;
+		private long mElapsedMillis;
+
+		public int getRuns() {
+			return mRuns;
+		}
+
+		public long getPoints() {
+			return mPoints;
+		}
+
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		public long getPointsPerSecond() {
+			return mElapsedMillis > 0 ? mPoints * 1000 / mElapsedMillis : mPoints;
+		}
+
+		@Override
+		public String toString() {
+			return "Exported " + mRuns + " runs, " + mPoints + " points, " + mBytes + " bytes in " +
+					mElapsedMillis + "ms, " + getPointsPerSecond() + " points/s";
+		}
+	}
+}
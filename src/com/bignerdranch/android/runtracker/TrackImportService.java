@@ -0,0 +1,72 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/*
+ * Imports GPX/TCX files in the background, see TrackImporter.
+ * ACTION_IMPORT_SAMPLES imports the bundled sample corpus (assets/sample_tracks) a number
+ * of times and logs the throughput, to measure the importer on a device
+ */
+public class TrackImportService extends IntentService {
+	private static final String TAG = "TrackImportService";
+	public static final String ACTION_IMPORT_FILES = "com.bignerdranch.android.runtracker.ACTION_IMPORT_FILES";
+	public static final String ACTION_IMPORT_SAMPLES = "com.bignerdranch.android.runtracker.ACTION_IMPORT_SAMPLES";
+	public static final String EXTRA_PATHS = "paths";
+	public static final String EXTRA_REPEAT = "repeat";
+	private static final String SAMPLES_DIR = "sample_tracks";
+	
+	public TrackImportService() {
+		super(TAG);
+	}
+	
+	public static void startImport(Context context, String[] paths) {
+		Intent intent = new Intent(context, TrackImportService.class);
+		intent.setAction(ACTION_IMPORT_FILES);
+		intent.putExtra(EXTRA_PATHS, paths);
+		context.startService(intent);
+	}
+	
+	/*
+	 * Import the sample corpus repeat times, see the log for points/s
+	 */
+	public static void startSampleImport(Context context, int repeat) {
+		Intent intent = new Intent(context, TrackImportService.class);
+		intent.setAction(ACTION_IMPORT_SAMPLES);
+		intent.putExtra(EXTRA_REPEAT, repeat);
+		context.startService(intent);
+	}
+	
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		List<TrackImporter.Source> sources = new ArrayList<TrackImporter.Source>();
+		if (ACTION_IMPORT_FILES.equals(intent.getAction())) {
+			String[] paths = intent.getStringArrayExtra(EXTRA_PATHS);
+			if (paths != null) {
+				for (String path : paths)
+					sources.add(TrackImporter.fromFile(new File(path)));
+			}
+		} else if (ACTION_IMPORT_SAMPLES.equals(intent.getAction())) {
+			AssetManager assets = getAssets();
+			try {
+				String[] names = assets.list(SAMPLES_DIR);
+				for (int i = 0; i < intent.getIntExtra(EXTRA_REPEAT, 1); i++) {
+					for (String name : names)
+						sources.add(TrackImporter.fromAsset(assets, SAMPLES_DIR + "/" + name));
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to list the sample tracks", e);
+			}
+		}
+		if (!sources.isEmpty())
+			RunManager.get(this).importTracks(sources);
+	}
+}
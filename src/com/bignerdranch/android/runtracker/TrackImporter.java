@@ -0,0 +1,368 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Xml;
+
+/*
+ * Bulk import of GPX and TCX files, one run per file.
+ *
+ * Files are parsed in parallel on a small worker pool with a pull parser, so a file is never
+ * held in memory as a whole. Workers fill LocationBatches taken from a fixed pool and hand
+ * them over to the thread that called importSources(), which is the only one writing: every
+ * batch goes in through RunDatebaseHelper.insertLocations() in a single transaction. The batch
+ * pool bounds the memory in use and makes the workers wait when the writer falls behind.
+ *
+ * Points without a position or time are skipped, as are points older than the previous
+ * point of their file (a run is stored in time order).
+ */
+public class TrackImporter {
+	private static final String TAG = "TrackImporter";
+	public static final String PROVIDER_IMPORT = "import";
+	private static final int BATCH_SIZE = 1024;
+	private static final int MAX_WORKERS = 4;
+
+	private RunDatebaseHelper mHelper;
+	private int mWorkers;
+	private BlockingQueue<LocationBatch> mFreeBatches;
+	private BlockingQueue<Work> mWork;
+
+	public TrackImporter(RunDatebaseHelper helper) {
+		mHelper = helper;
+		mWorkers = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+		// Two batches per worker: one being filled while the other waits to be written
+		int batches = 2 * mWorkers;
+		mFreeBatches = new ArrayBlockingQueue<LocationBatch>(batches);
+		for (int i = 0; i < batches; i++)
+			mFreeBatches.add(new LocationBatch(BATCH_SIZE));
+		mWork = new ArrayBlockingQueue<Work>(batches + 1);
+	}
+
+	/*
+	 * A file to import
+	 */
+	public interface Source {
+		String getName();
+		InputStream open() throws IOException;
+	}
+
+	public static Source fromFile(final File file) {
+		return new Source() {
+			@Override
+			public String getName() {
+				return file.getName();
+			}
+
+			@Override
+			public InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+		};
+	}
+
+	public static Source fromAsset(final AssetManager assets, final String path) {
+		return new Source() {
+			@Override
+			public String getName() {
+				return path;
+			}
+
+			@Override
+			public InputStream open() throws IOException {
+				return assets.open(path);
+			}
+		};
+	}
+
+	/*
+	 * Import every source as a new run. Blocks until all of them are written
+	 */
+	public Result importSources(List<Source> sources) {
+		Result result = new Result();
+		long start = SystemClock.elapsedRealtime();
+		ExecutorService pool = Executors.newFixedThreadPool(mWorkers);
+		try {
+			for (Source source : sources)
+				pool.execute(new ParseTask(source));
+
+			// Write on this thread until every file has reported its end
+			int finished = 0;
+			while (finished < sources.size()) {
+				Work work = mWork.take();
+				FileState file = work.mFile;
+				LocationBatch batch = work.mBatch;
+				if (batch != null) {
+					if (!batch.isEmpty()) {
+						if (file.mRunId == -1)
+							file.mRunId = insertRun(batch.getTimestamp(0));
+						batch.setRunId(file.mRunId);
+						mHelper.insertLocations(batch);
+						result.mPoints += batch.size();
+					}
+					batch.clear();
+					mFreeBatches.put(batch);
+				}
+				if (work.mEnd) {
+					finished++;
+					if (file.mRunId != -1) {
+						mHelper.sealRun(file.mRunId);
+						result.mRuns++;
+					}
+					result.mSkipped += file.mSkipped;
+					if (file.mFailed)
+						result.mFailedFiles++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.e(TAG, "Import interrupted", e);
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+		result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+		Log.i(TAG, result.toString());
+		return result;
+	}
+
+	private long insertRun(long startDate) {
+		Run run = new Run();
+		run.setStartDate(new Date(startDate));
+		return mHelper.insertRun(run);
+	}
+
+	/*
+	 * Parses one file on a worker, handing full batches to the writer
+	 */
+	private class ParseTask implements Runnable, PointHandler {
+		private Source mSource;
+		private FileState mFile = new FileState();
+		private LocationBatch mBatch;
+
+		public ParseTask(Source source) {
+			mSource = source;
+		}
+
+		@Override
+		public void run() {
+			InputStream in = null;
+			try {
+				mBatch = mFreeBatches.take();
+				in = new BufferedInputStream(mSource.open());
+				XmlPullParser parser = Xml.newPullParser();
+				parser.setInput(in, null);
+				parse(parser, this);
+			} catch (IOException e) {
+				fail(e);
+			} catch (XmlPullParserException e) {
+				fail(e);
+			} catch (RuntimeException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			try {
+				// Whatever is left, and the end of the file
+				mWork.put(new Work(mFile, mBatch, true));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void fail(Exception e) {
+			Log.e(TAG, "Failed to import " + mSource.getName() + ", keeping the points read so far", e);
+			mFile.mFailed = true;
+		}
+
+		@Override
+		public void onPoint(long time, double lat, double lon, double alt) throws InterruptedException {
+			if (mBatch.isFull()) {
+				mWork.put(new Work(mFile, mBatch, false));
+				mBatch = mFreeBatches.take();		//Waits while the writer is behind
+			}
+			mBatch.add(-1, time, lat, lon, alt, PROVIDER_IMPORT);		//The writer assigns the run
+		}
+
+		@Override
+		public void onSkipped() {
+			mFile.mSkipped++;
+		}
+	}
+
+	/*
+	 * Gets the points of a file as they are parsed, see parse()
+	 */
+	interface PointHandler {
+		void onPoint(long time, double lat, double lon, double alt) throws InterruptedException;
+		void onSkipped();
+	}
+
+	/*
+	 * Reads both formats: GPX trkpt (lat/lon attributes, ele and time elements) and
+	 * TCX Trackpoint (Time, Position/LatitudeDegrees and LongitudeDegrees, AltitudeMeters)
+	 */
+	static void parse(XmlPullParser parser, PointHandler handler)
+			throws XmlPullParserException, IOException, InterruptedException {
+		long lastTimestamp = Long.MIN_VALUE;
+		boolean inPoint = false;
+		long time = 0;
+		double lat = 0, lon = 0, alt = 0;
+		boolean hasTime = false, hasLat = false, hasLon = false;
+		for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+			if (event == XmlPullParser.START_TAG) {
+				String name = parser.getName();
+				if ("trkpt".equals(name) || "Trackpoint".equals(name)) {
+					inPoint = true;
+					hasTime = false;
+					alt = 0;
+					String latAttr = parser.getAttributeValue(null, "lat");
+					String lonAttr = parser.getAttributeValue(null, "lon");
+					hasLat = latAttr != null;
+					hasLon = lonAttr != null;
+					if (hasLat)
+						lat = Double.parseDouble(latAttr);
+					if (hasLon)
+						lon = Double.parseDouble(lonAttr);
+				} else if (inPoint) {
+					if ("time".equals(name) || "Time".equals(name)) {
+						time = Iso8601.parse(parser.nextText().trim());
+						hasTime = true;
+					} else if ("ele".equals(name) || "AltitudeMeters".equals(name)) {
+						alt = Double.parseDouble(parser.nextText().trim());
+					} else if ("LatitudeDegrees".equals(name)) {
+						lat = Double.parseDouble(parser.nextText().trim());
+						hasLat = true;
+					} else if ("LongitudeDegrees".equals(name)) {
+						lon = Double.parseDouble(parser.nextText().trim());
+						hasLon = true;
+					}
+				}
+			} else if (event == XmlPullParser.END_TAG) {
+				String name = parser.getName();
+				if (inPoint && ("trkpt".equals(name) || "Trackpoint".equals(name))) {
+					inPoint = false;
+					if (hasTime && hasLat && hasLon && time >= lastTimestamp) {
+						handler.onPoint(time, lat, lon, alt);
+						lastTimestamp = time;
+					} else {
+						handler.onSkipped();
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * All points of a GPX/TCX file in memory, for replaying it (see TrackReplayer) rather than importing it
+	 */
+	public static TrackBuffer readTrack(Source source) throws IOException {
+		final TrackBuffer track = new TrackBuffer(BATCH_SIZE);
+		InputStream in = new BufferedInputStream(source.open());
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(in, null);
+			parse(parser, new PointHandler() {
+				@Override
+				public void onPoint(long time, double lat, double lon, double alt) {
+					track.add(time, lat, lon, alt);
+				}
+
+				@Override
+				public void onSkipped() {
+				}
+			});
+		} catch (XmlPullParserException e) {
+			throw new IOException("Failed to parse " + source.getName() + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			in.close();
+		}
+		return track;
+	}
+
+	/*
+	 * Per file bookkeeping; mRunId is only touched by the writer
+	 */
+	private static class FileState {
+		private long mRunId = -1;
+		private int mSkipped;
+		private boolean mFailed;
+	}
+
+	private static class Work {
+		private FileState mFile;
+		private LocationBatch mBatch;
+		private boolean mEnd;
+
+		public Work(FileState file, LocationBatch batch, boolean end) {
+			mFile = file;
+			mBatch = batch;
+			mEnd = end;
+		}
+	}
+
+	/*
+	 * What an import did
+	 */
+	public static class Result {
+		private int mRuns;
+		private long mPoints;
+		private long mSkipped;
+		private int mFailedFiles;
+		private long mElapsedMillis;
+
+		public int getRuns() {
+			return mRuns;
+		}
+
+		public long getPoints() {
+			return mPoints;
+		}
+
+		public long getSkipped() {
+			return mSkipped;
+		}
+
+		public int getFailedFiles() {
+			return mFailedFiles;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedMillis;
+		}
+
+		public long getPointsPerSecond() {
+			return mElapsedMillis > 0 ? mPoints * 1000 / mElapsedMillis : mPoints;
+		}
+
+		@Override
+		public String toString() {
+			return "Imported " + mRuns + " runs, " + mPoints + " points (" + mSkipped + " skipped, " +
+					mFailedFiles + " files failed) in " + mElapsedMillis + "ms, " + getPointsPerSecond() + " points/s";
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Background work on the stored runs, one request at a time on the service's worker thread
+ */
+public class TrackMaintenanceService extends IntentService {
+	private static final String TAG = "TrackMaintenanceService";
+	public static final String ACTION_APPLY_RETENTION = "com.bignerdranch.android.runtracker.ACTION_APPLY_RETENTION";
+	public static final String ACTION_BACKFILL_SPATIAL_INDEX = "com.bignerdranch.android.runtracker.ACTION_BACKFILL_SPATIAL_INDEX";
+	public static final String ACTION_MAINTAIN_DATABASE = "com.bignerdranch.android.runtracker.ACTION_MAINTAIN_DATABASE";
+	private static final int RETENTION_BATCH_SIZE = 10;
+	private static final int BACKFILL_BATCH_SIZE = 10;
+	
+	public TrackMaintenanceService() {
+		super(TAG);
+	}
+	
+	public static void startRetention(Context context) {
+		Intent intent = new Intent(context, TrackMaintenanceService.class);
+		intent.setAction(ACTION_APPLY_RETENTION);
+		context.startService(intent);
+	}
+	
+	public static void startSpatialIndexBackfill(Context context) {
+		Intent intent = new Intent(context, TrackMaintenanceService.class);
+		intent.setAction(ACTION_BACKFILL_SPATIAL_INDEX);
+		context.startService(intent);
+	}
+	
+	/*
+	 * Check roughly every hour whether the database can be maintained. The alarm doesn't wake
+	 * the device; it fires with the next wakeup, and the jobs only run while charging and idle
+	 */
+	public static void scheduleDatabaseMaintenance(Context context) {
+		Intent intent = new Intent(context, TrackMaintenanceService.class);
+		intent.setAction(ACTION_MAINTAIN_DATABASE);
+		PendingIntent pi = PendingIntent.getService(context, 0, intent, 0);
+		AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+				SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_HOUR, pi);
+	}
+	
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (ACTION_APPLY_RETENTION.equals(intent.getAction())) {
+			applyRetention();
+		} else if (ACTION_BACKFILL_SPATIAL_INDEX.equals(intent.getAction())) {
+			backfillSpatialIndex();
+		} else if (ACTION_MAINTAIN_DATABASE.equals(intent.getAction())) {
+			maintainDatabase();
+		}
+	}
+	
+	/*
+	 * Only while no run is tracked and the device is charging with its screen off
+	 */
+	private void maintainDatabase() {
+		final RunManager runManager = RunManager.get(this);
+		final PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		runManager.maintainDatabase(new DatabaseMaintenance.Conditions() {
+			@SuppressWarnings("deprecation")
+			@Override
+			public boolean canContinue() {
+				return !runManager.isTrackingRun() && isCharging() && !powerManager.isScreenOn();
+			}
+		});
+	}
+	
+	private boolean isCharging() {
+		// The battery status is a sticky broadcast, no receiver needed to read it
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+	
+	/*
+	 * Index the runs recorded before the spatial index existed. Nothing to do after the first time
+	 */
+	private void backfillSpatialIndex() {
+		RunManager runManager = RunManager.get(this);
+		int runs = 0;
+		int indexed;
+		do {
+			indexed = runManager.backfillSpatialIndex(BACKFILL_BATCH_SIZE);
+			runs += indexed;
+		} while (indexed > 0);
+		if (runs > 0)
+			Log.i(TAG, "Added " + runs + " runs to the spatial index");
+	}
+	
+	/*
+	 * Work through the runs due for a new tier a batch at a time, stopping as soon as a run starts
+	 */
+	private void applyRetention() {
+		RunManager runManager = RunManager.get(this);
+		long bytesReclaimed = 0;
+		int runs = 0;
+		List<RetentionJob.Report> reports;
+		do {
+			if (runManager.isTrackingRun())
+				break;
+			reports = runManager.applyRetentionPolicy(RETENTION_BATCH_SIZE);
+			for (RetentionJob.Report report : reports)
+				bytesReclaimed += report.getBytesReclaimed();
+			runs += reports.size();
+		} while (!reports.isEmpty());
+		Log.i(TAG, "Retention done: " + runs + " runs, " + bytesReclaimed + " bytes reclaimed");
+	}
+}
@@ -0,0 +1,67 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Walks the points of a run (or a time window of it) a page at a time, keyed by timestamp,
+ * so a slice or a whole multi-hour run can be processed without holding it all in memory.
+ * Every page is delivered in the same TrackBuffer: use it before asking for the next one.
+ *
+ *	TrackPager pager = RunManager.get(context).pageTrack(runId, from, to, 1000);
+ *	while (pager.hasNext()) {
+ *		TrackBuffer page = pager.next();
+ *		...
+ *	}
+ */
+public class TrackPager implements Iterator<TrackBuffer> {
+	public static final int DEFAULT_PAGE_SIZE = 1024;
+	
+	private RunDatebaseHelper mHelper;
+	private long mRunId;
+	private long mAfterTimestamp;
+	private long mToMillis;
+	private int mPageSize;
+	private TrackBuffer mPage;
+	private boolean mPageReady;		//mPage holds a page that hasn't been handed out
+	private boolean mMore = true;	//The database may have points after mAfterTimestamp
+	
+	/*
+	 * Points from fromMillis (inclusive) to toMillis (exclusive), pageSize at a time
+	 */
+	public TrackPager(RunDatebaseHelper helper, long runId, long fromMillis, long toMillis, int pageSize) {
+		mHelper = helper;
+		mRunId = runId;
+		mAfterTimestamp = fromMillis == Long.MIN_VALUE ? fromMillis : fromMillis - 1;
+		mToMillis = toMillis;
+		mPageSize = Math.max(1, pageSize);
+		mPage = new TrackBuffer(mPageSize);
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if (!mPageReady && mMore) {
+			mMore = mHelper.queryTrackPage(mRunId, mAfterTimestamp, mToMillis, mPageSize, mPage);
+			if (!mPage.isEmpty())
+				mAfterTimestamp = mPage.getTimestamp(mPage.size() - 1);
+			mPageReady = !mPage.isEmpty();
+		}
+		return mPageReady;
+	}
+	
+	/*
+	 * The next page, in the buffer shared by all pages
+	 */
+	@Override
+	public TrackBuffer next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		mPageReady = false;
+		return mPage;
+	}
+	
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
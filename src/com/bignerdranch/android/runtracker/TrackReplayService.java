@@ -0,0 +1,90 @@
+package com.bignerdranch.android.runtracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/*
+ * Replays GPX/TCX tracks through the tracking path one after the other in the background,
+ * see TrackReplayer. Each replay is recorded as a run and its report logged.
+ * ACTION_REPLAY_SAMPLES replays the bundled sample corpus (assets/sample_tracks), for load
+ * and regression runs on a device or emulator without going outside
+ */
+public class TrackReplayService extends IntentService {
+	private static final String TAG = "TrackReplayService";
+	public static final String ACTION_REPLAY_FILES = "com.bignerdranch.android.runtracker.ACTION_REPLAY_FILES";
+	public static final String ACTION_REPLAY_SAMPLES = "com.bignerdranch.android.runtracker.ACTION_REPLAY_SAMPLES";
+	public static final String EXTRA_PATHS = "paths";
+	public static final String EXTRA_SPEED = "speed";
+	public static final String EXTRA_JITTER = "jitter";
+	public static final String EXTRA_SEED = "seed";
+	private static final String SAMPLES_DIR = "sample_tracks";
+
+	public TrackReplayService() {
+		super(TAG);
+	}
+
+	/*
+	 * Replay the files at speed times their recorded pace (1-100), with jitterMeters of gaussian
+	 * noise on the positions
+	 */
+	public static void startReplay(Context context, String[] paths, float speed, double jitterMeters) {
+		Intent intent = new Intent(context, TrackReplayService.class);
+		intent.setAction(ACTION_REPLAY_FILES);
+		intent.putExtra(EXTRA_PATHS, paths);
+		intent.putExtra(EXTRA_SPEED, speed);
+		intent.putExtra(EXTRA_JITTER, jitterMeters);
+		context.startService(intent);
+	}
+
+	public static void startSampleReplay(Context context, float speed, double jitterMeters) {
+		Intent intent = new Intent(context, TrackReplayService.class);
+		intent.setAction(ACTION_REPLAY_SAMPLES);
+		intent.putExtra(EXTRA_SPEED, speed);
+		intent.putExtra(EXTRA_JITTER, jitterMeters);
+		context.startService(intent);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		List<TrackImporter.Source> sources = new ArrayList<TrackImporter.Source>();
+		if (ACTION_REPLAY_FILES.equals(intent.getAction())) {
+			String[] paths = intent.getStringArrayExtra(EXTRA_PATHS);
+			if (paths != null) {
+				for (String path : paths)
+					sources.add(TrackImporter.fromFile(new File(path)));
+			}
+		} else if (ACTION_REPLAY_SAMPLES.equals(intent.getAction())) {
+			AssetManager assets = getAssets();
+			try {
+				for (String name : assets.list(SAMPLES_DIR))
+					sources.add(TrackImporter.fromAsset(assets, SAMPLES_DIR + "/" + name));
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to list the sample tracks", e);
+			}
+		}
+
+		TrackReplayer replayer = new TrackReplayer(this, intent.getFloatExtra(EXTRA_SPEED, TrackReplayer.MIN_SPEED),
+				intent.getDoubleExtra(EXTRA_JITTER, 0), intent.getLongExtra(EXTRA_SEED, 0));
+		for (TrackImporter.Source source : sources) {
+			try {
+				replayer.replay(TrackImporter.readTrack(source));
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to read " + source.getName(), e);
+			} catch (IllegalStateException e) {
+				Log.e(TAG, "Not replaying " + source.getName(), e);
+				return;
+			} catch (SecurityException e) {
+				Log.e(TAG, "Mock locations are not allowed, see the developer options", e);
+				return;
+			}
+		}
+	}
+}
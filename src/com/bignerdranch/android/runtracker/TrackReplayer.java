@@ -0,0 +1,318 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Plays a recorded track into the test provider, which RunManager uses instead of the GPS
+ * whenever it is there, so the whole tracking path (TrackingService's listener, the session's
+ * filters, LocationWriter, RunDatebaseHelper) runs as it would on the road, without hardware.
+ *
+ * Fixes go in at 1x to 100x the recorded pace. Their timestamps keep the recorded spacing, so
+ * filters and the sampling policy see the pace of the recording whatever the replay speed.
+ * Positions can be scattered with gaussian jitter; the same seed gives the same fixes.
+ * The replay is recorded as a new run and measured on the way, see Report.
+ *
+ * Needs the ACCESS_MOCK_LOCATION permission and mock locations allowed on the device, and no
+ * run tracked already. Blocks for the length of the replay, call it from a background thread.
+ */
+public class TrackReplayer {
+	private static final String TAG = "TrackReplayer";
+	public static final float MIN_SPEED = 1;
+	public static final float MAX_SPEED = 100;
+	private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+	private static final float DEFAULT_ACCURACY = 5;				//Metres, reported when there is no jitter
+	private static final long START_TIMEOUT_MILLIS = 10 * 1000;		//For TrackingService to start
+	private static final long SETTLE_MILLIS = 2 * 1000;				//For the last fixes to get through
+
+	private RunManager mRunManager;
+	private LocationManager mLocationManager;
+	private float mSpeed;
+	private double mJitterMeters;
+	private long mSeed;
+
+	public TrackReplayer(Context context, float speed, double jitterMeters, long seed) {
+		mRunManager = RunManager.get(context);
+		mLocationManager = (LocationManager) context.getApplicationContext().getSystemService(Context.LOCATION_SERVICE);
+		mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+		mJitterMeters = Math.max(0, jitterMeters);
+		mSeed = seed;
+	}
+
+	/*
+	 * Record the track as a new run through the test provider, returns what it took
+	 */
+	public Report replay(TrackBuffer track) {
+		if (mRunManager.isTrackingRun())
+			throw new IllegalStateException("Stop tracking before replaying a track");
+		Report report = new Report(track.size(), mSpeed, mJitterMeters);
+		if (track.isEmpty())
+			return report;
+		boolean installed = installProvider();
+		try {
+			long bytesBefore = mRunManager.getDatabaseBytes();
+			Run run = mRunManager.startNewRun();
+			report.mRunId = run.getId();
+			try {
+				TrackingSession session = getSession(run.getId());
+				if (session == null || !awaitTracking()) {
+					Log.e(TAG, "Tracking didn't start, nothing replayed");
+					return report;
+				}
+				LatencyProbe probe = new LatencyProbe(track, report);
+				FixDispatcher.Subscription subscription = mRunManager.getFixDispatcher().subscribe(probe,
+						run.getId(), null, false);
+				try {
+					play(track, probe, report);
+					SystemClock.sleep(SETTLE_MILLIS);
+				} finally {
+					subscription.cancel();
+				}
+				report.mReceived = session.getFixes();
+				report.mRecorded = session.getRecorded();
+			} finally {
+				mRunManager.stopRunAndWait(run.getId());		//Flushes and seals the run, also when the replay failed
+			}
+			RunSummary summary = mRunManager.getRunSummary(run.getId());
+			report.mPersisted = summary != null ? summary.getPointCount() : 0;
+			report.mDatabaseGrowthBytes = mRunManager.getDatabaseBytes() - bytesBefore;
+		} finally {
+			if (installed)
+				removeProvider();
+		}
+		Log.i(TAG, report.toString());
+		return report;
+	}
+
+	private void play(TrackBuffer track, LatencyProbe probe, Report report) {
+		Random random = new Random(mSeed);
+		Location location = new Location(RunManager.TEST_PROVIDER);
+		long firstTimestamp = track.getTimestamp(0);
+		long startTime = System.currentTimeMillis();
+		long startRealtime = SystemClock.elapsedRealtime();
+		probe.start(startTime - firstTimestamp);
+		for (int i = 0; i < track.size(); i++) {
+			long offset = track.getTimestamp(i) - firstTimestamp;
+			long due = startRealtime + (long) (offset / mSpeed);
+			long now = SystemClock.elapsedRealtime();
+			if (due > now)
+				SystemClock.sleep(due - now);
+			else
+				report.mMaxLagMillis = Math.max(report.mMaxLagMillis, now - due);
+
+			double latitude = track.getLatitude(i);
+			double longitude = track.getLongitude(i);
+			if (mJitterMeters > 0) {
+				latitude += random.nextGaussian() * mJitterMeters / METERS_PER_DEGREE;
+				longitude += random.nextGaussian() * mJitterMeters / TrackSimplifier.metersPerLonDegree(latitude);
+			}
+			location.setTime(startTime + offset);
+			location.setLatitude(latitude);
+			location.setLongitude(longitude);
+			location.setAltitude(track.getAltitude(i));
+			location.setAccuracy(mJitterMeters > 0 ? (float) mJitterMeters : DEFAULT_ACCURACY);
+			setElapsedRealtime(location, startRealtime + offset);
+			probe.onInjected(i);
+			mLocationManager.setTestProviderLocation(RunManager.TEST_PROVIDER, location);
+			report.mInjected++;
+		}
+	}
+
+	/*
+	 * The location manager drops fixes that come sooner than the requested interval by this
+	 * clock, so it follows the recorded spacing too
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private static void setElapsedRealtime(Location location, long realtimeMillis) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+			location.setElapsedRealtimeNanos(realtimeMillis * 1000000);
+	}
+
+	private TrackingSession getSession(long runId) {
+		for (TrackingSession session : mRunManager.getTrackingSessions()) {
+			if (session.getRunId() == runId)
+				return session;
+		}
+		return null;
+	}
+
+	private boolean awaitTracking() {
+		long deadline = SystemClock.elapsedRealtime() + START_TIMEOUT_MILLIS;
+		while (!mRunManager.isReceivingUpdates()) {
+			if (SystemClock.elapsedRealtime() > deadline)
+				return false;
+			SystemClock.sleep(50);
+		}
+		return true;
+	}
+
+	/*
+	 * Returns true if the provider was added here, false if someone else's was already there
+	 */
+	private boolean installProvider() {
+		boolean installed = false;
+		if (mLocationManager.getProvider(RunManager.TEST_PROVIDER) == null) {
+			mLocationManager.addTestProvider(RunManager.TEST_PROVIDER, false, false, false, false, true, true, true,
+					Criteria.POWER_LOW, Criteria.ACCURACY_FINE);
+			installed = true;
+		}
+		mLocationManager.setTestProviderEnabled(RunManager.TEST_PROVIDER, true);
+		return installed;
+	}
+
+	private void removeProvider() {
+		try {
+			mLocationManager.removeTestProvider(RunManager.TEST_PROVIDER);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Test provider already gone", e);
+		}
+	}
+
+	/*
+	 * Times each fix from going into the test provider to being published by its session,
+	 * i.e. through the listener, the filters and into the writer's buffer
+	 */
+	private static class LatencyProbe implements FixDispatcher.Subscriber {
+		private long[] mTimestamps;
+		private AtomicLongArray mInjectedNanos;
+		private volatile long mTimeOffset = Long.MIN_VALUE;		//Replayed fix time minus recorded time
+		private Report mReport;
+
+		public LatencyProbe(TrackBuffer track, Report report) {
+			mTimestamps = Arrays.copyOf(track.getTimestamps(), track.size());
+			mInjectedNanos = new AtomicLongArray(track.size());
+			mReport = report;
+		}
+
+		public void start(long timeOffset) {
+			mTimeOffset = timeOffset;
+		}
+
+		public void onInjected(int index) {
+			mInjectedNanos.set(index, System.nanoTime());
+		}
+
+		@Override
+		public void onFix(FixDispatcher.Fix fix) {
+			long timeOffset = mTimeOffset;
+			if (timeOffset == Long.MIN_VALUE)
+				return;		//The last known location shown at the start
+			int index = Arrays.binarySearch(mTimestamps, fix.getTime() - timeOffset);
+			if (index < 0)
+				return;
+			long injected = mInjectedNanos.get(index);
+			if (injected == 0)
+				return;
+			long latency = fix.getPublishedNanos() - injected;
+			mReport.mMeasured++;
+			mReport.mTotalLatencyNanos += latency;
+			if (latency > mReport.mMaxLatencyNanos)
+				mReport.mMaxLatencyNanos = latency;
+		}
+
+		@Override
+		public void onProviderEnabledChanged(boolean enabled) {
+		}
+	}
+
+	/*
+	 * What a replay went through and what it cost
+	 */
+	public static class Report {
+		private long mRunId = -1;
+		private int mPoints;
+		private float mSpeed;
+		private double mJitterMeters;
+		private int mInjected;
+		private long mMaxLagMillis;
+		private long mReceived;
+		private long mRecorded;
+		private int mPersisted;
+		private volatile int mMeasured;
+		private volatile long mTotalLatencyNanos;
+		private volatile long mMaxLatencyNanos;
+		private long mDatabaseGrowthBytes;
+
+		private Report(int points, float speed, double jitterMeters) {
+			mPoints = points;
+			mSpeed = speed;
+			mJitterMeters = jitterMeters;
+		}
+
+		public long getRunId() {
+			return mRunId;
+		}
+
+		/*
+		 * Fixes put into the test provider
+		 */
+		public int getInjected() {
+			return mInjected;
+		}
+
+		/*
+		 * Fixes that reached the run's session, fewer if the location manager throttled them
+		 */
+		public long getReceived() {
+			return mReceived;
+		}
+
+		/*
+		 * Fixes that got through the filter chain
+		 */
+		public long getRecorded() {
+			return mRecorded;
+		}
+
+		/*
+		 * Points in the database once the run was stopped, after the streaming simplifier
+		 */
+		public int getPersisted() {
+			return mPersisted;
+		}
+
+		/*
+		 * Into the test provider to published by the session, averaged over the fixes recorded
+		 */
+		public long getAverageLatencyNanos() {
+			int measured = mMeasured;
+			return measured > 0 ? mTotalLatencyNanos / measured : 0;
+		}
+
+		public long getMaxLatencyNanos() {
+			return mMaxLatencyNanos;
+		}
+
+		/*
+		 * How far behind schedule the replay fell at worst, e.g. at 100x on a slow device
+		 */
+		public long getMaxLagMillis() {
+			return mMaxLagMillis;
+		}
+
+		/*
+		 * Growth of the database file (pages in use), from before the run to after it was stopped
+		 */
+		public long getDatabaseGrowthBytes() {
+			return mDatabaseGrowthBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Run %d: %d points at %.0fx, %.1fm jitter: %d injected, %d received, %d recorded, " +
+					"%d persisted, latency %dus average %dus max, lag %dms max, database +%dKB",
+					mRunId, mPoints, mSpeed, mJitterMeters, mInjected, mReceived, mRecorded, mPersisted,
+					getAverageLatencyNanos() / 1000, mMaxLatencyNanos / 1000, mMaxLagMillis, mDatabaseGrowthBytes / 1024);
+		}
+	}
+}
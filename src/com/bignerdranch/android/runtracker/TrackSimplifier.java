@@ -0,0 +1,89 @@
+package com.bignerdranch.android.runtracker;
+
+/*
+ * Error-bounded line simplification for tracks. Every point that is dropped lies within
+ * the tolerance (in metres) of the simplified line, and the first and last points are kept.
+ * Distances are measured on a local flat projection, which is plenty accurate at
+ * the scale of a single run.
+ */
+public class TrackSimplifier {
+	static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+	private TrackSimplifier() {
+	}
+
+	/*
+	 * Douglas-Peucker over the whole track, returns a new buffer with the kept points
+	 */
+	public static TrackBuffer simplify(TrackBuffer track, double toleranceMeters) {
+		int size = track.size();
+		if (size <= 2)
+			return copy(track, null);
+		boolean[] keep = new boolean[size];
+		keep[0] = keep[size - 1] = true;
+		// Explicit stack of [start, end] ranges instead of recursion, tracks can be long
+		int[] stack = new int[2 * size];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = size - 1;
+		double metersPerLonDegree = metersPerLonDegree(track.getLatitude(0));
+		while (top > 0) {
+			int end = stack[--top];
+			int start = stack[--top];
+			double maxDistance = -1;
+			int farthest = -1;
+			for (int i = start + 1; i < end; i++) {
+				double distance = distanceToSegment(track, i, start, end, metersPerLonDegree);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+			if (farthest != -1 && maxDistance > toleranceMeters) {
+				keep[farthest] = true;
+				stack[top++] = start;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = end;
+			}
+		}
+		return copy(track, keep);
+	}
+
+	/*
+	 * Distance in metres from point i to the segment between points a and b
+	 */
+	static double distanceToSegment(TrackBuffer track, int i, int a, int b, double metersPerLonDegree) {
+		return distanceToSegment(track.getLatitude(i), track.getLongitude(i),
+				track.getLatitude(a), track.getLongitude(a),
+				track.getLatitude(b), track.getLongitude(b), metersPerLonDegree);
+	}
+
+	static double distanceToSegment(double lat, double lon, double latA, double lonA,
+			double latB, double lonB, double metersPerLonDegree) {
+		// Work in metres relative to A
+		double px = (lon - lonA) * metersPerLonDegree;
+		double py = (lat - latA) * METERS_PER_DEGREE;
+		double bx = (lonB - lonA) * metersPerLonDegree;
+		double by = (latB - latA) * METERS_PER_DEGREE;
+		double lengthSquared = bx * bx + by * by;
+		double t = lengthSquared == 0 ? 0 : (px * bx + py * by) / lengthSquared;
+		t = Math.max(0, Math.min(1, t));
+		double dx = px - t * bx;
+		double dy = py - t * by;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	static double metersPerLonDegree(double latitude) {
+		return METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+	}
+
+	private static TrackBuffer copy(TrackBuffer track, boolean[] keep) {
+		TrackBuffer result = new TrackBuffer(track.size());
+		for (int i = 0; i < track.size(); i++) {
+			if (keep == null || keep[i])
+				result.add(track.getTimestamp(i), track.getLatitude(i), track.getLongitude(i), track.getAltitude(i));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,176 @@
+package com.bignerdranch.android.runtracker;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/*
+ * Foreground service that runs while any run is tracked. It owns the location listener, whose
+ * fixes arrive on the service's own thread and go straight through RunManager's ingest
+ * pipeline (each session's filter, writer, dispatcher): no broadcast, no trip through the
+ * main thread. Starting it again while it runs just refreshes the notification.
+ * Being in the foreground keeps the process, and the fixes buffered in it, from being
+ * killed for memory; if it is killed anyway the service is restarted and picks up the runs.
+ *
+ * Screens bind to it (without creating it) for the fixes, see LocalBinder.
+ */
+public class TrackingService extends Service {
+	private static final String TAG = "TrackingService";
+	private static final int NOTIFICATION_ID = 1;
+
+	private RunManager mRunManager;
+	private HandlerThread mThread;
+	private boolean mTracking;
+	private final IBinder mBinder = new LocalBinder();
+
+	private volatile long mFixes;
+	private volatile long mTotalIngestNanos;
+
+	private LocationListener mListener = new LocationListener() {
+		@Override
+		public void onLocationChanged(Location location) {
+			long start = System.nanoTime();
+			mRunManager.insertLocation(location);
+			mTotalIngestNanos += System.nanoTime() - start;
+			mFixes++;
+		}
+
+		@Override
+		public void onProviderEnabled(String provider) {
+			mRunManager.getFixDispatcher().publishProviderEnabled(true);
+		}
+
+		@Override
+		public void onProviderDisabled(String provider) {
+			mRunManager.getFixDispatcher().publishProviderEnabled(false);
+		}
+
+		@Override
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+		}
+	};
+
+	public static void startTracking(Context context) {
+		context.startService(new Intent(context, TrackingService.class));
+	}
+
+	public static void stopTracking(Context context) {
+		context.stopService(new Intent(context, TrackingService.class));
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mRunManager = RunManager.get(this);
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DEFAULT);
+		mThread.start();
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// Also called with a null intent when restarted after the process was killed
+		long[] runIds = mRunManager.getTrackingRunIds();
+		if (runIds.length == 0) {
+			stopSelf();
+			return START_NOT_STICKY;
+		}
+		startForeground(NOTIFICATION_ID, buildNotification(runIds));
+		// Updates may have been stopped with the last run while this one was on its way
+		if (!mTracking || !mRunManager.isReceivingUpdates()) {
+			mTracking = true;
+			mRunManager.startLocationUpdates(mListener, mThread.getLooper());
+		}
+		Log.i(TAG, "Tracking " + runIds.length + " runs");
+		return START_STICKY;
+	}
+
+	private Notification buildNotification(long[] runIds) {
+		// Straight to the run if there is just one
+		Intent intent;
+		if (runIds.length == 1) {
+			intent = new Intent(this, RunActivity.class);
+			intent.putExtra(RunActivity.EXTRA_RUN_ID, runIds[0]);
+		} else {
+			intent = new Intent(this, RunListActivity.class);
+		}
+		PendingIntent pi = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		return new NotificationCompat.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getString(R.string.tracking_run))
+				.setContentText(getString(R.string.tracking_notification_text))
+				.setContentIntent(pi)
+				.setOngoing(true)
+				.build();
+	}
+
+	@Override
+	public void onDestroy() {
+		if (mTracking) {
+			mRunManager.stopLocationUpdates();
+			stopForeground(true);
+			Log.i(TAG, "Ingested " + mFixes + " fixes, " + getAverageIngestNanos() / 1000 + "us average");
+		}
+		mThread.quit();
+		super.onDestroy();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_RUNNING_LOW)
+			mRunManager.flushLocations();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	public long getFixCount() {
+		return mFixes;
+	}
+
+	/*
+	 * Time spent in the ingest pipeline per fix, averaged
+	 */
+	public long getAverageIngestNanos() {
+		long fixes = mFixes;
+		return fixes > 0 ? mTotalIngestNanos / fixes : 0;
+	}
+
+	/*
+	 * The in-process API screens get when they bind
+	 */
+	public class LocalBinder extends Binder {
+		public long[] getRunIds() {
+			return mTracking ? mRunManager.getTrackingRunIds() : new long[0];
+		}
+
+		public boolean isTracking() {
+			return mTracking;
+		}
+
+		/*
+		 * Fixes of a tracked run, or of all of them for FixDispatcher.ALL_RUNS, see FixDispatcher.subscribe()
+		 */
+		public FixDispatcher.Subscription subscribe(FixDispatcher.Subscriber subscriber, long runId, Looper looper, boolean coalesce) {
+			return mRunManager.getFixDispatcher().subscribe(subscriber, runId, looper, coalesce);
+		}
+
+		public TrackingService getService() {
+			return TrackingService.this;
+		}
+	}
+}
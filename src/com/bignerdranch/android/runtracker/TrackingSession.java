@@ -0,0 +1,115 @@
+package com.bignerdranch.android.runtracker;
+
+import android.location.Location;
+import android.util.Log;
+
+/*
+ * Recording state of one tracked run. Several runs can be tracked at once (a pacer's run and
+ * a warm-up lap, say): every fix received goes to each of them, and each one filters, samples
+ * and buffers it on its own, so what one session drops or smooths never affects another.
+ *
+ * A session only ever sees one fix at a time. Closing it waits for the fix in progress,
+ * after which nothing more is recorded for the run. A paused session ignores fixes.
+ */
+public class TrackingSession {
+	private static final String TAG = "TrackingSession";
+
+	private final long mRunId;
+	private final LocationFilterChain mFilterChain = LocationFilterChain.createDefault();
+	private final SamplingPolicy mSamplingPolicy;
+	private final Location mLocation = new Location("");		//The session's copy of the fix, filters smooth it in place
+	private boolean mClosed;
+	private boolean mPaused;
+
+	private volatile long mFixes;
+	private volatile long mRecorded;
+
+	public TrackingSession(long runId, SamplingPolicy.Profile profile) {
+		mRunId = runId;
+		mSamplingPolicy = new SamplingPolicy(profile);
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	/*
+	 * Filter the fix, buffer it in the writer and publish it for the run. Returns true if
+	 * the session's sampling policy wants a different location request
+	 */
+	synchronized boolean onFix(Location location, LocationWriter writer, FixDispatcher dispatcher) {
+		if (mClosed || mPaused)
+			return false;
+		mFixes++;
+		mLocation.set(location);
+		if (!mFilterChain.filter(mLocation)) {
+			Log.d(TAG, "Run " + mRunId + " dropped fix " + mFilterChain.getRejected() + " of " + mFilterChain.getFixes());
+			return false;
+		}
+		writer.append(mRunId, mLocation);
+		dispatcher.publish(mRunId, mLocation);
+		mRecorded++;
+		return mSamplingPolicy.onFix(mLocation.getTime(), mLocation.getLatitude(), mLocation.getLongitude(),
+				mLocation.hasSpeed() ? mLocation.getSpeed() : -1);
+	}
+
+	/*
+	 * Back to the densest sampling and a fresh filter, e.g. when the GPS is (re)started
+	 */
+	synchronized void reset() {
+		mSamplingPolicy.reset();
+		mFilterChain.reset();
+	}
+
+	synchronized void setPaused(boolean paused) {
+		mPaused = paused;
+		if (!paused)
+			reset();		//Whatever was learned about the pace is stale
+	}
+
+	synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	synchronized void setSamplingProfile(SamplingPolicy.Profile profile) {
+		mSamplingPolicy.setProfile(profile);
+	}
+
+	synchronized long getMinTimeMillis() {
+		return mSamplingPolicy.getMinTimeMillis();
+	}
+
+	synchronized float getMinDistanceMeters() {
+		return mSamplingPolicy.getMinDistanceMeters();
+	}
+
+	synchronized boolean isStill() {
+		return mSamplingPolicy.isStill();
+	}
+
+	/*
+	 * No fix gets in after this returns
+	 */
+	synchronized void close() {
+		mClosed = true;
+	}
+
+	/*
+	 * Fixes routed to the session
+	 */
+	public long getFixes() {
+		return mFixes;
+	}
+
+	/*
+	 * Fixes that made it through the filter chain to the writer
+	 */
+	public long getRecorded() {
+		return mRecorded;
+	}
+
+	@Override
+	public String toString() {
+		return "Run " + mRunId + ": recorded " + mRecorded + " of " + mFixes + " fixes";
+	}
+}
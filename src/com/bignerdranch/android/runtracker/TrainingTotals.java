@@ -0,0 +1,78 @@
+package com.bignerdranch.android.runtracker;
+
+import java.util.Calendar;
+
+/*
+ * Distance, time and number of runs of one calendar week or month. A run counts towards
+ * the bucket (in local time) its first location falls in, however long it goes on
+ */
+public class TrainingTotals {
+	public static final int PERIOD_WEEK = 0;
+	public static final int PERIOD_MONTH = 1;
+
+	private int mPeriod;
+	private long mBucketStart;
+	private double mDistanceMeters;
+	private long mDurationMillis;
+	private int mRunCount;
+
+	public TrainingTotals(int period, long bucketStart) {
+		mPeriod = period;
+		mBucketStart = bucketStart;
+	}
+
+	/*
+	 * Start of the week (on the locale's first day of the week) or month holding time.
+	 * The calendar is only used as scratch space
+	 */
+	public static long getBucketStart(int period, long time, Calendar calendar) {
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		if (period == PERIOD_WEEK) {
+			int daysIntoWeek = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+			calendar.add(Calendar.DAY_OF_MONTH, -daysIntoWeek);
+		} else {
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		}
+		return calendar.getTimeInMillis();
+	}
+
+	/*
+	 * Start of the bucket periods back from the one holding time, e.g. 51 weeks back
+	 * for the last 52 weeks including the current one
+	 */
+	public static long getBucketStart(int period, long time, int periodsBack, Calendar calendar) {
+		calendar.setTimeInMillis(getBucketStart(period, time, calendar));
+		calendar.add(period == PERIOD_WEEK ? Calendar.WEEK_OF_YEAR : Calendar.MONTH, -periodsBack);
+		return calendar.getTimeInMillis();
+	}
+
+	public void add(double distanceMeters, long durationMillis, int runCount) {
+		mDistanceMeters += distanceMeters;
+		mDurationMillis += durationMillis;
+		mRunCount += runCount;
+	}
+
+	public int getPeriod() {
+		return mPeriod;
+	}
+
+	public long getBucketStart() {
+		return mBucketStart;
+	}
+
+	public double getDistanceMeters() {
+		return mDistanceMeters;
+	}
+
+	public long getDurationMillis() {
+		return mDurationMillis;
+	}
+
+	public int getRunCount() {
+		return mRunCount;
+	}
+}